@@ -0,0 +1,135 @@
+package org.cygx1.snap;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A small benchmark harness: runs each case for a warmup period, then times
+ * every call for the measurement period and keeps the distribution. Results
+ * can be written as CSV or JSON, one row per case, for comparing runs.
+ *
+ * Each call should do a fixed amount of work; ops says how many operations
+ * that is, so a case that loops over 360 angles reports time per angle.
+ */
+public class Benchmark {
+	public interface Case {
+		void run() throws Exception;
+	}
+
+	public static class Result {
+		public final String name;
+		public final String params;
+		public final int samples;
+		public final double meanNs;
+		public final double stddevNs;
+		public final double p50Ns;
+		public final double p99Ns;
+		public final double minNs;
+
+		Result(String name, String params, long[] samples, int ops) {
+			this.name = name;
+			this.params = params;
+			this.samples = samples.length;
+			Arrays.sort(samples);
+			double sum = 0;
+			for (long s : samples) {
+				sum += s;
+			}
+			double mean = sum / samples.length;
+			double squares = 0;
+			for (long s : samples) {
+				squares += (s - mean) * (s - mean);
+			}
+			meanNs = mean / ops;
+			stddevNs = Math.sqrt(squares / samples.length) / ops;
+			p50Ns = (double) percentile(samples, 50) / ops;
+			p99Ns = (double) percentile(samples, 99) / ops;
+			minNs = (double) samples[0] / ops;
+		}
+
+		private static long percentile(long[] sorted, int p) {
+			int i = (int) Math.ceil(sorted.length * p / 100.0) - 1;
+			return sorted[Math.max(0, Math.min(sorted.length - 1, i))];
+		}
+	}
+
+	private final long mWarmupNs;
+	private final long mMeasureNs;
+	private final int mMinSamples;
+	private final String mFilter;
+	private final List<Result> mResults = new ArrayList<Result>();
+
+	/**
+	 * @param warmupMs - how long to run each case before timing it
+	 * @param measureMs - how long to time it for
+	 * @param minSamples - timed calls to make however long they take
+	 * @param filter - only run cases whose name contains this; null for all
+	 */
+	public Benchmark(int warmupMs, int measureMs, int minSamples, String filter) {
+		mWarmupNs = warmupMs * 1000000L;
+		mMeasureNs = measureMs * 1000000L;
+		mMinSamples = minSamples;
+		mFilter = filter;
+	}
+
+	public void run(String name, String params, Case c) throws Exception {
+		run(name, params, 1, c);
+	}
+
+	public void run(String name, String params, int ops, Case c) throws Exception {
+		if (mFilter != null && !(name + " " + params).contains(mFilter)) {
+			return;
+		}
+		long end = System.nanoTime() + mWarmupNs;
+		do {
+			c.run();
+		} while (System.nanoTime() < end);
+
+		long[] samples = new long[64];
+		int n = 0;
+		end = System.nanoTime() + mMeasureNs;
+		long now;
+		do {
+			long start = System.nanoTime();
+			c.run();
+			now = System.nanoTime();
+			if (n == samples.length) {
+				samples = Arrays.copyOf(samples, n * 2);
+			}
+			samples[n++] = now - start;
+		} while (now < end || n < mMinSamples);
+
+		Result r = new Result(name, params, Arrays.copyOf(samples, n), ops);
+		mResults.add(r);
+		System.err.printf(Locale.US, "%-28s %-36s %12.1f ns/op (p50 %.1f, p99 %.1f, n=%d)%n",
+				r.name, r.params, r.meanNs, r.p50Ns, r.p99Ns, r.samples);
+	}
+
+	public List<Result> getResults() {
+		return mResults;
+	}
+
+	public void writeCsv(PrintStream out) {
+		out.println("benchmark,params,samples,mean_ns,stddev_ns,p50_ns,p99_ns,min_ns");
+		for (Result r : mResults) {
+			out.printf(Locale.US, "%s,\"%s\",%d,%.1f,%.1f,%.1f,%.1f,%.1f%n", r.name, r.params,
+					r.samples, r.meanNs, r.stddevNs, r.p50Ns, r.p99Ns, r.minNs);
+		}
+	}
+
+	public void writeJson(PrintStream out) {
+		out.println("[");
+		for (int i = 0; i < mResults.size(); i++) {
+			Result r = mResults.get(i);
+			out.printf(Locale.US, "  {\"benchmark\": \"%s\", \"params\": \"%s\", \"samples\": %d, "
+					+ "\"mean_ns\": %.1f, \"stddev_ns\": %.1f, \"p50_ns\": %.1f, "
+					+ "\"p99_ns\": %.1f, \"min_ns\": %.1f}%s%n", r.name, r.params,
+					r.samples, r.meanNs, r.stddevNs, r.p50Ns, r.p99Ns, r.minNs,
+					i < mResults.size() - 1 ? "," : "");
+		}
+		out.println("]");
+	}
+}
@@ -0,0 +1,385 @@
+package org.cygx1.snap;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Pushes synthetic photos through the core pipeline at a steady rate, as
+ * if someone were tapping the shutter N times a second, and mails them to
+ * in-process SmtpSinks. Everything from Capture on is the code the phone
+ * runs: the EXIF rewrite, the outbox and its journal, MailDelivery and the
+ * connection pool. Once a second it prints how far the pipeline is keeping
+ * up: photos offered and sent, the outbox queue depth, throughput, heap in
+ * use, and send latencies over the last LatencyLog's worth of sends.
+ *
+ * Options:
+ *   --rate N             photos offered per second (default 2)
+ *   --seconds N          how long to offer them for (default 30)
+ *   --drain N            how long to wait after that for the queue to
+ *                        empty (default 30)
+ *   --size WxH           photo size (default 1600x1200)
+ *   --max-dimension N    shrink photos to this before sending; 0 sends
+ *                        them as they are (default 0)
+ *   --workers N          outbox send workers (default 2)
+ *   --window MS          outbox coalescing window (default 0)
+ *   --preview            send a preview ahead of each photo
+ *   --relays N           sinks to spread the sending over (default 1)
+ *   --latency MS         first sink's pause before every reply (default 0)
+ *   --fail-rate P        share of messages the first sink answers with a
+ *                        451
+ *   --drop-rate P        share of messages the first sink hangs up on
+ *   --extensions LIST    EHLO keywords the sinks offer, comma separated
+ *                        (default PIPELINING,8BITMIME)
+ *   --keep-mb N          sent photos to keep on disk, in MB (default 0,
+ *                        deleted as soon as they're sent)
+ *   --csv FILE           also write the per-second lines as CSV
+ */
+public class LoadGenerator {
+	// Distinct pictures to cycle through; making one per offer would
+	// measure ImageIO rather than the pipeline
+	private static final int FRAMES = 16;
+	private static final int[] PERCENTILES = { 50, 90, 99 };
+
+	private final AtomicLong mOffered = new AtomicLong();
+	private final AtomicLong mSent = new AtomicLong();
+	private final AtomicLong mRetried = new AtomicLong();
+	private final AtomicLong mFailed = new AtomicLong();
+
+	public static void main(String[] args) throws Exception {
+		double rate = 2;
+		int seconds = 30;
+		int drain = 30;
+		int width = 1600;
+		int height = 1200;
+		int maxDimension = 0;
+		int workers = 2;
+		long window = 0;
+		boolean preview = false;
+		int relays = 1;
+		int latency = 0;
+		double failRate = 0;
+		double dropRate = 0;
+		String extensions = "PIPELINING,8BITMIME";
+		long keepMb = 0;
+		String csv = null;
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("--rate")) {
+				rate = Double.parseDouble(args[++i]);
+			} else if (args[i].equals("--seconds")) {
+				seconds = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("--drain")) {
+				drain = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("--size")) {
+				String[] wh = args[++i].split("x");
+				width = Integer.parseInt(wh[0]);
+				height = Integer.parseInt(wh[1]);
+			} else if (args[i].equals("--max-dimension")) {
+				maxDimension = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("--workers")) {
+				workers = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("--window")) {
+				window = Long.parseLong(args[++i]);
+			} else if (args[i].equals("--preview")) {
+				preview = true;
+			} else if (args[i].equals("--relays")) {
+				relays = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("--latency")) {
+				latency = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("--fail-rate")) {
+				failRate = Double.parseDouble(args[++i]);
+			} else if (args[i].equals("--drop-rate")) {
+				dropRate = Double.parseDouble(args[++i]);
+			} else if (args[i].equals("--extensions")) {
+				extensions = args[++i];
+			} else if (args[i].equals("--keep-mb")) {
+				keepMb = Long.parseLong(args[++i]);
+			} else if (args[i].equals("--csv")) {
+				csv = args[++i];
+			} else {
+				System.err.println("Unknown option " + args[i]);
+				System.exit(2);
+			}
+		}
+
+		// The first sink stands in for a slow or failing relay, the rest
+		// for healthy ones
+		String[] offers = extensions.length() == 0 ? new String[0] : extensions.split(",");
+		SmtpSink[] sinks = new SmtpSink[relays];
+		List<Relay> relayList = new ArrayList<Relay>();
+		for (int i = 0; i < relays; i++) {
+			sinks[i] = new SmtpSink(offers, i == 0 ? latency : 0);
+			relayList.add(new Relay("127.0.0.1", sinks[i].getPort(), SinkSettings.FROM,
+					SinkSettings.PASSWORD, 1));
+		}
+		sinks[0].setFaults(failRate, dropRate);
+		PrintStream out = csv != null ? new PrintStream(new FileOutputStream(csv)) : null;
+		File dir = createTempDir();
+		try {
+			new LoadGenerator().run(sinks, dir, syntheticJpegs(width, height), rate, seconds,
+					drain, new SinkSettings(relayList, maxDimension, preview), workers,
+					window, keepMb << 20, out);
+		} finally {
+			for (SmtpSink sink : sinks) {
+				sink.close();
+			}
+			if (out != null) {
+				out.close();
+			}
+			delete(dir);
+		}
+	}
+
+	private void run(SmtpSink[] sinks, File dir, final byte[][] frames, double rate,
+			int seconds, int drain, MailDelivery.Settings settings, int workers,
+			long window, long keepBytes, PrintStream csv) throws Exception {
+		final MailDelivery delivery = new MailDelivery(settings, dir);
+		final Outbox outbox = new Outbox(new File(dir, "outbox.journal"), delivery,
+				new Outbox.Listener() {
+					public void onSent(List<Photo> photos) {
+						mSent.addAndGet(photos.size());
+					}
+
+					public void onFailed(List<Photo> photos, Exception e, boolean willRetry) {
+						if (willRetry) {
+							mRetried.addAndGet(photos.size());
+						} else {
+							delivery.forget(photos);
+							mFailed.addAndGet(photos.size());
+						}
+					}
+				}, workers);
+		outbox.setSendSpacing(0);
+		outbox.setCoalescing(window, Long.MAX_VALUE);
+		outbox.setPreviewer(delivery);
+		final PhotoStore store = new PhotoStore(dir);
+		store.setCapacity(keepBytes);
+		outbox.setStore(store);
+		final SyntheticSource source = new SyntheticSource(frames);
+
+		ScheduledExecutorService shutter = Executors
+				.newSingleThreadScheduledExecutor(new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "LoadGenerator-shutter");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		shutter.scheduleAtFixedRate(new Runnable() {
+			public void run() {
+				mOffered.incrementAndGet();
+				new Capture(source, outbox, store, 1, false, null).start();
+			}
+		}, 0, (long) (1000000000L / rate), TimeUnit.NANOSECONDS);
+
+		String header = "second,offered,queued,sent,retried,failed,photos/s,MB/s,heap MB,"
+				+ "send p50 ms,send p90 ms,send p99 ms,total p50 ms,total p90 ms,total p99 ms";
+		System.out.println(header.replace(',', '\t'));
+		if (csv != null) {
+			csv.println(header);
+		}
+		long lastSent = 0;
+		long lastBytes = 0;
+		long start = System.nanoTime();
+		for (int second = 1; second <= seconds + drain; second++) {
+			long next = start + second * 1000000000L;
+			long wait = next - System.nanoTime();
+			if (wait > 0) {
+				Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+			}
+			if (second == seconds) {
+				shutter.shutdown();
+			}
+			long sent = mSent.get();
+			long bytes = 0;
+			for (SmtpSink sink : sinks) {
+				bytes += sink.getBytes();
+			}
+			Runtime runtime = Runtime.getRuntime();
+			List<SendRecord> records = LatencyLog.getInstance().snapshot();
+			StringBuilder line = new StringBuilder();
+			line.append(second).append(',').append(mOffered.get()).append(',')
+					.append(outbox.size()).append(',').append(sent).append(',')
+					.append(mRetried.get()).append(',').append(mFailed.get()).append(',')
+					.append(sent - lastSent).append(',')
+					.append(String.format("%.2f", (bytes - lastBytes) / 1e6)).append(',')
+					.append((runtime.totalMemory() - runtime.freeMemory()) >> 20);
+			appendPercentiles(line, records, SendRecord.Span.SEND);
+			appendPercentiles(line, records, SendRecord.Span.TOTAL);
+			System.out.println(line.toString().replace(',', '\t'));
+			if (csv != null) {
+				csv.println(line);
+			}
+			lastSent = sent;
+			lastBytes = bytes;
+			if (second >= seconds && outbox.size() == 0) {
+				break;
+			}
+		}
+		for (int i = 0; i < sinks.length; i++) {
+			System.out.println("Sink " + (i + 1) + ": " + sinks[i].getMessages() + " accepted, "
+					+ sinks[i].getRejected() + " rejected, " + sinks[i].getDropped()
+					+ " dropped");
+		}
+		System.out.println("Store: " + store.size() + " photos, "
+				+ String.format("%.2f", store.getBytes() / 1e6) + " MB");
+	}
+
+	private static void appendPercentiles(StringBuilder line, List<SendRecord> records,
+			SendRecord.Span span) {
+		long[] values = LatencyLog.percentiles(records, span, PERCENTILES);
+		for (int i = 0; i < PERCENTILES.length; i++) {
+			line.append(',');
+			if (values != null) {
+				line.append(values[i] / 1000000);
+			}
+		}
+	}
+
+	/**
+	 * Hands out the frames in turn, in pooled buffers as the camera's would
+	 * be once the outbox is done with them
+	 */
+	private static class SyntheticSource implements CaptureSource {
+		private final byte[][] mFrames;
+		private int mNext = 0;
+
+		SyntheticSource(byte[][] frames) {
+			mFrames = frames;
+		}
+
+		public void takePicture(Callback callback) {
+			takeAnother(callback);
+		}
+
+		public void takeAnother(Callback callback) {
+			byte[] frame = mFrames[mNext];
+			mNext = (mNext + 1) % mFrames.length;
+			byte[] data = JpegBufferPool.getInstance().acquire(frame.length);
+			System.arraycopy(frame, 0, data, 0, frame.length);
+			callback.onPictureTaken(data, frame.length);
+		}
+
+		public int getExpectedPictureBytes() {
+			return mFrames[0].length;
+		}
+
+		public int getPictureRotation() {
+			return 0;
+		}
+	}
+
+	/**
+	 * Plain SMTP to the sink, no repeat filtering, no time target
+	 */
+	private static class SinkSettings implements MailDelivery.Settings {
+		static final String FROM = "snap@example.com";
+		// The sinks don't offer AUTH, so this is never sent, but Mail
+		// won't send without one
+		static final String PASSWORD = "secret";
+		private final List<Relay> mRelays;
+		private final int mMaxDimension;
+		private final boolean mPreview;
+
+		SinkSettings(List<Relay> relays, int maxDimension, boolean preview) {
+			mRelays = relays;
+			mMaxDimension = maxDimension;
+			mPreview = preview;
+		}
+
+		public Mail newMail() {
+			Mail m = new Mail();
+			m.setTo(new String[] { "someone@example.com" });
+			m.setFrom(FROM);
+			m.setSubject("Snap!");
+			m.setBody("");
+			return m;
+		}
+
+		public String getFrom() {
+			return FROM;
+		}
+
+		public List<Relay> getRelays() {
+			return mRelays;
+		}
+
+		public int getMaxDimension() {
+			return mMaxDimension;
+		}
+
+		public int getJpegQuality() {
+			return 85;
+		}
+
+		public int getRepeatDistance() {
+			return 0;
+		}
+
+		public int getTargetSeconds() {
+			return 0;
+		}
+
+		public boolean isPreviewFirst() {
+			return mPreview;
+		}
+	}
+
+	/**
+	 * Pictures with enough detail in them to compress like photos do, each
+	 * different from the rest
+	 */
+	private static byte[][] syntheticJpegs(int width, int height) throws IOException {
+		byte[][] frames = new byte[FRAMES][];
+		Random random = new Random(42);
+		for (int f = 0; f < FRAMES; f++) {
+			BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+			Graphics2D g = image.createGraphics();
+			g.setColor(new Color(random.nextInt(0x1000000)));
+			g.fillRect(0, 0, width, height);
+			for (int i = 0; i < 1000; i++) {
+				g.setColor(new Color(random.nextInt(0x1000000)));
+				g.fillOval(random.nextInt(width), random.nextInt(height),
+						10 + random.nextInt(width / 8), 10 + random.nextInt(height / 8));
+			}
+			g.dispose();
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			ImageIO.write(image, "jpeg", out);
+			frames[f] = out.toByteArray();
+		}
+		return frames;
+	}
+
+	private static File createTempDir() throws IOException {
+		File dir = File.createTempFile("snap-load", "");
+		if (!dir.delete() || !dir.mkdir()) {
+			throw new IOException("Unable to make " + dir);
+		}
+		return dir;
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
@@ -0,0 +1,408 @@
+package org.cygx1.snap;
+
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.util.Date;
+import java.util.Properties;
+import java.util.Random;
+
+import javax.activation.DataHandler;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+import javax.mail.internet.MimeUtility;
+
+/**
+ * Benchmarks for the stages a photo goes through between the shutter and
+ * the SMTP server, run on a desktop JVM (see README):
+ *
+ *   preview  - picking the preview size, rounding the orientation and
+ *              measuring a frame's sharpness
+ *   picture  - choosing the capture size and quality from a byte budget
+ *   image    - DCT domain downscaling, lossless cropping, perceptual
+ *              hashing and the EXIF rewrite
+ *   mime     - building and writing out the message, JavaMail's way and
+ *              through AttachmentPart, for various photo sizes and counts
+ *   send     - a whole send to an in-process SmtpSink, on a fresh
+ *              connection (cold) and on one kept open (warm)
+ *
+ * Options:
+ *   --csv FILE, --json FILE   where to write the results; CSV to stdout
+ *                             if neither is given
+ *   --filter TEXT             only cases whose name or params contain it
+ *   --jpeg FILE               a camera photo to use for the image cases
+ *                             instead of a generated one
+ *   --quick                   short runs, for checking that it all works
+ */
+public class PipelineBenchmarks {
+	private static final int[] PHOTO_KB = { 100, 1024, 4096 };
+	private static final int[] PHOTO_COUNTS = { 1, 3 };
+
+	// Sizes from real devices: a Nexus One's preview sizes and a 5MP
+	// sensor's picture sizes
+	private static final int[] PREVIEW_WIDTHS = { 720, 800, 640, 576, 480, 384, 352, 320, 240, 176 };
+	private static final int[] PREVIEW_HEIGHTS = { 480, 480, 480, 432, 320, 288, 288, 240, 160, 144 };
+	private static final int[] PICTURE_WIDTHS = { 2592, 2592, 2048, 1600, 1280, 1024, 640 };
+	private static final int[] PICTURE_HEIGHTS = { 1944, 1456, 1536, 1200, 960, 768, 480 };
+
+	public static void main(String[] args) throws Exception {
+		String csv = null;
+		String json = null;
+		String filter = null;
+		String jpeg = null;
+		boolean quick = false;
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("--csv")) {
+				csv = args[++i];
+			} else if (args[i].equals("--json")) {
+				json = args[++i];
+			} else if (args[i].equals("--filter")) {
+				filter = args[++i];
+			} else if (args[i].equals("--jpeg")) {
+				jpeg = args[++i];
+			} else if (args[i].equals("--quick")) {
+				quick = true;
+			} else {
+				System.err.println("Unknown option " + args[i]);
+				System.exit(2);
+			}
+		}
+
+		Benchmark b = quick ? new Benchmark(100, 200, 3, filter)
+				: new Benchmark(2000, 5000, 10, filter);
+		byte[] photo = jpeg != null ? readFile(jpeg) : syntheticJpeg(2592, 1944);
+
+		previewCases(b);
+		sharpnessCases(b);
+		pictureCases(b);
+		imageCases(b, photo);
+		mimeCases(b);
+		sendCases(b, quick);
+
+		if (csv == null && json == null) {
+			b.writeCsv(System.out);
+		}
+		if (csv != null) {
+			PrintStream out = new PrintStream(new FileOutputStream(csv));
+			b.writeCsv(out);
+			out.close();
+		}
+		if (json != null) {
+			PrintStream out = new PrintStream(new FileOutputStream(json));
+			b.writeJson(out);
+			out.close();
+		}
+	}
+
+	private static volatile int sSink;
+
+	private static void previewCases(Benchmark b) throws Exception {
+		b.run("preview.roundOrientation", "0..359", 360, new Benchmark.Case() {
+			public void run() {
+				int sum = 0;
+				for (int angle = 0; angle < 360; angle++) {
+					sum += PreviewGeometry.roundOrientation(angle);
+				}
+				sSink = sum;
+			}
+		});
+		int[][] views = { { 800, 480 }, { 854, 480 }, { 480, 320 } };
+		for (final int[] view : views) {
+			b.run("preview.optimalPreviewSize", "view=" + view[0] + "x" + view[1],
+					new Benchmark.Case() {
+						public void run() {
+							sSink = PreviewGeometry.optimalPreviewSize(PREVIEW_WIDTHS,
+									PREVIEW_HEIGHTS, view[0], view[1]);
+						}
+					});
+		}
+	}
+
+	private static void sharpnessCases(Benchmark b) throws Exception {
+		int[][] frames = { { 640, 480 }, { 800, 480 }, { 1280, 720 } };
+		for (int[] size : frames) {
+			final SharpnessMeter meter = new SharpnessMeter(size[0], size[1]);
+			final byte[] frame = randomBytes(size[0] * size[1] * 3 / 2);
+			b.run("preview.sharpness", size[0] + "x" + size[1], new Benchmark.Case() {
+				public void run() {
+					sSink = meter.measure(frame) ? 1 : 0;
+				}
+			});
+		}
+	}
+
+	private static void pictureCases(Benchmark b) throws Exception {
+		int[][] limits = { { 1600, 85, 0 }, { 1024, 85, 300 * 1024 }, { 0, 95, 100 * 1024 } };
+		for (final int[] limit : limits) {
+			b.run("picture.selectSize", "max=" + limit[0] + " q=" + limit[1]
+					+ " budget=" + limit[2], new Benchmark.Case() {
+				public void run() {
+					PictureSizeSelector s = new PictureSizeSelector(PICTURE_WIDTHS,
+							PICTURE_HEIGHTS);
+					s.select(limit[0], limit[1], limit[2]);
+					sSink = s.getWidth() + s.getQuality();
+				}
+			});
+		}
+	}
+
+	private static void imageCases(Benchmark b, final byte[] photo) throws Exception {
+		JpegReader header = new JpegReader(photo, photo.length);
+		final int longest = Math.max(header.width, header.height);
+		for (final int n : new int[] { 4, 2, 1 }) {
+			b.run("image.downscale", "1/" + (8 / n) + " of " + header.width + "x"
+					+ header.height, new Benchmark.Case() {
+				public void run() throws IOException {
+					PooledOutputStream out = JpegDownscaler.downscale(photo, photo.length,
+							longest * n / 8, 85);
+					sSink = out.size();
+					out.release();
+				}
+			});
+		}
+
+		b.run("image.huffmanOptimize", header.width + "x" + header.height,
+				new Benchmark.Case() {
+					public void run() throws IOException {
+						PooledOutputStream out = JpegOptimizer.optimize(photo, photo.length);
+						sSink = out != null ? out.size() : photo.length;
+						if (out != null) {
+							out.release();
+						}
+					}
+				});
+
+		b.run("image.crop", "middle half of " + header.width + "x" + header.height,
+				new Benchmark.Case() {
+					public void run() throws IOException {
+						PooledOutputStream out = JpegCropper.crop(photo, photo.length,
+								0.25f, 0.25f, 0.75f, 0.75f);
+						sSink = out.size();
+						out.release();
+					}
+				});
+
+		b.run("image.dHash", header.width + "x" + header.height, new Benchmark.Case() {
+			public void run() throws IOException {
+				sSink = (int) PerceptualHash.dHash(photo, photo.length);
+			}
+		});
+
+		// Give the photo an Orientation tag to patch, like a camera's would have
+		PooledOutputStream tagged = ExifRewriter.rewrite(photo, photo.length, 1, false);
+		final byte[] exif = tagged != null ? copy(tagged) : photo;
+		final byte[] work = new byte[exif.length];
+		b.run("image.exif", "patch orientation", new Benchmark.Case() {
+			public void run() throws IOException {
+				System.arraycopy(exif, 0, work, 0, exif.length);
+				PooledOutputStream out = ExifRewriter.rewrite(work, work.length, 6, false);
+				if (out != null) {
+					out.release();
+				}
+			}
+		});
+		b.run("image.exif", "strip metadata", new Benchmark.Case() {
+			public void run() throws IOException {
+				System.arraycopy(exif, 0, work, 0, exif.length);
+				PooledOutputStream out = ExifRewriter.rewrite(work, work.length, 6, true);
+				if (out != null) {
+					out.release();
+				}
+			}
+		});
+	}
+
+	private static void mimeCases(Benchmark b) throws Exception {
+		final Session session = Session.getInstance(new Properties());
+		final OutputStream devNull = new CountingOutputStream();
+		for (int kb : PHOTO_KB) {
+			final byte[] data = randomBytes(kb * 1024);
+			b.run("mime.base64", "javamail " + kb + "KB", new Benchmark.Case() {
+				public void run() throws Exception {
+					OutputStream out = MimeUtility.encode(devNull, "base64");
+					out.write(data);
+					out.flush();
+				}
+			});
+			final Base64LineEncoder encoder = new Base64LineEncoder();
+			b.run("mime.base64", "encoder " + kb + "KB", new Benchmark.Case() {
+				public void run() throws Exception {
+					encoder.encode(ByteBuffer.wrap(data), devNull);
+				}
+			});
+			for (final int count : PHOTO_COUNTS) {
+				for (final boolean stock : new boolean[] { true, false }) {
+					b.run("mime.writeMessage", (stock ? "javamail " : "attachment ")
+							+ kb + "KB x" + count, new Benchmark.Case() {
+						public void run() throws Exception {
+							message(session, data, count, stock).writeTo(devNull);
+						}
+					});
+				}
+			}
+		}
+	}
+
+	private static void sendCases(Benchmark b, boolean quick) throws Exception {
+		String[][] servers = { {}, { "PIPELINING", "8BITMIME" } };
+		final byte[] data = randomBytes(1024 * 1024);
+		for (String[] extensions : servers) {
+			SmtpSink sink = new SmtpSink(extensions, 0);
+			String offers = extensions.length == 0 ? "plain" : "pipelining";
+			Properties props = new Properties();
+			props.put("mail.smtp.host", "127.0.0.1");
+			props.put("mail.smtp.port", String.valueOf(sink.getPort()));
+			props.put("mail.smtp.from", "snap@example.com");
+			final Session session = Session.getInstance(props);
+			session.setProvider(ChunkingTransport.PROVIDER);
+			final MimeMessage message = message(session, data, 1, false);
+			message.saveChanges();
+
+			b.run("send.cold", offers + " 1MB", new Benchmark.Case() {
+				public void run() throws Exception {
+					Transport t = session.getTransport("smtp");
+					t.connect();
+					try {
+						t.sendMessage(message, message.getAllRecipients());
+					} finally {
+						t.close();
+					}
+				}
+			});
+
+			final Transport warm = session.getTransport("smtp");
+			warm.connect();
+			b.run("send.warm", offers + " 1MB", new Benchmark.Case() {
+				public void run() throws Exception {
+					warm.sendMessage(message, message.getAllRecipients());
+				}
+			});
+			warm.close();
+			sink.close();
+		}
+	}
+
+	private static MimeMessage message(Session session, byte[] data, int count,
+			boolean stock) throws MessagingException {
+		MimeMessage message = new MimeMessage(session);
+		message.setFrom(new InternetAddress("snap@example.com"));
+		message.setRecipients(Message.RecipientType.TO, "someone@example.com");
+		message.setSubject("Snap!");
+		message.setSentDate(new Date());
+		MimeMultipart multipart = new MimeMultipart();
+		MimeBodyPart text = new MimeBodyPart();
+		text.setText("Sent from Snap");
+		multipart.addBodyPart(text);
+		for (int i = 0; i < count; i++) {
+			JpegDataSource source = new JpegDataSource("snap" + i + ".jpg", data, data.length);
+			MimeBodyPart part;
+			if (stock) {
+				part = new MimeBodyPart();
+				part.setDataHandler(new DataHandler(source));
+				part.setFileName(source.getName());
+			} else {
+				part = new AttachmentPart(source, source.getName());
+			}
+			multipart.addBodyPart(part);
+		}
+		message.setContent(multipart);
+		return message;
+	}
+
+	/**
+	 * A camera-sized baseline JPEG with some detail in it, so the entropy
+	 * coded data is a realistic size
+	 */
+	private static byte[] syntheticJpeg(int width, int height) throws IOException {
+		BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		Graphics2D g = image.createGraphics();
+		g.setPaint(new GradientPaint(0, 0, Color.ORANGE, width, height, Color.BLUE));
+		g.fillRect(0, 0, width, height);
+		Random random = new Random(42);
+		for (int i = 0; i < 2000; i++) {
+			g.setColor(new Color(random.nextInt(0x1000000)));
+			g.fillOval(random.nextInt(width), random.nextInt(height),
+					10 + random.nextInt(200), 10 + random.nextInt(200));
+		}
+		g.dispose();
+
+		ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+		ImageWriteParam param = writer.getDefaultWriteParam();
+		param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+		param.setCompressionQuality(0.85f);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		MemoryCacheImageOutputStream stream = new MemoryCacheImageOutputStream(out);
+		writer.setOutput(stream);
+		writer.write(null, new IIOImage(image, null, null), param);
+		stream.close();
+		writer.dispose();
+		return out.toByteArray();
+	}
+
+	private static byte[] randomBytes(int n) {
+		byte[] data = new byte[n];
+		new Random(n).nextBytes(data);
+		return data;
+	}
+
+	private static byte[] copy(PooledOutputStream out) {
+		byte[] data = new byte[out.size()];
+		System.arraycopy(out.getBuffer(), 0, data, 0, data.length);
+		out.release();
+		return data;
+	}
+
+	private static byte[] readFile(String name) throws IOException {
+		File file = new File(name);
+		byte[] data = new byte[(int) file.length()];
+		InputStream in = new FileInputStream(file);
+		try {
+			int n = 0;
+			while (n < data.length) {
+				int r = in.read(data, n, data.length - n);
+				if (r < 0) {
+					break;
+				}
+				n += r;
+			}
+		} finally {
+			in.close();
+		}
+		return data;
+	}
+
+	private static class CountingOutputStream extends OutputStream {
+		long mCount = 0;
+
+		@Override
+		public void write(int b) {
+			mCount++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			mCount += len;
+		}
+	}
+}
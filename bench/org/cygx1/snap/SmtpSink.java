@@ -0,0 +1,214 @@
+package org.cygx1.snap;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Random;
+
+/**
+ * An SMTP server that accepts everything and keeps nothing, for timing the
+ * client side without a network or a real server in the way. It speaks
+ * plain SMTP, with whichever of PIPELINING, CHUNKING and BINARYMIME it is
+ * told to offer, and can wait before each reply to stand in for a slow
+ * link. It can also be told to turn some messages away, or hang up on
+ * them, to see how the client copes with a server having a bad day.
+ */
+public class SmtpSink implements Runnable {
+	private final ServerSocket mServer;
+	private final String[] mExtensions;
+	private final int mReplyDelayMs;
+	private final Random mRandom = new Random();
+	private volatile double mRejectRate = 0;
+	private volatile double mDropRate = 0;
+	private volatile long mMessages = 0;
+	private volatile long mBytes = 0;
+	private volatile long mRejected = 0;
+	private volatile long mDropped = 0;
+
+	/**
+	 * @param extensions - EHLO keywords to offer
+	 * @param replyDelayMs - pause before every reply
+	 */
+	public SmtpSink(String[] extensions, int replyDelayMs) throws IOException {
+		mServer = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+		mExtensions = extensions;
+		mReplyDelayMs = replyDelayMs;
+		Thread t = new Thread(this, "SmtpSink");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	public int getPort() {
+		return mServer.getLocalPort();
+	}
+
+	/**
+	 * @param rejectRate - share of messages answered with a temporary
+	 *            failure once they have been sent
+	 * @param dropRate - share of messages whose connection is closed
+	 *            instead of answered
+	 */
+	public void setFaults(double rejectRate, double dropRate) {
+		mRejectRate = rejectRate;
+		mDropRate = dropRate;
+	}
+
+	/**
+	 * @return messages accepted
+	 */
+	public long getMessages() {
+		return mMessages;
+	}
+
+	/**
+	 * @return bytes of message data received, whatever became of it
+	 */
+	public long getBytes() {
+		return mBytes;
+	}
+
+	public long getRejected() {
+		return mRejected;
+	}
+
+	public long getDropped() {
+		return mDropped;
+	}
+
+	public void close() throws IOException {
+		mServer.close();
+	}
+
+	public void run() {
+		while (!mServer.isClosed()) {
+			try {
+				final Socket s = mServer.accept();
+				Thread t = new Thread("SmtpSink-" + s.getPort()) {
+					@Override
+					public void run() {
+						try {
+							serve(s);
+						} catch (IOException e) {
+							// The client went away
+						} finally {
+							try {
+								s.close();
+							} catch (IOException e) {
+							}
+						}
+					}
+				};
+				t.setDaemon(true);
+				t.start();
+			} catch (IOException e) {
+				return;
+			}
+		}
+	}
+
+	private void serve(Socket s) throws IOException {
+		s.setTcpNoDelay(true);
+		InputStream in = new BufferedInputStream(s.getInputStream(), 64 * 1024);
+		OutputStream out = s.getOutputStream();
+		reply(out, "220 sink ESMTP");
+		String line;
+		while ((line = readLine(in)) != null) {
+			String verb = line.length() >= 4 ? line.substring(0, 4).toUpperCase() : line;
+			if (verb.equals("EHLO")) {
+				StringBuilder r = new StringBuilder("250-sink");
+				for (String e : mExtensions) {
+					r.append("\r\n250-").append(e);
+				}
+				r.append("\r\n250 SIZE 0");
+				reply(out, r.toString());
+			} else if (verb.equals("HELO") || verb.equals("MAIL") || verb.equals("RCPT")
+					|| verb.equals("RSET") || verb.equals("NOOP")) {
+				reply(out, "250 OK");
+			} else if (verb.equals("DATA")) {
+				reply(out, "354 go ahead");
+				String body;
+				while ((body = readLine(in)) != null && !body.equals(".")) {
+					mBytes += body.length() + 2;
+				}
+				if (!endOfMessage(out)) {
+					return;
+				}
+			} else if (verb.equals("BDAT")) {
+				String[] words = line.split(" ");
+				long n = Long.parseLong(words[1]);
+				mBytes += n;
+				while (n > 0) {
+					long skipped = in.skip(n);
+					if (skipped <= 0) {
+						if (in.read() < 0) {
+							return;
+						}
+						skipped = 1;
+					}
+					n -= skipped;
+				}
+				if (words.length <= 2 || !words[2].equalsIgnoreCase("LAST")) {
+					reply(out, "250 OK");
+				} else if (!endOfMessage(out)) {
+					return;
+				}
+			} else if (verb.equals("QUIT")) {
+				reply(out, "221 bye");
+				return;
+			} else {
+				reply(out, "502 not here");
+			}
+		}
+	}
+
+	/**
+	 * Answer a whole message, or fail it if that's what the dice say
+	 * @return false to hang up
+	 */
+	private boolean endOfMessage(OutputStream out) throws IOException {
+		double roll = mRandom.nextDouble();
+		if (roll < mDropRate) {
+			mDropped++;
+			return false;
+		}
+		if (roll < mDropRate + mRejectRate) {
+			mRejected++;
+			reply(out, "451 try again later");
+		} else {
+			mMessages++;
+			reply(out, "250 OK");
+		}
+		return true;
+	}
+
+	private void reply(OutputStream out, String reply) throws IOException {
+		if (mReplyDelayMs > 0) {
+			try {
+				Thread.sleep(mReplyDelayMs);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		out.write((reply + "\r\n").getBytes("US-ASCII"));
+		out.flush();
+	}
+
+	private static String readLine(InputStream in) throws IOException {
+		ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+		int c;
+		while ((c = in.read()) >= 0) {
+			if (c == '\n') {
+				int n = line.size();
+				byte[] b = line.toByteArray();
+				return new String(b, 0, n > 0 && b[n - 1] == '\r' ? n - 1 : n, "ISO-8859-1");
+			}
+			line.write(c);
+		}
+		return null;
+	}
+}
@@ -0,0 +1,65 @@
+package org.cygx1.snap;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Enumeration;
+
+import javax.activation.DataHandler;
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeBodyPart;
+
+/**
+ * A body part for a photo that writes itself out straight from the
+ * BufferDataSource's bytes: base64 through a Base64LineEncoder, or as they
+ * are for binary. JavaMail's own route is a chain of small buffered streams
+ * and an encoder stream that allocates as it goes.
+ *
+ * The part is marked base64 from the start, which also saves JavaMail
+ * reading the whole photo to work out an encoding for it. Mail switches it
+ * to binary when the server can take that.
+ */
+public class AttachmentPart extends MimeBodyPart {
+	private static final byte[] CRLF = { '\r', '\n' };
+
+	private final BufferDataSource mSource;
+
+	public AttachmentPart(BufferDataSource source, String filename)
+			throws MessagingException {
+		mSource = source;
+		setDataHandler(new DataHandler(source));
+		setFileName(filename);
+		setHeader("Content-Transfer-Encoding", "base64");
+	}
+
+	@Override
+	public void writeTo(OutputStream out) throws IOException, MessagingException {
+		String encoding = getEncoding();
+		boolean base64 = "base64".equalsIgnoreCase(encoding);
+		if (!base64 && !"binary".equalsIgnoreCase(encoding)) {
+			super.writeTo(out);
+			return;
+		}
+
+		Enumeration<?> lines = getAllHeaderLines();
+		while (lines.hasMoreElements()) {
+			out.write(((String) lines.nextElement()).getBytes("US-ASCII"));
+			out.write(CRLF);
+		}
+		out.write(CRLF);
+
+		ByteBuffer data = mSource.getBuffer();
+		if (base64) {
+			new Base64LineEncoder().encode(data, out);
+		} else if (data.hasArray()) {
+			out.write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+		} else {
+			byte[] chunk = new byte[Math.min(data.remaining(), 64 * 1024)];
+			while (data.hasRemaining()) {
+				int n = Math.min(chunk.length, data.remaining());
+				data.get(chunk, 0, n);
+				out.write(chunk, 0, n);
+			}
+		}
+	}
+}
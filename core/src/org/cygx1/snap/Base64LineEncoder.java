@@ -0,0 +1,85 @@
+package org.cygx1.snap;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * MIME base64: 76 characters to a line, lines ending in CRLF. Encodes a
+ * block of lines at a time into one buffer and hands that to the output
+ * stream in a single write, with no allocation after construction.
+ */
+final class Base64LineEncoder {
+	private static final byte[] ALPHABET = ("ABCDEFGHIJKLMNOPQRSTUVWXYZ"
+			+ "abcdefghijklmnopqrstuvwxyz0123456789+/").getBytes();
+	// 57 bytes of input make a full 76 character line
+	private static final int LINE_INPUT = 57;
+	private static final int LINE_OUTPUT = 78;
+	private static final int LINES_PER_BLOCK = 128;
+
+	private final byte[] mIn = new byte[LINE_INPUT * LINES_PER_BLOCK];
+	private final byte[] mOut = new byte[LINE_OUTPUT * LINES_PER_BLOCK];
+
+	/**
+	 * Encode everything left in the buffer
+	 */
+	void encode(ByteBuffer src, OutputStream out) throws IOException {
+		if (src.hasArray()) {
+			// Read straight out of the array, no copying
+			byte[] array = src.array();
+			int offset = src.arrayOffset() + src.position();
+			int end = offset + src.remaining();
+			while (offset < end) {
+				int n = Math.min(end - offset, mIn.length);
+				out.write(mOut, 0, encodeBlock(array, offset, n));
+				offset += n;
+			}
+			src.position(src.limit());
+		} else {
+			while (src.hasRemaining()) {
+				int n = Math.min(src.remaining(), mIn.length);
+				src.get(mIn, 0, n);
+				out.write(mOut, 0, encodeBlock(mIn, 0, n));
+			}
+		}
+	}
+
+	/**
+	 * @return number of bytes of mOut used
+	 */
+	private int encodeBlock(byte[] in, int offset, int length) {
+		int end = offset + length;
+		int o = 0;
+		while (offset < end) {
+			int lineEnd = Math.min(end, offset + LINE_INPUT);
+			// whole groups of 3
+			while (lineEnd - offset >= 3) {
+				int v = ((in[offset] & 0xff) << 16) | ((in[offset + 1] & 0xff) << 8)
+						| (in[offset + 2] & 0xff);
+				mOut[o] = ALPHABET[v >>> 18];
+				mOut[o + 1] = ALPHABET[(v >>> 12) & 0x3f];
+				mOut[o + 2] = ALPHABET[(v >>> 6) & 0x3f];
+				mOut[o + 3] = ALPHABET[v & 0x3f];
+				o += 4;
+				offset += 3;
+			}
+			// and what's left over at the very end, padded
+			int left = lineEnd - offset;
+			if (left > 0) {
+				int v = (in[offset] & 0xff) << 16;
+				if (left == 2) {
+					v |= (in[offset + 1] & 0xff) << 8;
+				}
+				mOut[o] = ALPHABET[v >>> 18];
+				mOut[o + 1] = ALPHABET[(v >>> 12) & 0x3f];
+				mOut[o + 2] = left == 2 ? ALPHABET[(v >>> 6) & 0x3f] : (byte) '=';
+				mOut[o + 3] = (byte) '=';
+				o += 4;
+				offset += left;
+			}
+			mOut[o++] = '\r';
+			mOut[o++] = '\n';
+		}
+		return o;
+	}
+}
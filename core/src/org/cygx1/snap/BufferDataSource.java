@@ -0,0 +1,18 @@
+package org.cygx1.snap;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import javax.activation.DataSource;
+
+/**
+ * A DataSource whose bytes can be had all at once as a ByteBuffer, so
+ * AttachmentPart can encode them without going through an InputStream
+ */
+public interface BufferDataSource extends DataSource {
+	/**
+	 * @return a buffer over the data, positioned at its start, for the
+	 *         caller alone to read from
+	 */
+	ByteBuffer getBuffer() throws IOException;
+}
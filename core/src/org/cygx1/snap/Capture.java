@@ -0,0 +1,124 @@
+package org.cygx1.snap;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One tap of the shutter: takes a picture, or a burst of them, from a
+ * CaptureSource, cuts out the part that's wanted if it isn't all of it,
+ * tags each with the way up it was taken, and hands the lot to the
+ * outbox. The pictures are written out by the outbox on its own
+ * thread, so nothing here touches the disk.
+ */
+public class Capture implements CaptureSource.Callback {
+	private static final String TAG = "Snap";
+
+	/**
+	 * Told when the pictures are in the outbox
+	 */
+	public interface Listener {
+		void onCaptured(List<Photo> photos);
+	}
+
+	private final CaptureSource mSource;
+	private final Outbox mOutbox;
+	private final PhotoStore mStore;
+	private final int mShots;
+	private final boolean mStrip;
+	private final Listener mListener;
+	// The part of each picture to keep, as fractions; null for all of it
+	private float[] mCrop = null;
+	// Only for bursts
+	private FrameRing mRing = null;
+	private final List<Photo> mPhotos = new ArrayList<Photo>();
+	// When the shutter was tapped, for the SendRecord
+	private long mTapTime = 0;
+
+	/**
+	 * @param store - where the pictures are written
+	 * @param shots - pictures to take; more than one is a burst
+	 * @param strip - drop the metadata the recipient has no use for
+	 */
+	public Capture(CaptureSource source, Outbox outbox, PhotoStore store, int shots,
+			boolean strip, Listener listener) {
+		mSource = source;
+		mOutbox = outbox;
+		mStore = store;
+		mShots = Math.max(1, shots);
+		mStrip = strip;
+		mListener = listener;
+	}
+
+	/**
+	 * Keep only part of each picture, cut out without re-encoding it
+	 * @param left, top, right, bottom - fractions of the width and height
+	 */
+	public void setCrop(float left, float top, float right, float bottom) {
+		mCrop = new float[] { left, top, right, bottom };
+	}
+
+	public void start() {
+		mTapTime = System.nanoTime();
+		if (mShots > 1) {
+			mRing = new FrameRing(mShots, mSource.getExpectedPictureBytes());
+		}
+		mSource.takePicture(this);
+	}
+
+	public void onPictureTaken(byte[] jpeg, int length) {
+		long taken = System.nanoTime();
+		File file = mStore.newFile();
+		byte[] data = mRing == null ? jpeg : mRing.put(jpeg, length);
+		Photo photo = prepare(file, data, length);
+		photo.setCaptureTimes(mTapTime, taken);
+		mPhotos.add(photo);
+		if (mPhotos.size() < mShots) {
+			// Bursting: go again, and send the lot together once the ring
+			// is full
+			mSource.takeAnother(this);
+			return;
+		}
+		if (mRing != null) {
+			mRing.release();
+			mOutbox.enqueue(mPhotos);
+		} else {
+			mOutbox.enqueue(photo);
+		}
+		if (mListener != null) {
+			mListener.onCaptured(mPhotos);
+		}
+	}
+
+	/**
+	 * Cut out the part of the picture that's wanted, tag it with the way up
+	 * it was taken, and drop the metadata if asked to
+	 */
+	private Photo prepare(File file, byte[] data, int length) {
+		if (mCrop != null) {
+			try {
+				PooledOutputStream cropped = JpegCropper.crop(data, length, mCrop[0], mCrop[1],
+						mCrop[2], mCrop[3]);
+				if (cropped != null) {
+					JpegBufferPool.getInstance().release(data);
+					data = cropped.getBuffer();
+					length = cropped.size();
+				}
+			} catch (IOException e) {
+				Log.w(TAG, "Unable to crop the picture, sending all of it", e);
+			}
+		}
+		int orientation = ExifRewriter.orientationFor(mSource.getPictureRotation());
+		try {
+			PooledOutputStream out = ExifRewriter.rewrite(data, length, orientation, mStrip);
+			if (out != null) {
+				JpegBufferPool.getInstance().release(data);
+				return new Photo(file, out.getBuffer(), out.size());
+			}
+		} catch (IOException e) {
+			Log.w(TAG, "Unable to set the picture orientation", e);
+		}
+		return new Photo(file, data, length);
+	}
+}
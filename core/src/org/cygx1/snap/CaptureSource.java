@@ -0,0 +1,36 @@
+package org.cygx1.snap;
+
+/**
+ * Something that takes pictures: the camera on a phone, or a generator of
+ * synthetic ones anywhere else
+ */
+public interface CaptureSource {
+	/**
+	 * Called with each picture, as a JPEG in the first length bytes of jpeg
+	 */
+	interface Callback {
+		void onPictureTaken(byte[] jpeg, int length);
+	}
+
+	/**
+	 * Take the first picture of a shot, once the source has settled
+	 */
+	void takePicture(Callback callback);
+
+	/**
+	 * Take another picture of the same shot, straight away
+	 */
+	void takeAnother(Callback callback);
+
+	/**
+	 * @return roughly how big the pictures will be, or 0 if there's no
+	 *         telling
+	 */
+	int getExpectedPictureBytes();
+
+	/**
+	 * @return how far a picture taken now needs turning clockwise to be
+	 *         upright: 0, 90, 180 or 270
+	 */
+	int getPictureRotation();
+}
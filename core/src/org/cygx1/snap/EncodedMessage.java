@@ -0,0 +1,152 @@
+package org.cygx1.snap;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Enumeration;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+/**
+ * A message that has been written out once, headers, MIME structure,
+ * encoded attachments and all, and from then on is only ever copied. Any
+ * number of transports can send it at once, each reading the same bytes.
+ *
+ * The headers are kept too, so the transport can find the sender, but
+ * nothing can be changed any more: saving changes leaves the bytes, and the
+ * Message-ID, as they are.
+ *
+ * The bytes start out in a pooled buffer. spill() moves them to a file,
+ * for when the message has to wait around for a retry.
+ */
+public class EncodedMessage extends MimeMessage {
+	private static final int COPY_SIZE = 64 * 1024;
+
+	private ByteBuffer mData;
+	private PooledOutputStream mPooled;
+	private File mSpill;
+
+	/**
+	 * Write out a message, which should have had its changes saved
+	 * @param sizeHint - roughly how big it will be
+	 */
+	public static EncodedMessage encode(Session session, MimeMessage message,
+			int sizeHint) throws MessagingException, IOException {
+		PooledOutputStream out = new PooledOutputStream(sizeHint);
+		try {
+			message.writeTo(out);
+			return new EncodedMessage(session, message, out);
+		} catch (IOException e) {
+			out.release();
+			throw e;
+		} catch (MessagingException e) {
+			out.release();
+			throw e;
+		}
+	}
+
+	private EncodedMessage(Session session, MimeMessage source, PooledOutputStream out)
+			throws MessagingException {
+		super(session);
+		Enumeration<?> lines = source.getAllHeaderLines();
+		while (lines.hasMoreElements()) {
+			headers.addHeaderLine((String) lines.nextElement());
+		}
+		mPooled = out;
+		mData = ByteBuffer.wrap(out.getBuffer(), 0, out.size());
+		modified = false;
+		saved = true;
+	}
+
+	@Override
+	protected void updateHeaders() {
+		// Already written out
+	}
+
+	@Override
+	public synchronized int getSize() {
+		return mData != null ? mData.remaining() : -1;
+	}
+
+	@Override
+	public void writeTo(OutputStream out) throws IOException {
+		writeTo(out, null);
+	}
+
+	/**
+	 * Write the bytes as they are; the headers to leave out, Bcc and
+	 * Content-Length, were never set
+	 */
+	@Override
+	public void writeTo(OutputStream out, String[] ignoreList) throws IOException {
+		ByteBuffer data;
+		synchronized (this) {
+			if (mData == null) {
+				throw new IOException("Message has been released");
+			}
+			data = mData.duplicate();
+		}
+		if (data.hasArray()) {
+			out.write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+			return;
+		}
+		byte[] buffer = new byte[Math.min(COPY_SIZE, data.remaining())];
+		while (data.hasRemaining()) {
+			int n = Math.min(buffer.length, data.remaining());
+			data.get(buffer, 0, n);
+			out.write(buffer, 0, n);
+		}
+	}
+
+	/**
+	 * Move the bytes out of memory and into a file, mapped for reading
+	 */
+	public synchronized void spill(File file) throws IOException {
+		if (mPooled == null) {
+			return;
+		}
+		file.getParentFile().mkdirs();
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			FileChannel channel = out.getChannel();
+			ByteBuffer data = mData.duplicate();
+			while (data.hasRemaining()) {
+				channel.write(data);
+			}
+		} finally {
+			out.close();
+		}
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = in.getChannel();
+			// The mapping stays valid after the channel is closed
+			mData = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		} finally {
+			in.close();
+		}
+		mSpill = file;
+		mPooled.release();
+		mPooled = null;
+	}
+
+	/**
+	 * Done sending: give back the buffer, or delete the file
+	 */
+	public synchronized void release() {
+		if (mPooled != null) {
+			mPooled.release();
+			mPooled = null;
+		}
+		if (mSpill != null) {
+			mSpill.delete();
+			mSpill = null;
+		}
+		mData = null;
+	}
+}
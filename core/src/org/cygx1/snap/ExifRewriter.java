@@ -0,0 +1,452 @@
+package org.cygx1.snap;
+
+import java.io.IOException;
+
+/**
+ * Sets the EXIF orientation of a JPEG, and optionally strips the metadata
+ * nobody on the receiving end needs, without touching the image data.
+ *
+ * If the photo already has an Orientation tag and nothing is to be
+ * stripped, the tag is patched where it is. Otherwise the EXIF segment is
+ * rebuilt in a single pass: IFD0 and the Exif sub-IFD are copied across,
+ * minus the thumbnail (IFD1), the maker note and the GPS block when
+ * stripping, and everything else in the file is copied verbatim.
+ */
+public class ExifRewriter {
+	private static final int TAG_ORIENTATION = 0x0112;
+	private static final int TAG_EXIF_IFD = 0x8769;
+	private static final int TAG_GPS_IFD = 0x8825;
+	private static final int TAG_INTEROP_IFD = 0xa005;
+	private static final int TAG_MAKER_NOTE = 0x927c;
+	private static final int TAG_THUMBNAIL_OFFSET = 0x0201;
+	private static final int TAG_THUMBNAIL_LENGTH = 0x0202;
+
+	private static final int TYPE_SHORT = 3;
+	private static final int TYPE_LONG = 4;
+	// Bytes per value, by TIFF field type
+	private static final int[] TYPE_SIZES = { 0, 1, 1, 2, 4, 8, 1, 1, 2, 4, 8, 4, 8 };
+
+	// "Exif\0\0"
+	private static final byte[] EXIF_HEADER = { 'E', 'x', 'i', 'f', 0, 0 };
+	private static final int MAX_SEGMENT = 0xffff;
+
+	/**
+	 * The EXIF orientation that makes a viewer turn the picture clockwise by
+	 * the given amount
+	 * @param degrees - 0, 90, 180 or 270
+	 */
+	public static int orientationFor(int degrees) {
+		switch (((degrees % 360) + 360) % 360) {
+		case 90:
+			return 6;
+		case 180:
+			return 3;
+		case 270:
+			return 8;
+		default:
+			return 1;
+		}
+	}
+
+	/**
+	 * Set the orientation of a JPEG, stripping metadata along the way if
+	 * asked to
+	 * @param orientation - EXIF orientation value, 1 to 8
+	 * @return the rewritten JPEG, or null if the change was made in place in
+	 *         jpeg
+	 */
+	public static PooledOutputStream rewrite(byte[] jpeg, int length,
+			int orientation, boolean strip) throws IOException {
+		ExifRewriter rewriter = new ExifRewriter(jpeg, length, orientation, strip);
+		return rewriter.run();
+	}
+
+	private final byte[] mData;
+	private final int mLength;
+	private final int mOrientation;
+	private final boolean mStrip;
+
+	// The TIFF structure being read: start of its header, end of the APP1
+	// segment, and its byte order
+	private int mTiff;
+	private int mTiffEnd;
+	private boolean mLittleEndian;
+	private int mDepth;
+
+	// The TIFF structure being written
+	private byte[] mOut;
+	private int mOutSize;
+
+	private ExifRewriter(byte[] data, int length, int orientation, boolean strip) {
+		mData = data;
+		mLength = length;
+		mOrientation = orientation;
+		mStrip = strip;
+	}
+
+	private PooledOutputStream run() throws IOException {
+		if (mLength < 4 || (mData[0] & 0xff) != 0xff
+				|| (mData[1] & 0xff) != JpegReader.SOI) {
+			throw new IOException("Not a JPEG");
+		}
+
+		// Find the EXIF segment, and where a new one would go if there
+		// isn't one: after any JFIF header, before everything else
+		int insertAt = 2;
+		int exifStart = -1;
+		int exifEnd = -1;
+		int pos = 2;
+		while (pos + 4 <= mLength && (mData[pos] & 0xff) == 0xff) {
+			int marker = mData[pos + 1] & 0xff;
+			if (marker == JpegReader.SOS || marker == JpegReader.EOI) {
+				break;
+			}
+			if (marker == 0xff) {
+				// fill byte
+				pos++;
+				continue;
+			}
+			int next = pos + 2 + u16be(pos + 2);
+			if (next > mLength) {
+				throw new IOException("Truncated JPEG segment");
+			}
+			if (marker == JpegReader.APP0 && insertAt == pos) {
+				insertAt = next;
+			} else if (marker == JpegReader.APP1 && exifStart < 0
+					&& isExif(pos + 4, next)) {
+				exifStart = pos;
+				exifEnd = next;
+			}
+			pos = next;
+		}
+
+		if (exifStart >= 0) {
+			mTiff = exifStart + 4 + EXIF_HEADER.length;
+			mTiffEnd = exifEnd;
+			readTiffHeader();
+			if (!mStrip && patchOrientation()) {
+				return null;
+			}
+		}
+
+		byte[] tiff = buildTiff(exifStart >= 0);
+		int segmentLength = 2 + EXIF_HEADER.length + mOutSize;
+		if (segmentLength > MAX_SEGMENT) {
+			throw new IOException("EXIF data too big");
+		}
+
+		int before = exifStart >= 0 ? exifStart : insertAt;
+		int after = exifStart >= 0 ? exifEnd : insertAt;
+		PooledOutputStream out = new PooledOutputStream(mLength
+				- (after - before) + segmentLength + 2);
+		out.write(mData, 0, before);
+		out.write(0xff);
+		out.write(JpegReader.APP1);
+		out.write(segmentLength >> 8);
+		out.write(segmentLength);
+		out.write(EXIF_HEADER, 0, EXIF_HEADER.length);
+		out.write(tiff, 0, mOutSize);
+		out.write(mData, after, mLength - after);
+		return out;
+	}
+
+	private boolean isExif(int start, int end) {
+		if (end - start < EXIF_HEADER.length + 8) {
+			return false;
+		}
+		for (int i = 0; i < EXIF_HEADER.length; i++) {
+			if (mData[start + i] != EXIF_HEADER[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private int u16be(int offset) {
+		return ((mData[offset] & 0xff) << 8) | (mData[offset + 1] & 0xff);
+	}
+
+	private void readTiffHeader() throws IOException {
+		if (mData[mTiff] == 'I' && mData[mTiff + 1] == 'I') {
+			mLittleEndian = true;
+		} else if (mData[mTiff] == 'M' && mData[mTiff + 1] == 'M') {
+			mLittleEndian = false;
+		} else {
+			throw new IOException("Bad TIFF byte order");
+		}
+		if (u16(2) != 42) {
+			throw new IOException("Bad TIFF header");
+		}
+	}
+
+	/**
+	 * Offsets here are relative to the TIFF header, as they are in the file
+	 */
+	private int u16(int offset) throws IOException {
+		check(offset, 2);
+		int p = mTiff + offset;
+		int a = mData[p] & 0xff;
+		int b = mData[p + 1] & 0xff;
+		return mLittleEndian ? (b << 8) | a : (a << 8) | b;
+	}
+
+	private int u32(int offset) throws IOException {
+		check(offset, 4);
+		int p = mTiff + offset;
+		int v = 0;
+		for (int i = 0; i < 4; i++) {
+			int b = mData[p + (mLittleEndian ? 3 - i : i)] & 0xff;
+			v = (v << 8) | b;
+		}
+		return v;
+	}
+
+	private void check(int offset, int size) throws IOException {
+		if (offset < 0 || size < 0 || mTiff + offset + size > mTiffEnd) {
+			throw new IOException("Corrupt EXIF data");
+		}
+	}
+
+	/**
+	 * Overwrite an existing IFD0 Orientation tag
+	 * @return false if there isn't one to overwrite
+	 */
+	private boolean patchOrientation() throws IOException {
+		int ifd = u32(4);
+		int count = u16(ifd);
+		for (int i = 0; i < count; i++) {
+			int entry = ifd + 2 + i * 12;
+			if (u16(entry) == TAG_ORIENTATION && u16(entry + 2) == TYPE_SHORT) {
+				check(entry + 8, 2);
+				int p = mTiff + entry + 8;
+				mData[p + (mLittleEndian ? 0 : 1)] = (byte) mOrientation;
+				mData[p + (mLittleEndian ? 1 : 0)] = 0;
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Build the new TIFF structure in mOut
+	 * @param copy - whether there's an existing one to copy from
+	 */
+	private byte[] buildTiff(boolean copy) throws IOException {
+		mOut = new byte[copy ? mTiffEnd - mTiff + 12 : 64];
+		mOutSize = 8;
+		if (!copy) {
+			mLittleEndian = false;
+		}
+		mOut[0] = mOut[1] = (byte) (mLittleEndian ? 'I' : 'M');
+		put16(2, 42);
+		put32(4, 8);
+		if (copy) {
+			copyIfd(u32(4), true);
+		} else {
+			writeOrientation(reserveIfd(1), 0);
+		}
+		return mOut;
+	}
+
+	private int reserveIfd(int entries) {
+		align();
+		int start = mOutSize;
+		grow(2 + entries * 12 + 4);
+		put16(start, entries);
+		return start;
+	}
+
+	/**
+	 * Copy one IFD, and whatever it points to, to the end of mOut
+	 * @return where the copy starts
+	 */
+	private int copyIfd(int ifd, boolean ifd0) throws IOException {
+		int count = u16(ifd);
+		// IFD0 -> Exif -> Interop, plus IFD1, is as deep as it goes
+		if (count > 1000 || ++mDepth > 4) {
+			throw new IOException("Corrupt EXIF data");
+		}
+
+		// Decide which entries to keep before laying anything out
+		int[] keep = new int[count];
+		int kept = 0;
+		boolean hasOrientation = false;
+		for (int i = 0; i < count; i++) {
+			int entry = ifd + 2 + i * 12;
+			int tag = u16(entry);
+			if (mStrip && (tag == TAG_GPS_IFD || tag == TAG_MAKER_NOTE)) {
+				continue;
+			}
+			if (ifd0 && tag == TAG_ORIENTATION) {
+				hasOrientation = true;
+			}
+			keep[kept++] = entry;
+		}
+		boolean addOrientation = ifd0 && !hasOrientation;
+
+		int start = reserveIfd(kept + (addOrientation ? 1 : 0));
+		int slot = 0;
+		for (int i = 0; i < kept; i++) {
+			int entry = keep[i];
+			int tag = u16(entry);
+			if (addOrientation && tag > TAG_ORIENTATION) {
+				// entries are sorted by tag
+				writeOrientation(start, slot++);
+				addOrientation = false;
+			}
+			int type = u16(entry + 2);
+			int n = u32(entry + 4);
+			int size = type < TYPE_SIZES.length ? TYPE_SIZES[type] * n : 0;
+			if (n < 0 || size < 0) {
+				throw new IOException("Corrupt EXIF data");
+			}
+
+			int value;
+			if (tag == TAG_EXIF_IFD || tag == TAG_GPS_IFD || tag == TAG_INTEROP_IFD) {
+				value = copyIfd(u32(entry + 8), false);
+				type = TYPE_LONG;
+				n = 1;
+				value = raw32(value);
+			} else if (ifd0 && tag == TAG_ORIENTATION) {
+				type = TYPE_SHORT;
+				n = 1;
+				value = raw16(mOrientation);
+			} else if (size > 4) {
+				int from = u32(entry + 8);
+				check(from, size);
+				align();
+				int to = mOutSize;
+				grow(size);
+				System.arraycopy(mData, mTiff + from, mOut, to, size);
+				value = raw32(to);
+			} else {
+				check(entry + 8, 4);
+				value = raw(entry + 8);
+			}
+			writeEntry(start, slot++, tag, type, n, value);
+		}
+		if (addOrientation) {
+			writeOrientation(start, slot++);
+		}
+
+		int next = 0;
+		if (ifd0 && !mStrip) {
+			int ifd1 = u32(ifd + 2 + count * 12);
+			if (ifd1 != 0) {
+				next = copyThumbnailIfd(ifd1);
+			}
+		}
+		put32(start + 2 + slot * 12, next);
+		mDepth--;
+		return start;
+	}
+
+	/**
+	 * Copy IFD1 along with the thumbnail JPEG it points to
+	 */
+	private int copyThumbnailIfd(int ifd) throws IOException {
+		int count = u16(ifd);
+		int thumbnail = -1;
+		int thumbnailLength = 0;
+		for (int i = 0; i < count; i++) {
+			int entry = ifd + 2 + i * 12;
+			int tag = u16(entry);
+			if (tag == TAG_THUMBNAIL_OFFSET) {
+				thumbnail = u32(entry + 8);
+			} else if (tag == TAG_THUMBNAIL_LENGTH) {
+				thumbnailLength = u32(entry + 8);
+			}
+		}
+		int start = copyIfd(ifd, false);
+		if (thumbnail >= 0) {
+			check(thumbnail, thumbnailLength);
+			int to = mOutSize;
+			grow(thumbnailLength);
+			System.arraycopy(mData, mTiff + thumbnail, mOut, to, thumbnailLength);
+			for (int i = 0; i < count; i++) {
+				int entry = start + 2 + i * 12;
+				if (get16(entry) == TAG_THUMBNAIL_OFFSET) {
+					put32(entry + 8, to);
+				}
+			}
+		}
+		return start;
+	}
+
+	private void writeOrientation(int ifd, int slot) {
+		writeEntry(ifd, slot, TAG_ORIENTATION, TYPE_SHORT, 1, raw16(mOrientation));
+	}
+
+	/**
+	 * @param value - the 4 value bytes as they appear in the file, read
+	 *            big-endian
+	 */
+	private void writeEntry(int ifd, int slot, int tag, int type, int count, int value) {
+		int p = ifd + 2 + slot * 12;
+		put16(p, tag);
+		put16(p + 2, type);
+		put32(p + 4, count);
+		mOut[p + 8] = (byte) (value >>> 24);
+		mOut[p + 9] = (byte) (value >>> 16);
+		mOut[p + 10] = (byte) (value >>> 8);
+		mOut[p + 11] = (byte) value;
+	}
+
+	/**
+	 * The 4 bytes at an offset, as they appear in the file
+	 */
+	private int raw(int offset) {
+		int p = mTiff + offset;
+		return ((mData[p] & 0xff) << 24) | ((mData[p + 1] & 0xff) << 16)
+				| ((mData[p + 2] & 0xff) << 8) | (mData[p + 3] & 0xff);
+	}
+
+	/**
+	 * A 16-bit value as the 4 bytes it would appear as in the file, padded
+	 */
+	private int raw16(int v) {
+		return mLittleEndian ? ((v & 0xff) << 24) | ((v & 0xff00) << 8) : v << 16;
+	}
+
+	/**
+	 * A 32-bit value as the 4 bytes it would appear as in the file
+	 */
+	private int raw32(int v) {
+		return mLittleEndian ? Integer.reverseBytes(v) : v;
+	}
+
+	private void align() {
+		if ((mOutSize & 1) != 0) {
+			grow(1);
+		}
+	}
+
+	private void grow(int n) {
+		if (mOutSize + n > mOut.length) {
+			byte[] bigger = new byte[Math.max(mOutSize + n, mOut.length * 2)];
+			System.arraycopy(mOut, 0, bigger, 0, mOutSize);
+			mOut = bigger;
+		}
+		for (int i = 0; i < n; i++) {
+			mOut[mOutSize + i] = 0;
+		}
+		mOutSize += n;
+	}
+
+	private int get16(int p) {
+		int a = mOut[p] & 0xff;
+		int b = mOut[p + 1] & 0xff;
+		return mLittleEndian ? (b << 8) | a : (a << 8) | b;
+	}
+
+	private void put16(int p, int v) {
+		mOut[p + (mLittleEndian ? 0 : 1)] = (byte) v;
+		mOut[p + (mLittleEndian ? 1 : 0)] = (byte) (v >> 8);
+	}
+
+	private void put32(int p, int v) {
+		for (int i = 0; i < 4; i++) {
+			mOut[p + (mLittleEndian ? i : 3 - i)] = (byte) (v >> (8 * i));
+		}
+	}
+}
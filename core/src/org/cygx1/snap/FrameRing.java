@@ -0,0 +1,61 @@
+package org.cygx1.snap;
+
+/**
+ * Buffers for the pictures of a burst, taken from the JpegBufferPool before
+ * the first shot so that nothing has to be allocated between shots. Each
+ * picture is copied into the next slot, letting go of the camera's own
+ * array straight away, and the slot's buffer then belongs to whoever took
+ * it: it goes back to the pool with the Photo it ends up in, ready for the
+ * next burst.
+ */
+public class FrameRing {
+	private final byte[][] mSlots;
+	private int mNext = 0;
+
+	/**
+	 * @param count - pictures in the burst
+	 * @param expectedBytes - how big each picture is likely to be; 0 if
+	 *            there's no telling
+	 */
+	public FrameRing(int count, int expectedBytes) {
+		mSlots = new byte[count][];
+		if (expectedBytes > 0) {
+			for (int i = 0; i < count; i++) {
+				mSlots[i] = JpegBufferPool.getInstance().acquire(expectedBytes);
+			}
+		}
+	}
+
+	/**
+	 * Copy a picture into the next slot
+	 * @return the slot's buffer, now the caller's to release to the pool
+	 */
+	public byte[] put(byte[] data, int length) {
+		byte[] slot = mSlots[mNext];
+		mSlots[mNext++] = null;
+		if (slot == null || slot.length < length) {
+			if (slot != null) {
+				JpegBufferPool.getInstance().release(slot);
+			}
+			slot = JpegBufferPool.getInstance().acquire(length);
+		}
+		System.arraycopy(data, 0, slot, 0, length);
+		return slot;
+	}
+
+	public boolean isFull() {
+		return mNext == mSlots.length;
+	}
+
+	/**
+	 * Return the slots that were never used, e.g. when a burst is cut short
+	 */
+	public void release() {
+		for (int i = mNext; i < mSlots.length; i++) {
+			if (mSlots[i] != null) {
+				JpegBufferPool.getInstance().release(mSlots[i]);
+				mSlots[i] = null;
+			}
+		}
+	}
+}
@@ -0,0 +1,267 @@
+package org.cygx1.snap;
+
+import java.io.IOException;
+
+/**
+ * A JPEG Huffman table, usable for both decoding and encoding.
+ *
+ * Tables are described the way DHT segments describe them: bits[i] is the
+ * number of codes of length i+1, and values lists the symbols in order of
+ * increasing code length.
+ */
+final class HuffmanTable {
+	// Annex K.3 tables, used by pretty much every camera
+	static final HuffmanTable DC_LUMINANCE = new HuffmanTable(
+			new int[] { 0, 1, 5, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0, 0, 0 },
+			new int[] { 0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11 });
+	static final HuffmanTable DC_CHROMINANCE = new HuffmanTable(
+			new int[] { 0, 3, 1, 1, 1, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0 },
+			new int[] { 0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11 });
+	static final HuffmanTable AC_LUMINANCE = new HuffmanTable(
+			new int[] { 0, 2, 1, 3, 3, 2, 4, 3, 5, 5, 4, 4, 0, 0, 1, 0x7d },
+			new int[] { 0x01, 0x02, 0x03, 0x00, 0x04, 0x11, 0x05, 0x12, 0x21,
+					0x31, 0x41, 0x06, 0x13, 0x51, 0x61, 0x07, 0x22, 0x71, 0x14,
+					0x32, 0x81, 0x91, 0xa1, 0x08, 0x23, 0x42, 0xb1, 0xc1, 0x15,
+					0x52, 0xd1, 0xf0, 0x24, 0x33, 0x62, 0x72, 0x82, 0x09, 0x0a,
+					0x16, 0x17, 0x18, 0x19, 0x1a, 0x25, 0x26, 0x27, 0x28, 0x29,
+					0x2a, 0x34, 0x35, 0x36, 0x37, 0x38, 0x39, 0x3a, 0x43, 0x44,
+					0x45, 0x46, 0x47, 0x48, 0x49, 0x4a, 0x53, 0x54, 0x55, 0x56,
+					0x57, 0x58, 0x59, 0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68,
+					0x69, 0x6a, 0x73, 0x74, 0x75, 0x76, 0x77, 0x78, 0x79, 0x7a,
+					0x83, 0x84, 0x85, 0x86, 0x87, 0x88, 0x89, 0x8a, 0x92, 0x93,
+					0x94, 0x95, 0x96, 0x97, 0x98, 0x99, 0x9a, 0xa2, 0xa3, 0xa4,
+					0xa5, 0xa6, 0xa7, 0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4, 0xb5,
+					0xb6, 0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3, 0xc4, 0xc5, 0xc6,
+					0xc7, 0xc8, 0xc9, 0xca, 0xd2, 0xd3, 0xd4, 0xd5, 0xd6, 0xd7,
+					0xd8, 0xd9, 0xda, 0xe1, 0xe2, 0xe3, 0xe4, 0xe5, 0xe6, 0xe7,
+					0xe8, 0xe9, 0xea, 0xf1, 0xf2, 0xf3, 0xf4, 0xf5, 0xf6, 0xf7,
+					0xf8, 0xf9, 0xfa });
+	static final HuffmanTable AC_CHROMINANCE = new HuffmanTable(
+			new int[] { 0, 2, 1, 2, 4, 4, 3, 4, 7, 5, 4, 4, 0, 1, 2, 0x77 },
+			new int[] { 0x00, 0x01, 0x02, 0x03, 0x11, 0x04, 0x05, 0x21, 0x31,
+					0x06, 0x12, 0x41, 0x51, 0x07, 0x61, 0x71, 0x13, 0x22, 0x32,
+					0x81, 0x08, 0x14, 0x42, 0x91, 0xa1, 0xb1, 0xc1, 0x09, 0x23,
+					0x33, 0x52, 0xf0, 0x15, 0x62, 0x72, 0xd1, 0x0a, 0x16, 0x24,
+					0x34, 0xe1, 0x25, 0xf1, 0x17, 0x18, 0x19, 0x1a, 0x26, 0x27,
+					0x28, 0x29, 0x2a, 0x35, 0x36, 0x37, 0x38, 0x39, 0x3a, 0x43,
+					0x44, 0x45, 0x46, 0x47, 0x48, 0x49, 0x4a, 0x53, 0x54, 0x55,
+					0x56, 0x57, 0x58, 0x59, 0x5a, 0x63, 0x64, 0x65, 0x66, 0x67,
+					0x68, 0x69, 0x6a, 0x73, 0x74, 0x75, 0x76, 0x77, 0x78, 0x79,
+					0x7a, 0x82, 0x83, 0x84, 0x85, 0x86, 0x87, 0x88, 0x89, 0x8a,
+					0x92, 0x93, 0x94, 0x95, 0x96, 0x97, 0x98, 0x99, 0x9a, 0xa2,
+					0xa3, 0xa4, 0xa5, 0xa6, 0xa7, 0xa8, 0xa9, 0xaa, 0xb2, 0xb3,
+					0xb4, 0xb5, 0xb6, 0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3, 0xc4,
+					0xc5, 0xc6, 0xc7, 0xc8, 0xc9, 0xca, 0xd2, 0xd3, 0xd4, 0xd5,
+					0xd6, 0xd7, 0xd8, 0xd9, 0xda, 0xe2, 0xe3, 0xe4, 0xe5, 0xe6,
+					0xe7, 0xe8, 0xe9, 0xea, 0xf2, 0xf3, 0xf4, 0xf5, 0xf6, 0xf7,
+					0xf8, 0xf9, 0xfa });
+
+	// Codes up to this long are decoded with a single table lookup
+	static final int LOOKAHEAD = 9;
+
+	final int[] bits;
+	final int[] values;
+
+	// Decoding: maxCode[l] is the largest code of length l, valPtr[l] the
+	// index into values of the first code of that length
+	final int[] maxCode = new int[18];
+	final int[] valPtr = new int[17];
+	final int[] minCode = new int[17];
+	// lookahead tables, indexed by the next LOOKAHEAD bits: code length
+	// (0 if longer) and symbol
+	final byte[] lookLength = new byte[1 << LOOKAHEAD];
+	final byte[] lookValue = new byte[1 << LOOKAHEAD];
+
+	// Encoding: code and length for each symbol
+	final int[] codes = new int[256];
+	final byte[] sizes = new byte[256];
+
+	HuffmanTable(int[] bits, int[] values) {
+		this.bits = bits;
+		this.values = values;
+
+		int code = 0;
+		int k = 0;
+		for (int l = 1; l <= 16; l++) {
+			valPtr[l] = k;
+			minCode[l] = code;
+			for (int i = 0; i < bits[l - 1]; i++) {
+				int symbol = values[k++];
+				codes[symbol] = code;
+				sizes[symbol] = (byte) l;
+				if (l <= LOOKAHEAD) {
+					int shift = LOOKAHEAD - l;
+					int base = code << shift;
+					for (int j = 0; j < (1 << shift); j++) {
+						lookLength[base + j] = (byte) l;
+						lookValue[base + j] = (byte) symbol;
+					}
+				}
+				code++;
+			}
+			maxCode[l] = bits[l - 1] > 0 ? code - 1 : -1;
+			code <<= 1;
+		}
+		maxCode[17] = Integer.MAX_VALUE;
+	}
+
+	/**
+	 * Parse a table out of a DHT segment
+	 * @return offset just past the table
+	 */
+	static int parse(byte[] data, int offset, HuffmanTable[] dc,
+			HuffmanTable[] ac) throws IOException {
+		int tc = (data[offset] >> 4) & 0x0f;
+		int th = data[offset] & 0x0f;
+		if (tc > 1 || th > 3) {
+			throw new IOException("Bad Huffman table " + tc + "/" + th);
+		}
+		int[] bits = new int[16];
+		int count = 0;
+		for (int i = 0; i < 16; i++) {
+			bits[i] = data[offset + 1 + i] & 0xff;
+			count += bits[i];
+		}
+		if (count > 256) {
+			throw new IOException("Bad Huffman table size " + count);
+		}
+		int[] values = new int[count];
+		for (int i = 0; i < count; i++) {
+			values[i] = data[offset + 17 + i] & 0xff;
+		}
+		HuffmanTable table = new HuffmanTable(bits, values);
+		if (tc == 0) {
+			dc[th] = table;
+		} else {
+			ac[th] = table;
+		}
+		return offset + 17 + count;
+	}
+
+	/**
+	 * Build the optimal table for the given symbol frequencies, following
+	 * Annex K.2 (with code lengths limited to 16 bits)
+	 * @param freq - 256 symbol counts
+	 */
+	static HuffmanTable optimal(long[] freq) {
+		long[] f = new long[257];
+		System.arraycopy(freq, 0, f, 0, 256);
+		boolean empty = true;
+		for (int i = 0; i < 256 && empty; i++) {
+			empty = f[i] == 0;
+		}
+		if (empty) {
+			// Table is never used, but it still has to be valid
+			f[0] = 1;
+		}
+		// Reserve one code point so no real code is all ones
+		f[256] = 1;
+		int[] codeSize = new int[257];
+		int[] others = new int[257];
+		for (int i = 0; i < 257; i++) {
+			others[i] = -1;
+		}
+
+		while (true) {
+			// Find the two least frequent symbols still in play, favouring
+			// the larger symbol value on ties
+			int c1 = -1;
+			long v = Long.MAX_VALUE;
+			for (int i = 0; i <= 256; i++) {
+				if (f[i] != 0 && f[i] <= v) {
+					v = f[i];
+					c1 = i;
+				}
+			}
+			int c2 = -1;
+			v = Long.MAX_VALUE;
+			for (int i = 0; i <= 256; i++) {
+				if (f[i] != 0 && f[i] <= v && i != c1) {
+					v = f[i];
+					c2 = i;
+				}
+			}
+			if (c2 < 0) {
+				break;
+			}
+
+			f[c1] += f[c2];
+			f[c2] = 0;
+			codeSize[c1]++;
+			while (others[c1] >= 0) {
+				c1 = others[c1];
+				codeSize[c1]++;
+			}
+			others[c1] = c2;
+			codeSize[c2]++;
+			while (others[c2] >= 0) {
+				c2 = others[c2];
+				codeSize[c2]++;
+			}
+		}
+
+		int[] count = new int[33];
+		for (int i = 0; i <= 256; i++) {
+			if (codeSize[i] > 0) {
+				count[Math.min(codeSize[i], 32)]++;
+			}
+		}
+		// Limit code lengths to 16 bits (K.2, figure K.3)
+		for (int i = 32; i > 16; i--) {
+			while (count[i] > 0) {
+				int j = i - 2;
+				while (count[j] == 0) {
+					j--;
+				}
+				count[i] -= 2;
+				count[i - 1]++;
+				count[j + 1] += 2;
+				count[j]--;
+			}
+		}
+		// Give back the reserved code point
+		int i = 16;
+		while (count[i] == 0) {
+			i--;
+		}
+		count[i]--;
+
+		int[] bits = new int[16];
+		int total = 0;
+		for (int l = 1; l <= 16; l++) {
+			bits[l - 1] = count[l];
+			total += count[l];
+		}
+		int[] values = new int[total];
+		int k = 0;
+		for (int l = 1; l <= 32; l++) {
+			for (int s = 0; s < 256; s++) {
+				if (codeSize[s] == l) {
+					values[k++] = s;
+				}
+			}
+		}
+		return new HuffmanTable(bits, values);
+	}
+
+	/**
+	 * @return size of this table's entry in a DHT segment
+	 */
+	int dhtLength() {
+		return 17 + values.length;
+	}
+
+	/**
+	 * Write this table's entry for a DHT segment
+	 */
+	int writeDht(byte[] out, int offset, int tableClass, int id) {
+		out[offset++] = (byte) ((tableClass << 4) | id);
+		for (int i = 0; i < 16; i++) {
+			out[offset++] = (byte) bits[i];
+		}
+		for (int i = 0; i < values.length; i++) {
+			out[offset++] = (byte) values[i];
+		}
+		return offset;
+	}
+}
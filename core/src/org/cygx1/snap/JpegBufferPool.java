@@ -0,0 +1,77 @@
+package org.cygx1.snap;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Recycles the multi-megabyte byte arrays that JPEGs live in, so a burst of
+ * snaps doesn't have the garbage collector chasing them. Arrays handed back
+ * with release() are reused by acquire() for anything at most as big.
+ */
+public class JpegBufferPool {
+	// Don't hang on to more than this many bytes of idle buffers
+	private static final long MAX_POOLED_BYTES = 16 * 1024 * 1024;
+	// Don't bother pooling anything smaller than this
+	private static final int MIN_POOLED_SIZE = 64 * 1024;
+
+	private static JpegBufferPool sInstance = null;
+
+	public static synchronized JpegBufferPool getInstance() {
+		if (sInstance == null) {
+			sInstance = new JpegBufferPool();
+		}
+		return sInstance;
+	}
+
+	private final List<byte[]> mFree = new ArrayList<byte[]>();
+	private long mPooledBytes = 0;
+
+	/**
+	 * @return an array of at least size bytes, recycled if possible
+	 */
+	public byte[] acquire(int size) {
+		synchronized (this) {
+			// Smallest free buffer that is big enough
+			int best = -1;
+			for (int i = 0; i < mFree.size(); i++) {
+				int length = mFree.get(i).length;
+				if (length >= size && (best < 0 || length < mFree.get(best).length)) {
+					best = i;
+				}
+			}
+			if (best >= 0) {
+				byte[] buffer = mFree.remove(best);
+				mPooledBytes -= buffer.length;
+				return buffer;
+			}
+		}
+		return new byte[size];
+	}
+
+	/**
+	 * Hand a buffer back for reuse. The caller must not touch it afterwards.
+	 */
+	public synchronized void release(byte[] buffer) {
+		if (buffer == null || buffer.length < MIN_POOLED_SIZE) {
+			return;
+		}
+		// Make room by dropping the smallest buffers, which are the least
+		// likely to fit the next JPEG
+		while (!mFree.isEmpty() && mPooledBytes + buffer.length > MAX_POOLED_BYTES) {
+			int smallest = 0;
+			for (int i = 1; i < mFree.size(); i++) {
+				if (mFree.get(i).length < mFree.get(smallest).length) {
+					smallest = i;
+				}
+			}
+			if (mFree.get(smallest).length > buffer.length) {
+				return;
+			}
+			mPooledBytes -= mFree.remove(smallest).length;
+		}
+		if (mPooledBytes + buffer.length <= MAX_POOLED_BYTES) {
+			mFree.add(buffer);
+			mPooledBytes += buffer.length;
+		}
+	}
+}
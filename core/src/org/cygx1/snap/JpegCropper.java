@@ -0,0 +1,137 @@
+package org.cygx1.snap;
+
+import java.io.IOException;
+
+/**
+ * Cuts a rectangle out of a JPEG without decoding it, so the part that's
+ * kept is exactly as the camera took it. The left and top edges move out to
+ * the nearest MCU boundary (8 or 16 pixels, depending on the chroma
+ * subsampling), and the MCUs inside are copied over coefficient for
+ * coefficient. Only the DC differences change, since the block each one is
+ * relative to is now a different one. The right and bottom edges can fall
+ * anywhere: the frame header just says the picture is narrower.
+ *
+ * The scan is read through once, stopping after the last row that's kept,
+ * and written with the Huffman tables it came with, unless a DC table is
+ * missing codes the new differences need. Restart markers are left out.
+ * The APPn and COM segments are carried over unchanged.
+ */
+public class JpegCropper {
+	/**
+	 * @param left, top, right, bottom - the part to keep, as fractions of
+	 *            the width and height
+	 * @return the cropped JPEG, or null if the rectangle takes in the whole
+	 *         picture once it is lined up with the MCUs
+	 */
+	public static PooledOutputStream crop(byte[] jpeg, int length, float left, float top,
+			float right, float bottom) throws IOException {
+		JpegReader in = new JpegReader(jpeg, length);
+		int mcuWidth = 8 * in.hmax;
+		int mcuHeight = 8 * in.vmax;
+		int x0 = clamp((int) (left * in.width), 0, in.width - 1) / mcuWidth * mcuWidth;
+		int y0 = clamp((int) (top * in.height), 0, in.height - 1) / mcuHeight * mcuHeight;
+		int x1 = clamp((int) Math.ceil(right * in.width), x0 + 1, in.width);
+		int y1 = clamp((int) Math.ceil(bottom * in.height), y0 + 1, in.height);
+		if (x0 == 0 && y0 == 0 && x1 == in.width && y1 == in.height) {
+			return null;
+		}
+
+		PooledOutputStream out = new PooledOutputStream(length);
+		try {
+			new JpegCropper(in, out).run(x0 / mcuWidth, y0 / mcuHeight, x1 - x0, y1 - y0);
+		} catch (IOException e) {
+			out.release();
+			throw e;
+		} catch (RuntimeException e) {
+			// e.g. running off the end of a truncated scan
+			out.release();
+			throw new IOException("Unable to crop: " + e);
+		}
+		return out;
+	}
+
+	private static int clamp(int v, int min, int max) {
+		return Math.max(min, Math.min(max, v));
+	}
+
+	private final JpegReader mIn;
+	private final JpegWriter mOut;
+	private final int[][] mBlocks;
+	// DC of the previous block written, per component
+	private final int[] mPred;
+
+	private JpegCropper(JpegReader in, PooledOutputStream out) {
+		mIn = in;
+		mOut = new JpegWriter(out);
+		mBlocks = new int[in.blocksPerMcu][64];
+		mPred = new int[in.components.length];
+	}
+
+	/**
+	 * @param mcuLeft, mcuTop - the first MCU column and row kept
+	 * @param width, height - the cropped picture's size in pixels
+	 */
+	private void run(int mcuLeft, int mcuTop, int width, int height) throws IOException {
+		JpegReader.Component[] components = mIn.components;
+		int mcuRight = mcuLeft + (width + 8 * mIn.hmax - 1) / (8 * mIn.hmax);
+		int mcuBottom = mcuTop + (height + 8 * mIn.vmax - 1) / (8 * mIn.vmax);
+
+		mOut.writeMarker(JpegReader.SOI);
+		for (JpegReader.Segment s : mIn.segments) {
+			mOut.writeRaw(mIn.data, s.offset, s.length);
+		}
+		mOut.writeDqt(mIn.quant);
+		mOut.writeFrame(mIn.frameMarker, width, height, components);
+		HuffmanTable[] dc = dcTables();
+		mOut.writeDht(dc, mIn.acTables);
+		mOut.writeScanHeader(components);
+
+		// Every MCU up to the last one kept has to be decoded, since each
+		// one's position in the scan depends on all the ones before it
+		for (int row = 0; row < mcuBottom; row++) {
+			for (int col = 0; col < mIn.mcusPerLine; col++) {
+				mIn.readMcu(mBlocks);
+				if (row < mcuTop || col < mcuLeft || col >= mcuRight) {
+					continue;
+				}
+				int b = 0;
+				for (int i = 0; i < components.length; i++) {
+					JpegReader.Component c = components[i];
+					for (int j = c.h * c.v; j > 0; j--) {
+						int[] block = mBlocks[b++];
+						mOut.writeBlock(block, block[0] - mPred[i],
+								dc[c.dcTable], mIn.acTables[c.acTable]);
+						mPred[i] = block[0];
+					}
+				}
+			}
+		}
+
+		mOut.flushBits();
+		mOut.writeMarker(JpegReader.EOI);
+	}
+
+	/**
+	 * @return the DC tables to write with: the original ones if they can
+	 *         code any difference, and the standard one in place of any
+	 *         that an optimizing encoder has trimmed
+	 */
+	private HuffmanTable[] dcTables() {
+		HuffmanTable[] tables = new HuffmanTable[4];
+		for (int t = 0; t < 4; t++) {
+			HuffmanTable table = mIn.dcTables[t];
+			if (table == null) {
+				continue;
+			}
+			tables[t] = table;
+			// Differences of 8-bit samples take up to 11 bits
+			for (int size = 0; size <= 11; size++) {
+				if (table.sizes[size] == 0) {
+					tables[t] = HuffmanTable.DC_LUMINANCE;
+					break;
+				}
+			}
+		}
+		return tables;
+	}
+}
@@ -0,0 +1,43 @@
+package org.cygx1.snap;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Attachment data source for a JPEG that is still in memory, so it can be
+ * mailed without being read back from the SD card
+ */
+public class JpegDataSource implements BufferDataSource {
+	private final String mName;
+	private final byte[] mData;
+	private final int mLength;
+
+	public JpegDataSource(String name, byte[] data, int length) {
+		mName = name;
+		mData = data;
+		mLength = length;
+	}
+
+	public String getContentType() {
+		return "image/jpeg";
+	}
+
+	public InputStream getInputStream() throws IOException {
+		return new ByteArrayInputStream(mData, 0, mLength);
+	}
+
+	public ByteBuffer getBuffer() {
+		return ByteBuffer.wrap(mData, 0, mLength);
+	}
+
+	public String getName() {
+		return mName;
+	}
+
+	public OutputStream getOutputStream() throws IOException {
+		throw new IOException("JpegDataSource is read-only");
+	}
+}
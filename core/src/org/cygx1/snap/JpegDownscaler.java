@@ -0,0 +1,280 @@
+package org.cygx1.snap;
+
+import java.io.IOException;
+
+/**
+ * Shrinks a JPEG by 1/2, 1/4 or 1/8 without decoding it at full size.
+ *
+ * Each 8x8 block of coefficients goes through a reduced-size inverse DCT
+ * that only uses its low-frequency corner, giving a 4x4, 2x2 or 1x1 block of
+ * pixels directly. The image is processed one row of MCUs at a time and
+ * re-encoded as soon as a full output row of MCUs is available, so memory
+ * use is a few rows of pixels however big the photo is. Chroma subsampling
+ * and the APPn segments (EXIF and friends) are carried over unchanged.
+ */
+public class JpegDownscaler {
+	// idct[n] maps n low-frequency coefficients to n samples:
+	// idct[n][x * n + u] = C(u)/2 * cos((2x + 1) u pi / 2n)
+	private static final float[][] IDCT = new float[9][];
+	static {
+		for (int n = 1; n <= 8; n <<= 1) {
+			IDCT[n] = new float[n * n];
+			for (int x = 0; x < n; x++) {
+				for (int u = 0; u < n; u++) {
+					double c = u == 0 ? Math.sqrt(0.5) : 1.0;
+					IDCT[n][x * n + u] = (float) (0.5 * c * Math.cos((2 * x + 1)
+							* u * Math.PI / (2 * n)));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Pick the reduced IDCT size: the biggest reduction that still leaves
+	 * the longer side at least maxDimension pixels
+	 * @return 8 (full size), 4, 2 or 1 samples per block side
+	 */
+	public static int chooseBlockSize(int width, int height, int maxDimension) {
+		int longest = Math.max(width, height);
+		int n = 8;
+		while (n > 1 && maxDimension > 0 && longest * (n / 2) / 8 >= maxDimension) {
+			n /= 2;
+		}
+		return n;
+	}
+
+	/**
+	 * Shrink a JPEG so its longer side is no more than twice maxDimension
+	 * (and no less than maxDimension)
+	 * @return the new JPEG, or null if it is already small enough
+	 */
+	public static PooledOutputStream downscale(byte[] jpeg, int length,
+			int maxDimension, int quality) throws IOException {
+		JpegReader in = new JpegReader(jpeg, length);
+		int n = chooseBlockSize(in.width, in.height, maxDimension);
+		if (n == 8) {
+			return null;
+		}
+		PooledOutputStream out = new PooledOutputStream(length / (64 / (n * n)) + 4096);
+		try {
+			new JpegDownscaler(in, n, quality, out).run();
+		} catch (IOException e) {
+			out.release();
+			throw e;
+		} catch (RuntimeException e) {
+			// e.g. running off the end of a truncated scan
+			out.release();
+			throw new IOException("Unable to downscale: " + e);
+		}
+		return out;
+	}
+
+	private final JpegReader mIn;
+	private final int mN;
+	private final JpegWriter mOut;
+	private final int[][] mQuant;
+
+	private final int mWidth, mHeight;
+	private final int mMcusPerLine, mMcuRows;
+	// One output MCU row of samples per component
+	private final byte[][] mPlanes;
+	private final int[] mPlaneWidths;
+
+	private final float[] mTmp = new float[64];
+	private final float[] mSamples = new float[64];
+	private final int[] mBlock = new int[64];
+
+	private JpegDownscaler(JpegReader in, int n, int quality,
+			PooledOutputStream out) {
+		mIn = in;
+		mN = n;
+		mOut = new JpegWriter(out);
+		mWidth = (in.width * n + 7) / 8;
+		mHeight = (in.height * n + 7) / 8;
+		mMcusPerLine = (mWidth + 8 * in.hmax - 1) / (8 * in.hmax);
+		mMcuRows = (mHeight + 8 * in.vmax - 1) / (8 * in.vmax);
+
+		mQuant = new int[][] { JpegWriter.quantTable(false, quality),
+				JpegWriter.quantTable(true, quality) };
+
+		mPlanes = new byte[in.components.length][];
+		mPlaneWidths = new int[in.components.length];
+		for (int i = 0; i < in.components.length; i++) {
+			JpegReader.Component c = in.components[i];
+			mPlaneWidths[i] = mMcusPerLine * c.h * 8;
+			mPlanes[i] = new byte[mPlaneWidths[i] * c.v * 8];
+		}
+	}
+
+	private void run() throws IOException {
+		JpegReader.Component[] components = mIn.components;
+
+		// Output uses table 0 for luma and 1 for chroma
+		JpegReader.Component[] outComponents = new JpegReader.Component[components.length];
+		for (int i = 0; i < components.length; i++) {
+			JpegReader.Component c = new JpegReader.Component();
+			c.id = components[i].id;
+			c.h = components[i].h;
+			c.v = components[i].v;
+			c.tq = c.dcTable = c.acTable = i == 0 ? 0 : 1;
+			outComponents[i] = c;
+		}
+
+		mOut.writeMarker(JpegReader.SOI);
+		for (JpegReader.Segment s : mIn.segments) {
+			mOut.writeRaw(mIn.data, s.offset, s.length);
+		}
+		mOut.writeDqt(components.length > 1 ? mQuant : new int[][] { mQuant[0] });
+		mOut.writeFrame(JpegReader.SOF0, mWidth, mHeight, outComponents);
+		HuffmanTable[] dc = { HuffmanTable.DC_LUMINANCE, HuffmanTable.DC_CHROMINANCE, null, null };
+		HuffmanTable[] ac = { HuffmanTable.AC_LUMINANCE, HuffmanTable.AC_CHROMINANCE, null, null };
+		if (components.length == 1) {
+			dc[1] = ac[1] = null;
+		}
+		mOut.writeDht(dc, ac);
+		mOut.writeScanHeader(outComponents);
+
+		int[][] blocks = new int[mIn.blocksPerMcu][64];
+		int rowsPerOutput = 8 / mN;
+		int outRow = 0;
+		for (int r = 0; r < mIn.mcuRows && outRow < mMcuRows; r++) {
+			int k = r % rowsPerOutput;
+			for (int mx = 0; mx < mIn.mcusPerLine; mx++) {
+				mIn.readMcu(blocks);
+				int b = 0;
+				for (int i = 0; i < components.length; i++) {
+					JpegReader.Component c = components[i];
+					int[] quant = mIn.quant[c.tq];
+					for (int by = 0; by < c.v; by++) {
+						for (int bx = 0; bx < c.h; bx++) {
+							idct(blocks[b++], quant, mPlanes[i], mPlaneWidths[i],
+									(mx * c.h + bx) * mN, (k * c.v + by) * mN);
+						}
+					}
+				}
+			}
+			if (k == rowsPerOutput - 1 || r == mIn.mcuRows - 1) {
+				padPlanes((k + 1) * mN);
+				writeMcuRow(outComponents);
+				outRow++;
+			}
+		}
+
+		mOut.flushBits();
+		mOut.writeMarker(JpegReader.EOI);
+	}
+
+	/**
+	 * Reduced inverse DCT of one block into an n x n patch of the plane
+	 */
+	private void idct(int[] block, int[] quant, byte[] plane, int stride,
+			int x0, int y0) {
+		int n = mN;
+		float[] t = IDCT[n];
+		if (x0 >= stride) {
+			return;
+		}
+		// rows: horizontal transform of the top n rows of coefficients
+		for (int v = 0; v < n; v++) {
+			for (int x = 0; x < n; x++) {
+				float sum = 0;
+				for (int u = 0; u < n; u++) {
+					sum += t[x * n + u] * block[v * 8 + u] * quant[v * 8 + u];
+				}
+				mTmp[v * n + x] = sum;
+			}
+		}
+		// columns
+		for (int y = 0; y < n; y++) {
+			int row = (y0 + y) * stride + x0;
+			for (int x = 0; x < n; x++) {
+				float sum = 0;
+				for (int v = 0; v < n; v++) {
+					sum += t[y * n + v] * mTmp[v * n + x];
+				}
+				int s = Math.round(sum) + 128;
+				plane[row + x] = (byte) (s < 0 ? 0 : (s > 255 ? 255 : s));
+			}
+		}
+	}
+
+	/**
+	 * Replicate the last real column and row of each plane into the padding
+	 * @param rows - sample rows filled so far, per vertical sampling unit
+	 */
+	private void padPlanes(int rows) {
+		JpegReader.Component[] components = mIn.components;
+		for (int i = 0; i < components.length; i++) {
+			JpegReader.Component c = components[i];
+			byte[] plane = mPlanes[i];
+			int stride = mPlaneWidths[i];
+			int filledWidth = Math.min(stride, mIn.mcusPerLine * c.h * mN);
+			int filledRows = rows * c.v;
+			for (int y = 0; y < filledRows; y++) {
+				int row = y * stride;
+				byte edge = plane[row + filledWidth - 1];
+				for (int x = filledWidth; x < stride; x++) {
+					plane[row + x] = edge;
+				}
+			}
+			for (int y = filledRows; y < c.v * 8; y++) {
+				System.arraycopy(plane, (filledRows - 1) * stride, plane, y * stride, stride);
+			}
+		}
+	}
+
+	private void writeMcuRow(JpegReader.Component[] outComponents) {
+		for (int mx = 0; mx < mMcusPerLine; mx++) {
+			for (int i = 0; i < outComponents.length; i++) {
+				JpegReader.Component c = outComponents[i];
+				byte[] plane = mPlanes[i];
+				int stride = mPlaneWidths[i];
+				int[] quant = mQuant[c.tq];
+				HuffmanTable dc = c.dcTable == 0 ? HuffmanTable.DC_LUMINANCE : HuffmanTable.DC_CHROMINANCE;
+				HuffmanTable ac = c.acTable == 0 ? HuffmanTable.AC_LUMINANCE : HuffmanTable.AC_CHROMINANCE;
+				for (int by = 0; by < c.v; by++) {
+					for (int bx = 0; bx < c.h; bx++) {
+						int x0 = (mx * c.h + bx) * 8;
+						int y0 = by * 8;
+						for (int y = 0; y < 8; y++) {
+							int row = (y0 + y) * stride + x0;
+							for (int x = 0; x < 8; x++) {
+								mSamples[y * 8 + x] = (plane[row + x] & 0xff) - 128;
+							}
+						}
+						fdct(quant);
+						mOut.writeBlock(mBlock, mBlock[0] - c.pred, dc, ac);
+						c.pred = mBlock[0];
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Forward DCT and quantization of mSamples into mBlock
+	 */
+	private void fdct(int[] quant) {
+		float[] t = IDCT[8];
+		// rows
+		for (int y = 0; y < 8; y++) {
+			for (int u = 0; u < 8; u++) {
+				float sum = 0;
+				for (int x = 0; x < 8; x++) {
+					sum += t[x * 8 + u] * mSamples[y * 8 + x];
+				}
+				mTmp[y * 8 + u] = sum;
+			}
+		}
+		// columns
+		for (int v = 0; v < 8; v++) {
+			for (int u = 0; u < 8; u++) {
+				float sum = 0;
+				for (int y = 0; y < 8; y++) {
+					sum += t[y * 8 + v] * mTmp[y * 8 + u];
+				}
+				mBlock[v * 8 + u] = Math.round(sum / quant[v * 8 + u]);
+			}
+		}
+	}
+}
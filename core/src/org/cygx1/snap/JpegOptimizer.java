@@ -0,0 +1,143 @@
+package org.cygx1.snap;
+
+import java.io.IOException;
+
+/**
+ * Re-codes a JPEG with Huffman tables built for the picture itself, instead
+ * of the standard Annex K tables cameras use. The coefficients are copied
+ * over exactly, so the pixels don't change, but the file usually comes out
+ * 5-15% smaller.
+ *
+ * It takes two passes over the scan: one to count how often each symbol
+ * turns up, and one to write it out again with the new tables. Nothing is
+ * decoded beyond one MCU at a time, so memory use is the output and little
+ * else. The APPn and COM segments, quantization tables and restart
+ * intervals are carried over unchanged.
+ */
+public class JpegOptimizer {
+	/**
+	 * @return the re-coded JPEG, or null if it wouldn't come out any smaller
+	 */
+	public static PooledOutputStream optimize(byte[] jpeg, int length) throws IOException {
+		JpegReader in = new JpegReader(jpeg, length);
+		PooledOutputStream out = new PooledOutputStream(length);
+		try {
+			new JpegOptimizer(in, out).run();
+		} catch (IOException e) {
+			out.release();
+			throw e;
+		} catch (RuntimeException e) {
+			// e.g. running off the end of a truncated scan
+			out.release();
+			throw new IOException("Unable to optimize: " + e);
+		}
+		if (out.size() >= length) {
+			out.release();
+			return null;
+		}
+		return out;
+	}
+
+	private final JpegReader mIn;
+	private final JpegWriter mOut;
+	private final int[][] mBlocks;
+	// DC of the previous block, per component, to code the differences
+	private final int[] mPred;
+
+	private JpegOptimizer(JpegReader in, PooledOutputStream out) {
+		mIn = in;
+		mOut = new JpegWriter(out);
+		mBlocks = new int[in.blocksPerMcu][64];
+		mPred = new int[in.components.length];
+	}
+
+	private void run() throws IOException {
+		JpegReader.Component[] components = mIn.components;
+
+		// First pass: symbol counts, per table
+		long[][] dcFreq = new long[4][];
+		long[][] acFreq = new long[4][];
+		for (JpegReader.Component c : components) {
+			if (dcFreq[c.dcTable] == null) {
+				dcFreq[c.dcTable] = new long[256];
+			}
+			if (acFreq[c.acTable] == null) {
+				acFreq[c.acTable] = new long[256];
+			}
+		}
+		int mcus = mIn.mcusPerLine * mIn.mcuRows;
+		for (int m = 0; m < mcus; m++) {
+			if (startsInterval(m)) {
+				resetPredictors();
+			}
+			mIn.readMcu(mBlocks);
+			int b = 0;
+			for (int i = 0; i < components.length; i++) {
+				JpegReader.Component c = components[i];
+				for (int j = c.h * c.v; j > 0; j--) {
+					int[] block = mBlocks[b++];
+					JpegWriter.countBlock(block, block[0] - mPred[i],
+							dcFreq[c.dcTable], acFreq[c.acTable]);
+					mPred[i] = block[0];
+				}
+			}
+		}
+
+		HuffmanTable[] dc = new HuffmanTable[4];
+		HuffmanTable[] ac = new HuffmanTable[4];
+		for (int t = 0; t < 4; t++) {
+			if (dcFreq[t] != null) {
+				dc[t] = HuffmanTable.optimal(dcFreq[t]);
+			}
+			if (acFreq[t] != null) {
+				ac[t] = HuffmanTable.optimal(acFreq[t]);
+			}
+		}
+
+		mOut.writeMarker(JpegReader.SOI);
+		for (JpegReader.Segment s : mIn.segments) {
+			mOut.writeRaw(mIn.data, s.offset, s.length);
+		}
+		mOut.writeDqt(mIn.quant);
+		mOut.writeFrame(mIn.frameMarker, mIn.width, mIn.height, components);
+		mOut.writeDht(dc, ac);
+		if (mIn.restartInterval > 0) {
+			mOut.writeRestartInterval(mIn.restartInterval);
+		}
+		mOut.writeScanHeader(components);
+
+		// Second pass: the same blocks again, with the new tables
+		mIn.restartScan();
+		for (int m = 0; m < mcus; m++) {
+			if (startsInterval(m)) {
+				resetPredictors();
+				if (m > 0) {
+					mOut.writeRestart(m / mIn.restartInterval - 1);
+				}
+			}
+			mIn.readMcu(mBlocks);
+			int b = 0;
+			for (int i = 0; i < components.length; i++) {
+				JpegReader.Component c = components[i];
+				for (int j = c.h * c.v; j > 0; j--) {
+					int[] block = mBlocks[b++];
+					mOut.writeBlock(block, block[0] - mPred[i], dc[c.dcTable], ac[c.acTable]);
+					mPred[i] = block[0];
+				}
+			}
+		}
+
+		mOut.flushBits();
+		mOut.writeMarker(JpegReader.EOI);
+	}
+
+	private boolean startsInterval(int mcu) {
+		return mcu == 0 || (mIn.restartInterval > 0 && mcu % mIn.restartInterval == 0);
+	}
+
+	private void resetPredictors() {
+		for (int i = 0; i < mPred.length; i++) {
+			mPred[i] = 0;
+		}
+	}
+}
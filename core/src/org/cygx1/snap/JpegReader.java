@@ -0,0 +1,381 @@
+package org.cygx1.snap;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads the quantized DCT coefficients out of a baseline JPEG, one MCU at a
+ * time, without ever turning them into pixels. This is the common front end
+ * for everything that reworks a JPEG in the compressed domain.
+ *
+ * Only sequential Huffman-coded JPEGs with a single interleaved scan are
+ * supported, which is what cameras produce. Anything else is rejected with
+ * an IOException when the reader is created.
+ */
+final class JpegReader {
+	// Natural (row-major) index of the k'th coefficient in zigzag order
+	static final int[] NATURAL_ORDER = { 0, 1, 8, 16, 9, 2, 3, 10, 17, 24,
+			32, 25, 18, 11, 4, 5, 12, 19, 26, 33, 40, 48, 41, 34, 27, 20, 13,
+			6, 7, 14, 21, 28, 35, 42, 49, 56, 57, 50, 43, 36, 29, 22, 15, 23,
+			30, 37, 44, 51, 58, 59, 52, 45, 38, 31, 39, 46, 53, 60, 61, 54,
+			47, 55, 62, 63 };
+
+	static final int SOI = 0xd8;
+	static final int EOI = 0xd9;
+	static final int SOF0 = 0xc0;
+	static final int SOF1 = 0xc1;
+	static final int DHT = 0xc4;
+	static final int SOS = 0xda;
+	static final int DQT = 0xdb;
+	static final int DRI = 0xdd;
+	static final int RST0 = 0xd0;
+	static final int APP0 = 0xe0;
+	static final int APP1 = 0xe1;
+	static final int COM = 0xfe;
+
+	static final class Component {
+		int id;
+		int h, v;
+		int tq;
+		int dcTable, acTable;
+		// DC predictor while decoding
+		int pred;
+	}
+
+	/**
+	 * A marker segment we don't interpret but may want to copy through
+	 * (APPn and COM): offset of its 0xFF and total length including the
+	 * marker
+	 */
+	static final class Segment {
+		final int marker;
+		final int offset;
+		final int length;
+
+		Segment(int marker, int offset, int length) {
+			this.marker = marker;
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+
+	final byte[] data;
+	private final int mEnd;
+
+	int width, height;
+	int frameMarker;
+	Component[] components;
+	int hmax = 1, vmax = 1;
+	int mcusPerLine, mcuRows;
+	int blocksPerMcu;
+	// Quantization tables, in natural order
+	final int[][] quant = new int[4][];
+	final HuffmanTable[] dcTables = new HuffmanTable[4];
+	final HuffmanTable[] acTables = new HuffmanTable[4];
+	int restartInterval;
+	final List<Segment> segments = new ArrayList<Segment>();
+	// Where the entropy-coded data starts
+	int scanStart;
+
+	// bit reader state
+	private int mPos;
+	private int mBitBuf;
+	private int mBitCount;
+	private boolean mHitMarker;
+	private int mMcusToGo;
+	private int mNextRestart;
+
+	JpegReader(byte[] data, int length) throws IOException {
+		this.data = data;
+		mEnd = length;
+		readHeaders();
+		restartScan();
+	}
+
+	private int u16(int offset) {
+		return ((data[offset] & 0xff) << 8) | (data[offset + 1] & 0xff);
+	}
+
+	private void readHeaders() throws IOException {
+		if (mEnd < 4 || (data[0] & 0xff) != 0xff || (data[1] & 0xff) != SOI) {
+			throw new IOException("Not a JPEG");
+		}
+		int pos = 2;
+		while (true) {
+			// Markers may be preceded by any number of fill bytes
+			if (pos >= mEnd || (data[pos] & 0xff) != 0xff) {
+				throw new IOException("Bad JPEG marker at " + pos);
+			}
+			int start = pos;
+			while (pos < mEnd && (data[pos] & 0xff) == 0xff) {
+				pos++;
+			}
+			if (pos + 2 >= mEnd) {
+				throw new IOException("Truncated JPEG");
+			}
+			int marker = data[pos++] & 0xff;
+			int length = u16(pos);
+			int body = pos + 2;
+			int next = pos + length;
+			if (next > mEnd) {
+				throw new IOException("Truncated JPEG segment");
+			}
+
+			if ((marker >= APP0 && marker <= 0xef) || marker == COM) {
+				segments.add(new Segment(marker, start, next - start));
+			} else if (marker == DQT) {
+				int p = body;
+				while (p < next) {
+					int pq = (data[p] >> 4) & 0x0f;
+					int tq = data[p] & 0x03;
+					p++;
+					int[] table = new int[64];
+					for (int k = 0; k < 64; k++) {
+						if (pq == 0) {
+							table[NATURAL_ORDER[k]] = data[p++] & 0xff;
+						} else {
+							table[NATURAL_ORDER[k]] = u16(p);
+							p += 2;
+						}
+					}
+					quant[tq] = table;
+				}
+			} else if (marker == DHT) {
+				int p = body;
+				while (p < next) {
+					p = HuffmanTable.parse(data, p, dcTables, acTables);
+				}
+			} else if (marker == SOF0 || marker == SOF1) {
+				readFrame(marker, body);
+			} else if ((marker >= 0xc2 && marker <= 0xcf) && marker != 0xc4
+					&& marker != 0xc8 && marker != 0xcc) {
+				throw new IOException("Unsupported JPEG type " + Integer.toHexString(marker));
+			} else if (marker == DRI) {
+				restartInterval = u16(body);
+			} else if (marker == SOS) {
+				readScanHeader(body);
+				scanStart = next;
+				return;
+			}
+			pos = next;
+		}
+	}
+
+	private void readFrame(int marker, int p) throws IOException {
+		frameMarker = marker;
+		if ((data[p] & 0xff) != 8) {
+			throw new IOException("Unsupported JPEG precision " + data[p]);
+		}
+		height = u16(p + 1);
+		width = u16(p + 3);
+		int count = data[p + 5] & 0xff;
+		if (width == 0 || height == 0 || count == 0 || count > 4) {
+			throw new IOException("Unsupported JPEG frame " + width + "x"
+					+ height + "x" + count);
+		}
+		components = new Component[count];
+		p += 6;
+		for (int i = 0; i < count; i++) {
+			Component c = new Component();
+			c.id = data[p] & 0xff;
+			c.h = (data[p + 1] >> 4) & 0x0f;
+			c.v = data[p + 1] & 0x0f;
+			c.tq = data[p + 2] & 0x03;
+			if (c.h < 1 || c.h > 4 || c.v < 1 || c.v > 4) {
+				throw new IOException("Bad sampling factors");
+			}
+			components[i] = c;
+			p += 3;
+		}
+		if (count == 1) {
+			// A lone component is never interleaved: one block per MCU
+			components[0].h = 1;
+			components[0].v = 1;
+		}
+		for (Component c : components) {
+			hmax = Math.max(hmax, c.h);
+			vmax = Math.max(vmax, c.v);
+			blocksPerMcu += c.h * c.v;
+		}
+		if (blocksPerMcu > 10) {
+			throw new IOException("Too many blocks per MCU");
+		}
+		mcusPerLine = (width + 8 * hmax - 1) / (8 * hmax);
+		mcuRows = (height + 8 * vmax - 1) / (8 * vmax);
+	}
+
+	private void readScanHeader(int p) throws IOException {
+		if (components == null) {
+			throw new IOException("Scan before frame header");
+		}
+		int count = data[p++] & 0xff;
+		if (count != components.length) {
+			throw new IOException("Unsupported non-interleaved JPEG");
+		}
+		for (int i = 0; i < count; i++) {
+			int id = data[p] & 0xff;
+			Component c = components[i];
+			if (c.id != id) {
+				throw new IOException("Unsupported scan component order");
+			}
+			c.dcTable = (data[p + 1] >> 4) & 0x03;
+			c.acTable = data[p + 1] & 0x03;
+			if (quant[c.tq] == null || dcTables[c.dcTable] == null
+					|| acTables[c.acTable] == null) {
+				throw new IOException("Missing JPEG tables");
+			}
+			p += 2;
+		}
+		int ss = data[p] & 0xff;
+		int se = data[p + 1] & 0xff;
+		if (ss != 0 || se != 63) {
+			throw new IOException("Unsupported spectral selection");
+		}
+	}
+
+	/**
+	 * Go back to the first MCU, e.g. for a second pass over the data
+	 */
+	void restartScan() {
+		mPos = scanStart;
+		mBitBuf = 0;
+		mBitCount = 0;
+		mHitMarker = false;
+		mMcusToGo = restartInterval;
+		mNextRestart = 0;
+		for (Component c : components) {
+			c.pred = 0;
+		}
+	}
+
+	/**
+	 * Decode the next MCU. blocks[i] receives the i'th block of the MCU in
+	 * natural order, component by component; coefficients are left
+	 * quantized, and DC values are absolute rather than differences.
+	 */
+	void readMcu(int[][] blocks) throws IOException {
+		if (restartInterval > 0) {
+			if (mMcusToGo == 0) {
+				readRestart();
+			}
+			mMcusToGo--;
+		}
+		int b = 0;
+		for (Component c : components) {
+			HuffmanTable dc = dcTables[c.dcTable];
+			HuffmanTable ac = acTables[c.acTable];
+			for (int i = c.h * c.v; i > 0; i--) {
+				int[] blk = blocks[b++];
+				for (int k = 0; k < 64; k++) {
+					blk[k] = 0;
+				}
+				int t = decode(dc);
+				if (t != 0) {
+					c.pred += extend(bits(t), t);
+				}
+				blk[0] = c.pred;
+				for (int k = 1; k < 64; k++) {
+					int rs = decode(ac);
+					int r = rs >> 4;
+					int s = rs & 0x0f;
+					if (s == 0) {
+						if (r != 15) {
+							break;
+						}
+						k += 15;
+						continue;
+					}
+					k += r;
+					if (k > 63) {
+						throw new IOException("Corrupt JPEG data");
+					}
+					blk[NATURAL_ORDER[k]] = extend(bits(s), s);
+				}
+			}
+		}
+	}
+
+	private void readRestart() throws IOException {
+		// Skip any padding bits, and find the RSTn marker
+		mBitBuf = 0;
+		mBitCount = 0;
+		mHitMarker = false;
+		while (mPos + 1 < mEnd && !((data[mPos] & 0xff) == 0xff
+				&& (data[mPos + 1] & 0xff) == RST0 + mNextRestart)) {
+			mPos++;
+		}
+		if (mPos + 1 >= mEnd) {
+			throw new IOException("Missing JPEG restart marker");
+		}
+		mPos += 2;
+		mNextRestart = (mNextRestart + 1) & 7;
+		mMcusToGo = restartInterval;
+		for (Component c : components) {
+			c.pred = 0;
+		}
+	}
+
+	private void fill() {
+		while (mBitCount <= 24) {
+			int b = 0;
+			if (!mHitMarker) {
+				if (mPos >= mEnd) {
+					mHitMarker = true;
+				} else {
+					b = data[mPos] & 0xff;
+					if (b == 0xff) {
+						int next = mPos + 1 < mEnd ? data[mPos + 1] & 0xff : 0xd9;
+						if (next == 0) {
+							mPos += 2;
+						} else {
+							// Ran into a marker; feed zeros from here on
+							mHitMarker = true;
+							b = 0;
+						}
+					} else {
+						mPos++;
+					}
+				}
+			}
+			mBitBuf = (mBitBuf << 8) | b;
+			mBitCount += 8;
+		}
+	}
+
+	private int bits(int n) {
+		if (mBitCount < n) {
+			fill();
+		}
+		mBitCount -= n;
+		return (mBitBuf >>> mBitCount) & ((1 << n) - 1);
+	}
+
+	private int decode(HuffmanTable table) throws IOException {
+		if (mBitCount < 16) {
+			fill();
+		}
+		int look = (mBitBuf >>> (mBitCount - HuffmanTable.LOOKAHEAD))
+				& ((1 << HuffmanTable.LOOKAHEAD) - 1);
+		int length = table.lookLength[look];
+		if (length > 0) {
+			mBitCount -= length;
+			return table.lookValue[look] & 0xff;
+		}
+		// Longer code than the lookahead covers, go a bit at a time
+		int l = HuffmanTable.LOOKAHEAD + 1;
+		int code = bits(l);
+		while (l <= 16 && code > table.maxCode[l]) {
+			code = (code << 1) | bits(1);
+			l++;
+		}
+		if (l > 16) {
+			throw new IOException("Corrupt JPEG Huffman code");
+		}
+		return table.values[table.valPtr[l] + code - table.minCode[l]];
+	}
+
+	private static int extend(int v, int t) {
+		return v < (1 << (t - 1)) ? v - (1 << t) + 1 : v;
+	}
+}
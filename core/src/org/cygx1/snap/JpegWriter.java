@@ -0,0 +1,254 @@
+package org.cygx1.snap;
+
+/**
+ * Writes baseline JPEG marker segments and Huffman-coded coefficient
+ * blocks. The counterpart of JpegReader.
+ */
+final class JpegWriter {
+	// Annex K.1 quantization tables, in natural order
+	private static final int[] LUMINANCE_QUANT = { 16, 11, 10, 16, 24, 40,
+			51, 61, 12, 12, 14, 19, 26, 58, 60, 55, 14, 13, 16, 24, 40, 57, 69,
+			56, 14, 17, 22, 29, 51, 87, 80, 62, 18, 22, 37, 56, 68, 109, 103,
+			77, 24, 35, 55, 64, 81, 104, 113, 92, 49, 64, 78, 87, 103, 121,
+			120, 101, 72, 92, 95, 98, 112, 100, 103, 99 };
+	private static final int[] CHROMINANCE_QUANT = { 17, 18, 24, 47, 99, 99,
+			99, 99, 18, 21, 26, 66, 99, 99, 99, 99, 24, 26, 56, 99, 99, 99, 99,
+			99, 47, 66, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99,
+			99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99,
+			99, 99, 99, 99, 99, 99, 99 };
+
+	private final PooledOutputStream mOut;
+	private int mPutBuf;
+	private int mPutBits;
+
+	JpegWriter(PooledOutputStream out) {
+		mOut = out;
+	}
+
+	/**
+	 * The standard tables scaled to a 1-100 quality setting, the same way
+	 * libjpeg does it
+	 */
+	static int[] quantTable(boolean chrominance, int quality) {
+		quality = Math.max(1, Math.min(100, quality));
+		int scale = quality < 50 ? 5000 / quality : 200 - quality * 2;
+		int[] base = chrominance ? CHROMINANCE_QUANT : LUMINANCE_QUANT;
+		int[] table = new int[64];
+		for (int i = 0; i < 64; i++) {
+			table[i] = Math.max(1, Math.min(255, (base[i] * scale + 50) / 100));
+		}
+		return table;
+	}
+
+	void writeMarker(int marker) {
+		mOut.write(0xff);
+		mOut.write(marker);
+	}
+
+	void writeRaw(byte[] data, int offset, int length) {
+		mOut.write(data, offset, length);
+	}
+
+	private void write16(int v) {
+		mOut.write(v >> 8);
+		mOut.write(v);
+	}
+
+	/**
+	 * Write a DQT segment for every non-null table
+	 */
+	void writeDqt(int[][] tables) {
+		int length = 2;
+		for (int[] table : tables) {
+			if (table != null) {
+				length += 1 + (is16Bit(table) ? 128 : 64);
+			}
+		}
+		writeMarker(JpegReader.DQT);
+		write16(length);
+		for (int i = 0; i < tables.length; i++) {
+			int[] table = tables[i];
+			if (table == null) {
+				continue;
+			}
+			boolean wide = is16Bit(table);
+			mOut.write((wide ? 0x10 : 0) | i);
+			for (int k = 0; k < 64; k++) {
+				int q = table[JpegReader.NATURAL_ORDER[k]];
+				if (wide) {
+					write16(q);
+				} else {
+					mOut.write(q);
+				}
+			}
+		}
+	}
+
+	private static boolean is16Bit(int[] table) {
+		for (int q : table) {
+			if (q > 255) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	void writeFrame(int marker, int width, int height,
+			JpegReader.Component[] components) {
+		writeMarker(marker);
+		write16(8 + 3 * components.length);
+		mOut.write(8);
+		write16(height);
+		write16(width);
+		mOut.write(components.length);
+		for (JpegReader.Component c : components) {
+			mOut.write(c.id);
+			mOut.write((c.h << 4) | c.v);
+			mOut.write(c.tq);
+		}
+	}
+
+	/**
+	 * Write a DHT segment for every non-null table
+	 */
+	void writeDht(HuffmanTable[] dc, HuffmanTable[] ac) {
+		int length = 2;
+		for (int i = 0; i < 4; i++) {
+			length += dc[i] != null ? dc[i].dhtLength() : 0;
+			length += ac[i] != null ? ac[i].dhtLength() : 0;
+		}
+		byte[] segment = new byte[length + 2];
+		segment[0] = (byte) 0xff;
+		segment[1] = (byte) JpegReader.DHT;
+		segment[2] = (byte) (length >> 8);
+		segment[3] = (byte) length;
+		int p = 4;
+		for (int i = 0; i < 4; i++) {
+			if (dc[i] != null) {
+				p = dc[i].writeDht(segment, p, 0, i);
+			}
+			if (ac[i] != null) {
+				p = ac[i].writeDht(segment, p, 1, i);
+			}
+		}
+		mOut.write(segment, 0, segment.length);
+	}
+
+	void writeRestartInterval(int interval) {
+		writeMarker(JpegReader.DRI);
+		write16(4);
+		write16(interval);
+	}
+
+	void writeScanHeader(JpegReader.Component[] components) {
+		writeMarker(JpegReader.SOS);
+		write16(6 + 2 * components.length);
+		mOut.write(components.length);
+		for (JpegReader.Component c : components) {
+			mOut.write(c.id);
+			mOut.write((c.dcTable << 4) | c.acTable);
+		}
+		mOut.write(0);
+		mOut.write(63);
+		mOut.write(0);
+	}
+
+	private void emit(int code, int size) {
+		mPutBuf = (mPutBuf << size) | (code & ((1 << size) - 1));
+		mPutBits += size;
+		while (mPutBits >= 8) {
+			int c = (mPutBuf >> (mPutBits - 8)) & 0xff;
+			mOut.write(c);
+			if (c == 0xff) {
+				// byte stuffing
+				mOut.write(0);
+			}
+			mPutBits -= 8;
+		}
+	}
+
+	private static int bitLength(int v) {
+		if (v < 0) {
+			v = -v;
+		}
+		int n = 0;
+		while (v != 0) {
+			n++;
+			v >>= 1;
+		}
+		return n;
+	}
+
+	/**
+	 * Huffman-code one block of quantized coefficients (natural order),
+	 * with dcDiff the difference from the previous block's DC
+	 */
+	void writeBlock(int[] block, int dcDiff, HuffmanTable dc, HuffmanTable ac) {
+		int n = bitLength(dcDiff);
+		emit(dc.codes[n], dc.sizes[n]);
+		if (n > 0) {
+			emit(dcDiff < 0 ? dcDiff - 1 : dcDiff, n);
+		}
+		int run = 0;
+		for (int k = 1; k < 64; k++) {
+			int v = block[JpegReader.NATURAL_ORDER[k]];
+			if (v == 0) {
+				run++;
+				continue;
+			}
+			while (run > 15) {
+				emit(ac.codes[0xf0], ac.sizes[0xf0]);
+				run -= 16;
+			}
+			n = bitLength(v);
+			int symbol = (run << 4) | n;
+			emit(ac.codes[symbol], ac.sizes[symbol]);
+			emit(v < 0 ? v - 1 : v, n);
+			run = 0;
+		}
+		if (run > 0) {
+			emit(ac.codes[0], ac.sizes[0]);
+		}
+	}
+
+	/**
+	 * Tally the symbols writeBlock() would emit, for building optimal
+	 * Huffman tables
+	 */
+	static void countBlock(int[] block, int dcDiff, long[] dcFreq, long[] acFreq) {
+		dcFreq[bitLength(dcDiff)]++;
+		int run = 0;
+		for (int k = 1; k < 64; k++) {
+			int v = block[JpegReader.NATURAL_ORDER[k]];
+			if (v == 0) {
+				run++;
+				continue;
+			}
+			while (run > 15) {
+				acFreq[0xf0]++;
+				run -= 16;
+			}
+			acFreq[(run << 4) | bitLength(v)]++;
+			run = 0;
+		}
+		if (run > 0) {
+			acFreq[0]++;
+		}
+	}
+
+	/**
+	 * Pad the entropy-coded data out to a byte boundary with 1 bits
+	 */
+	void flushBits() {
+		if (mPutBits > 0) {
+			emit(0x7f, 8 - mPutBits);
+		}
+		mPutBuf = 0;
+		mPutBits = 0;
+	}
+
+	void writeRestart(int n) {
+		flushBits();
+		writeMarker(JpegReader.RST0 + (n & 7));
+	}
+}
@@ -0,0 +1,121 @@
+package org.cygx1.snap;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The SendRecords of the most recent sends, in a fixed-size ring so that
+ * keeping them costs nothing once it's full, with percentiles over them for
+ * the stats screen and an export to CSV.
+ */
+public class LatencyLog {
+	private static final int CAPACITY = 256;
+
+	private static LatencyLog sInstance = null;
+
+	public static synchronized LatencyLog getInstance() {
+		if (sInstance == null) {
+			sInstance = new LatencyLog();
+		}
+		return sInstance;
+	}
+
+	private final SendRecord[] mRing = new SendRecord[CAPACITY];
+	private int mNext = 0;
+	private int mCount = 0;
+
+	private LatencyLog() {
+	}
+
+	public synchronized void add(SendRecord record) {
+		mRing[mNext] = record;
+		mNext = (mNext + 1) % CAPACITY;
+		if (mCount < CAPACITY) {
+			mCount++;
+		}
+	}
+
+	/**
+	 * @return the records, oldest first
+	 */
+	public synchronized List<SendRecord> snapshot() {
+		List<SendRecord> records = new ArrayList<SendRecord>(mCount);
+		for (int i = 0; i < mCount; i++) {
+			records.add(mRing[(mNext - mCount + i + CAPACITY) % CAPACITY]);
+		}
+		return records;
+	}
+
+	public synchronized void clear() {
+		Arrays.fill(mRing, null);
+		mNext = 0;
+		mCount = 0;
+	}
+
+	/**
+	 * Percentiles of a span over the records that have it
+	 * @param percentiles - e.g. 50, 90, 99
+	 * @return the values in ns, or null if no record has the span
+	 */
+	public static long[] percentiles(List<SendRecord> records, SendRecord.Span span,
+			int[] percentiles) {
+		long[] values = new long[records.size()];
+		int n = 0;
+		for (SendRecord record : records) {
+			long value = record.span(span);
+			if (value >= 0) {
+				values[n++] = value;
+			}
+		}
+		if (n == 0) {
+			return null;
+		}
+		Arrays.sort(values, 0, n);
+		long[] result = new long[percentiles.length];
+		for (int i = 0; i < percentiles.length; i++) {
+			int rank = (int) Math.ceil(n * percentiles[i] / 100.0) - 1;
+			result[i] = values[Math.max(0, Math.min(n - 1, rank))];
+		}
+		return result;
+	}
+
+	/**
+	 * Write every record out as CSV: one line per send, with its time,
+	 * outcome, sizes and each span in ms (blank where it didn't happen)
+	 */
+	public void export(File file) throws IOException {
+		List<SendRecord> records = snapshot();
+		file.getParentFile().mkdirs();
+		PrintWriter out = new PrintWriter(new FileWriter(file));
+		try {
+			out.print("time,sent,photos,photo_bytes,wire_bytes");
+			for (SendRecord.Span span : SendRecord.Span.values()) {
+				out.print("," + span.name().toLowerCase() + "_ms");
+			}
+			out.print("\n");
+			for (SendRecord record : records) {
+				out.print(record.getWhen() + "," + record.isSent() + ","
+						+ record.getPhotos() + "," + record.getPhotoBytes() + ","
+						+ record.getWireBytes());
+				for (SendRecord.Span span : SendRecord.Span.values()) {
+					long ns = record.span(span);
+					out.print(",");
+					if (ns >= 0) {
+						out.print(ns / 1000000.0);
+					}
+				}
+				out.print("\n");
+			}
+			if (out.checkError()) {
+				throw new IOException("Unable to write " + file);
+			}
+		} finally {
+			out.close();
+		}
+	}
+}
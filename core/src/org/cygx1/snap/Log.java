@@ -0,0 +1,64 @@
+package org.cygx1.snap;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+/**
+ * Logging for the code in core, which can't use android.util.Log. The calls
+ * are the same, and so are the priorities; where the lines end up is up to
+ * the platform, which installs a Printer. Until it does, they go to
+ * System.err.
+ */
+public final class Log {
+	public static final int DEBUG = 3;
+	public static final int WARN = 5;
+	public static final int ERROR = 6;
+
+	/**
+	 * Where log lines go
+	 */
+	public interface Printer {
+		void println(int priority, String tag, String msg, Throwable tr);
+	}
+
+	private static volatile Printer sPrinter = new Printer() {
+		public void println(int priority, String tag, String msg, Throwable tr) {
+			String level = priority >= ERROR ? "E" : (priority >= WARN ? "W" : "D");
+			StringWriter line = new StringWriter();
+			PrintWriter out = new PrintWriter(line);
+			out.println(level + "/" + tag + ": " + msg);
+			if (tr != null) {
+				tr.printStackTrace(out);
+			}
+			out.flush();
+			System.err.print(line);
+		}
+	};
+
+	private Log() {
+	}
+
+	public static void setPrinter(Printer printer) {
+		sPrinter = printer;
+	}
+
+	public static void d(String tag, String msg) {
+		sPrinter.println(DEBUG, tag, msg, null);
+	}
+
+	public static void w(String tag, String msg) {
+		sPrinter.println(WARN, tag, msg, null);
+	}
+
+	public static void w(String tag, String msg, Throwable tr) {
+		sPrinter.println(WARN, tag, msg, tr);
+	}
+
+	public static void e(String tag, String msg) {
+		sPrinter.println(ERROR, tag, msg, null);
+	}
+
+	public static void e(String tag, String msg, Throwable tr) {
+		sPrinter.println(ERROR, tag, msg, tr);
+	}
+}
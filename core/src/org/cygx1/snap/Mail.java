@@ -0,0 +1,436 @@
+package org.cygx1.snap;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Properties;
+
+import javax.activation.CommandMap;
+import javax.activation.MailcapCommandMap;
+import javax.mail.BodyPart;
+import javax.mail.MessagingException;
+import javax.mail.Multipart;
+import javax.mail.NoSuchProviderException;
+import javax.mail.PasswordAuthentication;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.internet.AddressException;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+
+public class Mail extends javax.mail.Authenticator {
+	public static final String DEFAULT_HOST = "smtp.gmail.com";
+
+	private String _user;
+	private String _pass;
+
+	private String[] _to;
+	private String _from;
+
+	private String _port;
+	private String _sport;
+
+	private String _host;
+	private boolean _ssl;
+
+	private String _subject;
+	private String _body;
+
+	// Our own Message-ID, and those of the messages this one follows up
+	private String _messageId;
+	private List<String> _references = new ArrayList<String>();
+	// Date: header; like the Message-ID, the same in every encoding
+	private Date _sentDate;
+
+	private boolean _auth;
+
+	private boolean _debuggable;
+
+	private List<BodyPart> _attachments = new ArrayList<BodyPart>();
+	private long _attachmentBytes;
+
+	// The message, once encoded, for servers that do and don't take binary
+	private EncodedMessage _encodedText;
+	private EncodedMessage _encodedBinary;
+
+	// Count of Message-IDs we've made, to tell them apart within a millisecond
+	private static long sMessageIds = 0;
+
+	public Mail() {
+		_host = DEFAULT_HOST; // default smtp server
+		_port = "465"; // default smtp port
+		_sport = "465"; // default socketfactory port
+		_ssl = true; // SSL from the start, not STARTTLS
+
+		_user = ""; // username
+		_pass = ""; // password
+		_from = ""; // email sent from
+		_subject = ""; // email subject
+		_body = ""; // email body
+
+		_debuggable = false; // debug mode on or off - default off
+		_auth = true; // smtp authentication - default on
+
+		// There is something wrong with MailCap, javamail can not find a
+		// handler for the multipart/mixed part, so this bit needs to be added.
+		MailcapCommandMap mc = (MailcapCommandMap) CommandMap
+				.getDefaultCommandMap();
+		mc
+				.addMailcap("text/html;; x-java-content-handler=com.sun.mail.handlers.text_html");
+		mc
+				.addMailcap("text/xml;; x-java-content-handler=com.sun.mail.handlers.text_xml");
+		mc
+				.addMailcap("text/plain;; x-java-content-handler=com.sun.mail.handlers.text_plain");
+		mc
+				.addMailcap("multipart/*;; x-java-content-handler=com.sun.mail.handlers.multipart_mixed");
+		mc
+				.addMailcap("message/rfc822;; x-java-content-handler=com.sun.mail.handlers.message_rfc822");
+		CommandMap.setDefaultCommandMap(mc);
+	}
+
+	public Mail(String user, String pass) {
+		this();
+
+		_user = user;
+		_pass = pass;
+	}
+
+	/**
+	 * Send the message to everyone, in one transaction with the relay: the
+	 * relay is the server every recipient's copy goes through, so it gets
+	 * every RCPT TO and the message is uploaded once, whoever it is for.
+	 * The message is encoded once, and calling send() again after a failure
+	 * sends the same encoding.
+	 * @return false if the settings are incomplete
+	 */
+	public boolean send() throws Exception {
+		if (_user.equals("") || _pass.equals("") || _to.length == 0
+				|| _from.equals("") || _subject.equals("")
+				/* || _body.equals("") */) {
+			return false;
+		}
+		_sendTo(_newSession(_setProperties()), _recipients(true));
+		return true;
+	}
+
+	/**
+	 * Send the message over a pooled connection
+	 */
+	private void _sendTo(Session session, InternetAddress[] recipients)
+			throws Exception {
+		TransportPool pool = TransportPool.getInstance();
+		SendRecord.markCurrent(SendRecord.Stage.ACQUIRE);
+		Transport transport = pool.acquire(session, _host,
+				Integer.parseInt(_port), _user, _pass);
+		SendRecord.markCurrent(SendRecord.Stage.ACQUIRED);
+		try {
+			boolean binary = transport instanceof ChunkingTransport
+					&& ((ChunkingTransport) transport).supportsBinary();
+			EncodedMessage msg = _encoded(session, binary);
+			SendRecord.markCurrent(SendRecord.Stage.MIME);
+			transport.sendMessage(msg, recipients);
+		} catch (Exception e) {
+			pool.discard(transport);
+			throw e;
+		}
+		pool.release(transport);
+	}
+
+	/**
+	 * The message, encoded for a connection that does or doesn't take
+	 * binary parts, encoded the first time it's wanted and kept for
+	 * retries. Once the attachments are gone, only the encoding
+	 * that suits every server is left.
+	 */
+	private synchronized EncodedMessage _encoded(Session session, boolean binary)
+			throws Exception {
+		if (binary && _encodedBinary != null) {
+			return _encodedBinary;
+		}
+		if (_encodedText == null) {
+			_encodedText = _encode(session, false);
+		}
+		if (!binary || _attachments == null) {
+			return _encodedText;
+		}
+		_encodedBinary = _encode(session, true);
+		return _encodedBinary;
+	}
+
+	/**
+	 * Only called with the lock held. Whichever encoding a server gets, it
+	 * is the same message, with the same Message-ID and Date.
+	 */
+	private EncodedMessage _encode(Session session, boolean binary) throws Exception {
+		if (_messageId == null) {
+			_messageId = newMessageId(_from);
+		}
+		if (_sentDate == null) {
+			_sentDate = new Date();
+		}
+		MimeMessage msg = new MimeMessage(session) {
+			@Override
+			protected void updateMessageID() throws MessagingException {
+				setHeader("Message-ID", _messageId);
+			}
+		};
+
+		msg.setFrom(new InternetAddress(_from));
+		msg.setRecipients(MimeMessage.RecipientType.TO, _recipients(false));
+
+		msg.setSubject(_subject);
+		msg.setSentDate(_sentDate);
+		if (!_references.isEmpty()) {
+			// Threads it with what it follows up in the recipient's mail
+			StringBuilder references = new StringBuilder();
+			for (String id : _references) {
+				if (references.length() > 0) {
+					references.append(' ');
+				}
+				references.append(id);
+			}
+			msg.setHeader("In-Reply-To", _references.get(_references.size() - 1));
+			msg.setHeader("References", references.toString());
+		}
+
+		// setup message body; quoted-printable takes care of its line
+		// endings, whichever way it goes out
+		Multipart multipart = new MimeMultipart();
+		BodyPart messageBodyPart = new MimeBodyPart();
+		messageBodyPart.setText(_body);
+		messageBodyPart.setHeader("Content-Transfer-Encoding", "quoted-printable");
+		multipart.addBodyPart(messageBodyPart);
+		for (BodyPart attachment : _attachments) {
+			// No need to base64 the photos if the server takes binary
+			attachment.setHeader("Content-Transfer-Encoding", binary ? "binary" : "base64");
+			multipart.addBodyPart(attachment);
+		}
+
+		// Put parts in message
+		msg.setContent(multipart);
+		msg.saveChanges();
+		int size = (int) Math.min(Integer.MAX_VALUE - 8192, _attachmentBytes * 4 / 3 + 8192);
+		return EncodedMessage.encode(session, msg, size);
+	}
+
+	/**
+	 * Keep the message for another send() without holding on to the
+	 * attachments' bytes: encode it in the form every server takes, if
+	 * that hasn't been done yet, and move it out of memory into a file.
+	 */
+	public synchronized void detach(File spill) throws Exception {
+		if (_encodedText == null && _attachments != null) {
+			_encodedText = _encode(_newSession(_setProperties()), false);
+		}
+		if (_encodedBinary != null) {
+			_encodedBinary.release();
+			_encodedBinary = null;
+		}
+		_attachments = null;
+		if (_encodedText != null) {
+			_encodedText.spill(spill);
+		}
+	}
+
+	/**
+	 * Done with the message, whether it went or not
+	 */
+	public synchronized void release() {
+		if (_encodedText != null) {
+			_encodedText.release();
+			_encodedText = null;
+		}
+		if (_encodedBinary != null) {
+			_encodedBinary.release();
+			_encodedBinary = null;
+		}
+	}
+
+	/**
+	 * @return how many bytes of attachments the message carries
+	 */
+	public long getAttachmentBytes() {
+		return _attachmentBytes;
+	}
+
+	/**
+	 * The recipients, each entry of which may be a list of addresses or a
+	 * group ("Family: a@example.com, b@example.com;")
+	 * @param expand - whether to replace groups with their members
+	 */
+	private InternetAddress[] _recipients(boolean expand) throws AddressException {
+		List<InternetAddress> recipients = new ArrayList<InternetAddress>();
+		for (String to : _to) {
+			for (InternetAddress address : InternetAddress.parse(to, false)) {
+				if (expand && address.isGroup()) {
+					for (InternetAddress member : address.getGroup(false)) {
+						recipients.add(member);
+					}
+				} else {
+					recipients.add(address);
+				}
+			}
+		}
+		return recipients.toArray(new InternetAddress[recipients.size()]);
+	}
+
+	/**
+	 * Open and authenticate a pooled connection in the background, so the
+	 * handshake is already out of the way when send() is called
+	 */
+	public void prewarm() {
+		if (_user != null && _pass != null && !_user.equals("")
+				&& !_pass.equals("")) {
+			Session session = _newSession(_setProperties());
+			TransportPool.getInstance().prewarm(session, _host,
+					Integer.parseInt(_port), _user, _pass);
+		}
+	}
+
+	public void addAttachment(String filename) throws Exception {
+		BodyPart messageBodyPart = new AttachmentPart(
+				new MappedFileDataSource(filename), filename);
+
+		_attachments.add(messageBodyPart);
+		_attachmentBytes += new File(filename).length();
+	}
+
+	/**
+	 * Attach a JPEG that is still in memory. The bytes must stay untouched
+	 * until send() returns.
+	 */
+	public void addAttachment(String filename, byte[] data, int length)
+			throws Exception {
+		BodyPart messageBodyPart = new AttachmentPart(
+				new JpegDataSource(filename, data, length), filename);
+
+		_attachments.add(messageBodyPart);
+		_attachmentBytes += length;
+	}
+
+	@Override
+	public PasswordAuthentication getPasswordAuthentication() {
+		return new PasswordAuthentication(_user, _pass);
+	}
+
+	/**
+	 * A session that sends with ChunkingTransport, for pipelining, chunking
+	 * and binary attachments where the server supports them
+	 */
+	private Session _newSession(Properties props) {
+		Session session = Session.getInstance(props, this);
+		try {
+			session.setProvider(ChunkingTransport.PROVIDER);
+		} catch (NoSuchProviderException e) {
+			// Only thrown for a null provider; the stock transport will do
+		}
+		return session;
+	}
+
+	private Properties _setProperties() {
+		Properties props = new Properties();
+
+		props.put("mail.smtp.host", _host);
+
+		if (_debuggable) {
+			props.put("mail.debug", "true");
+		}
+
+		if (_auth) {
+			props.put("mail.smtp.auth", "true");
+		}
+
+		props.put("mail.smtp.port", _port);
+		props.put("mail.smtp.socketFactory.port", _sport);
+		props.put("mail.smtp.socketFactory.class", _ssl
+				? SmtpSocketFactory.class.getName()
+				: SmtpSocketFactory.Plain.class.getName());
+		props.put("mail.smtp.socketFactory.fallback", "false");
+		if (!_ssl) {
+			// Don't send the password in the clear if there's a choice
+			props.put("mail.smtp.starttls.enable", "true");
+		}
+
+		// pooled connections can sit around for a while, so don't let a dead
+		// one hang a send forever
+		props.put("mail.smtp.connectiontimeout", "30000");
+		props.put("mail.smtp.timeout", "60000");
+
+		return props;
+	}
+
+	// the getters and setters
+	public String getBody() {
+		return _body;
+	}
+
+	public void setBody(String _body) {
+		this._body = _body;
+	}
+
+	// more of the getters and setters …..
+
+	public void setTo(String[] toArr) {
+		this._to = toArr;
+	}
+
+	public void setFrom(String string) {
+		this._from = string;
+	}
+
+	public void setSubject(String string) {
+		this._subject = string;
+	}
+
+	/**
+	 * Send through some other server than Gmail's, e.g. a test server
+	 * @param ssl - whether it wants SSL from the start, as port 465 does
+	 */
+	public void setServer(String host, int port, boolean ssl) {
+		this._host = host;
+		this._port = String.valueOf(port);
+		this._sport = this._port;
+		this._ssl = ssl;
+	}
+
+	public void setAccount(String user, String pass) {
+		this._user = user;
+		this._pass = pass;
+	}
+
+	/**
+	 * Use our own Message-ID, e.g. one made by newMessageId(), instead of
+	 * one made up when the message is encoded
+	 */
+	public void setMessageId(String messageId) {
+		this._messageId = messageId;
+	}
+
+	/**
+	 * Mark the message as a follow-up to an earlier one
+	 */
+	public void addReference(String messageId) {
+		if (!_references.contains(messageId)) {
+			_references.add(messageId);
+		}
+	}
+
+	/**
+	 * @return a new Message-ID for a message from the given address
+	 */
+	public static String newMessageId(String from) {
+		String domain = "localhost";
+		int at = from != null ? from.lastIndexOf('@') : -1;
+		if (at >= 0 && at < from.length() - 1) {
+			domain = from.substring(at + 1);
+		}
+		long n;
+		synchronized (Mail.class) {
+			n = ++sMessageIds;
+		}
+		return "<" + System.currentTimeMillis() + "." + n + ".snap@" + domain + ">";
+	}
+}
\ No newline at end of file
@@ -0,0 +1,497 @@
+package org.cygx1.snap;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Mails photos for the Outbox. Photos are shrunk, re-coded and left out as
+ * repeats according to the Settings, and a message that fails is kept
+ * encoded for the retry. If the settings ask for it, a small preview of
+ * the photos goes out first, and the full-size message follows it up in
+ * the same thread; if the full size never makes it, the recipient at least
+ * has the preview. Messages are spread across the relays by RelayBalancer,
+ * and move to another relay if the one they went to lets them down.
+ *
+ * Nothing here depends on the platform: PhotoSender supplies the settings
+ * from the app's preferences, and a load test can supply its own.
+ */
+public class MailDelivery implements Outbox.Delivery, Outbox.Previewer {
+	private static final String TAG = "Snap";
+	// Previews are shrunk to 1/8 scale or so: a few KB each
+	private static final int PREVIEW_SIZE = 160;
+	private static final int PREVIEW_QUALITY = 50;
+
+	/**
+	 * How to send, and to whom. Read afresh for each message, so changes
+	 * apply to the next one.
+	 */
+	public interface Settings {
+		/** @return a message with the recipients and subject set */
+		Mail newMail();
+
+		/** @return the address messages are from */
+		String getFrom();
+
+		/** @return the servers messages go through; at least one */
+		List<Relay> getRelays();
+
+		/** @return the longest side to send photos at; 0 for as they are */
+		int getMaxDimension();
+
+		/** @return JPEG quality for shrunk photos */
+		int getJpegQuality();
+
+		/**
+		 * @return most bits two photos' hashes can differ by and still
+		 *         count as repeats; 0 to send everything
+		 */
+		int getRepeatDistance();
+
+		/** @return seconds a message should take to send; 0 for no target */
+		int getTargetSeconds();
+
+		/** @return whether to send a preview ahead of the photos */
+		boolean isPreviewFirst();
+	}
+
+	private final Settings mSettings;
+	private final RelayBalancer mRelays = new RelayBalancer();
+	// Where messages waiting for a retry are kept
+	private final File mSpillDir;
+	// Messages waiting to be retried, by the list of photos the outbox
+	// will retry them with
+	private final Map<List<Photo>, Mail> mRetries = new IdentityHashMap<List<Photo>, Mail>();
+	private final RepeatFilter mRepeats = new RepeatFilter();
+	// Photos left out as repeats of others, until the outbox reports back
+	private final Map<Photo, Boolean> mSkipped = new IdentityHashMap<Photo, Boolean>();
+
+	/**
+	 * @param spillDir - where to keep messages waiting for a retry
+	 */
+	public MailDelivery(Settings settings, File spillDir) {
+		mSettings = settings;
+		mSpillDir = spillDir;
+	}
+
+	/**
+	 * @return the relays, as one: the outbox spaces out sends to them
+	 *         together
+	 */
+	public String getServer() {
+		return mSettings.getRelays().toString();
+	}
+
+	/**
+	 * Send photos via email, all in one message. Photos still in memory are
+	 * attached from there rather than read back off the SD card, and are
+	 * shrunk first if the settings ask for it, then given Huffman tables of
+	 * their own. A retry picks up the message where the last attempt left
+	 * it.
+	 * @param photos - the photos to attach
+	 */
+	public void deliver(List<Photo> photos) throws Exception {
+		SendRecord record = new SendRecord();
+		record.mark(SendRecord.Stage.SEND_START);
+		record.begin();
+		// Nothing goes out if they're all repeats, and that's no send to
+		// count in the times
+		boolean skipped = false;
+		try {
+			skipped = !send(photos, record);
+			if (!skipped) {
+				record.setSent(true);
+				ThroughputEstimator.getInstance().add(record);
+			}
+		} finally {
+			record.end();
+			if (!skipped) {
+				// The first photo has been waiting longest; by now it has
+				// usually been written out too
+				photos.get(0).stamp(record);
+				LatencyLog.getInstance().add(record);
+			}
+		}
+	}
+
+	/**
+	 * @return false if there was nothing to send, all the photos being
+	 *         repeats
+	 */
+	private boolean send(List<Photo> photos, SendRecord record) throws Exception {
+		Mail m;
+		synchronized (mRetries) {
+			m = mRetries.remove(photos);
+		}
+		if (m != null) {
+			// Already encoded
+			record.setPhotos(photos.size(), m.getAttachmentBytes());
+			try {
+				sendThroughRelays(m);
+			} catch (Exception e) {
+				synchronized (mRetries) {
+					mRetries.put(photos, m);
+				}
+				throw e;
+			}
+			m.release();
+			rememberSent(photos);
+			return true;
+		}
+
+		int maxDimension = mSettings.getMaxDimension();
+		int quality = mSettings.getJpegQuality();
+		int repeatDistance = mSettings.getRepeatDistance();
+		int targetSeconds = mSettings.getTargetSeconds();
+
+		List<Photo> sending = repeatDistance > 0 ? dropRepeats(photos, repeatDistance) : photos;
+		if (sending.isEmpty()) {
+			Log.d(TAG, "Not sending " + photos + ", nothing new in them");
+			return false;
+		}
+
+		// What each photo can be and still get there in time
+		long byteBudget = 0;
+		if (targetSeconds > 0) {
+			byteBudget = Math.max(0, ThroughputEstimator.getInstance().budget(targetSeconds)
+					/ sending.size());
+		}
+
+		m = mSettings.newMail();
+		for (Photo photo : sending) {
+			String previewId = photo.getPreviewId();
+			if (previewId != null) {
+				m.addReference(previewId);
+			}
+		}
+		List<Photo> retained = new ArrayList<Photo>();
+		List<PooledOutputStream> scaled = new ArrayList<PooledOutputStream>();
+		try {
+			// The photo whose bytes are held but not yet in retained or scaled
+			Photo held = null;
+			try {
+				for (Photo photo : sending) {
+					String filename = photo.getFile().getAbsolutePath();
+					PooledOutputStream small = null;
+					if (maxDimension > 0 || byteBudget > 0) {
+						photo.open();
+						held = photo;
+						small = downscale(photo, maxDimension, quality, byteBudget);
+					} else if (photo.retain()) {
+						held = photo;
+					} else {
+						m.addAttachment(filename);
+						continue;
+					}
+					// Whichever bytes are going, Huffman-code them for less
+					PooledOutputStream optimized = small != null
+							? optimize(photo, small.getBuffer(), small.size())
+							: optimize(photo, photo.getData(), photo.getLength());
+					if (optimized != null) {
+						if (small != null) {
+							small.release();
+						}
+						small = optimized;
+					}
+					if (small != null) {
+						scaled.add(small);
+						held = null;
+						photo.release();
+						m.addAttachment(filename, small.getBuffer(), small.size());
+					} else {
+						retained.add(photo);
+						held = null;
+						m.addAttachment(filename, photo.getData(), photo.getLength());
+					}
+				}
+			} catch (Exception e) {
+				// Only part of it is attached, so there's nothing worth keeping:
+				// the retry starts over
+				if (held != null) {
+					held.release();
+				}
+				m.release();
+				throw e;
+			}
+			record.setPhotos(sending.size(), m.getAttachmentBytes());
+			try {
+				sendThroughRelays(m);
+			} catch (Exception e) {
+				keepForRetry(photos, m);
+				throw e;
+			}
+			m.release();
+			rememberSent(sending);
+			return true;
+		} finally {
+			for (Photo photo : retained) {
+				photo.release();
+			}
+			for (PooledOutputStream small : scaled) {
+				small.release();
+			}
+		}
+	}
+
+	/**
+	 * Send a message through one relay, and on through the others in turn
+	 * for as long as the relays are what's failing. What's left of a
+	 * message one relay gave up on part way goes to the next.
+	 */
+	private void sendThroughRelays(Mail m) throws Exception {
+		List<Relay> relays = mSettings.getRelays();
+		Set<String> tried = new HashSet<String>();
+		Exception failure = new IllegalStateException("No relays to send through");
+		Relay relay;
+		while ((relay = mRelays.pick(relays, tried)) != null) {
+			tried.add(relay.getKey());
+			relay.applyTo(m);
+			long start = System.nanoTime();
+			try {
+				if (!m.send()) {
+					throw new IllegalStateException("Mail settings are incomplete");
+				}
+				mRelays.succeeded(relay, System.nanoTime() - start);
+				return;
+			} catch (Exception e) {
+				if (!RelayBalancer.isRelayFailure(e)) {
+					throw e;
+				}
+				Log.w(TAG, "Unable to send through " + relay, e);
+				mRelays.failed(relay);
+				failure = e;
+			}
+		}
+		throw failure;
+	}
+
+	/**
+	 * Give the photos a preview if the settings ask for it, and they
+	 * aren't going to be left out as repeats anyway
+	 */
+	public boolean prepare(List<Photo> photos) {
+		if (!mSettings.isPreviewFirst()) {
+			return false;
+		}
+		String messageId = Mail.newMessageId(mSettings.getFrom());
+		for (Photo photo : photos) {
+			photo.setPreviewId(messageId);
+		}
+		return true;
+	}
+
+	/**
+	 * Send tiny versions of the photos, so the recipient has something to
+	 * look at while the full-size ones are on their way
+	 */
+	public void preview(List<Photo> photos) throws Exception {
+		int repeatDistance = mSettings.getRepeatDistance();
+
+		Mail m = mSettings.newMail();
+		m.setMessageId(photos.get(0).getPreviewId());
+		m.setBody("Preview; the full-size photo follows.");
+		List<PooledOutputStream> previews = new ArrayList<PooledOutputStream>();
+		try {
+			for (Photo photo : photos) {
+				if (repeatDistance > 0 && isRecentRepeat(photo, repeatDistance)) {
+					continue;
+				}
+				photo.open();
+				try {
+					PooledOutputStream small = JpegDownscaler.downscale(photo.getData(),
+							photo.getLength(), PREVIEW_SIZE, PREVIEW_QUALITY);
+					if (small == null) {
+						// Tiny already; the photo is its own preview
+						small = new PooledOutputStream(photo.getLength());
+						small.write(photo.getData(), 0, photo.getLength());
+					}
+					previews.add(small);
+					m.addAttachment(photo.getFile().getAbsolutePath(),
+							small.getBuffer(), small.size());
+				} finally {
+					photo.release();
+				}
+			}
+			if (previews.isEmpty()) {
+				return;
+			}
+			sendThroughRelays(m);
+			Log.d(TAG, "Sent preview of " + photos + ", " + m.getAttachmentBytes() + " bytes");
+		} finally {
+			m.release();
+			for (PooledOutputStream small : previews) {
+				small.release();
+			}
+		}
+	}
+
+	private boolean isRecentRepeat(Photo photo, int maxDistance) {
+		try {
+			return mRepeats.isRepeat(photo.hash(), maxDistance);
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Leave out photos that are much the same as one sent a moment ago, or
+	 * as one from an earlier tap in the same message. The shots of a burst
+	 * all come from one tap and are meant to look alike, so they aren't
+	 * held against each other; neither are photos whose tap isn't known.
+	 * @param maxDistance - most bits the hashes may differ by for two
+	 *            photos to count as the same
+	 */
+	private List<Photo> dropRepeats(List<Photo> photos, int maxDistance) {
+		List<Photo> kept = new ArrayList<Photo>();
+		List<Photo> hashed = new ArrayList<Photo>();
+		List<Long> keptHashes = new ArrayList<Long>();
+		for (Photo photo : photos) {
+			long hash;
+			try {
+				hash = photo.hash();
+			} catch (IOException e) {
+				Log.w(TAG, "Unable to hash " + photo + ", sending it anyway", e);
+				kept.add(photo);
+				continue;
+			}
+			boolean repeat = mRepeats.isRepeat(hash, maxDistance);
+			long tapped = photo.getTapped();
+			for (int i = 0; i < keptHashes.size() && !repeat && tapped != 0; i++) {
+				long earlier = hashed.get(i).getTapped();
+				repeat = earlier != 0 && earlier != tapped
+						&& PerceptualHash.distance(keptHashes.get(i), hash) <= maxDistance;
+			}
+			if (repeat) {
+				Log.d(TAG, "Skipping " + photo + ", a repeat of a recent shot");
+				synchronized (mSkipped) {
+					mSkipped.put(photo, Boolean.TRUE);
+				}
+			} else {
+				kept.add(photo);
+				hashed.add(photo);
+				keptHashes.add(hash);
+			}
+		}
+		return kept;
+	}
+
+	private void rememberSent(List<Photo> photos) {
+		for (Photo photo : photos) {
+			try {
+				mRepeats.remember(photo.hash());
+			} catch (IOException e) {
+				// Couldn't hash it when it went out either
+			}
+		}
+	}
+
+	/**
+	 * @return how many of the photos were left out as repeats, forgetting
+	 *         about them
+	 */
+	protected int countSkipped(List<Photo> photos) {
+		int skipped = 0;
+		synchronized (mSkipped) {
+			for (Photo photo : photos) {
+				if (mSkipped.remove(photo) != null) {
+					skipped++;
+				}
+			}
+		}
+		return skipped;
+	}
+
+	/**
+	 * Hang on to a message that didn't make it to everyone, so the retry
+	 * doesn't have to shrink and encode the photos again, or send to the
+	 * recipients who already have it. Must be called while the photos'
+	 * bytes are still there.
+	 */
+	private void keepForRetry(List<Photo> photos, Mail m) {
+		File spill = new File(mSpillDir, photos.get(0).getFile().getName() + ".eml");
+		try {
+			m.detach(spill);
+		} catch (Exception e) {
+			Log.w(TAG, "Unable to keep " + photos + " for a retry", e);
+			m.release();
+			return;
+		}
+		synchronized (mRetries) {
+			mRetries.put(photos, m);
+		}
+	}
+
+	/**
+	 * @return the photo shrunk to the preferred size, and further if need be
+	 *         to fit the byte budget, or null to send it as it is
+	 */
+	private PooledOutputStream downscale(Photo photo, int maxDimension, int quality,
+			long byteBudget) {
+		try {
+			if (byteBudget > 0) {
+				// The sizes JpegDownscaler can make, picked from the way
+				// the camera's picture size is
+				JpegReader in = new JpegReader(photo.getData(), photo.getLength());
+				int[] widths = new int[4];
+				int[] heights = new int[4];
+				for (int i = 0; i < 4; i++) {
+					widths[i] = in.width >> i;
+					heights[i] = in.height >> i;
+				}
+				PictureSizeSelector selector = new PictureSizeSelector(widths, heights);
+				selector.select(maxDimension, quality, byteBudget);
+				maxDimension = Math.max(selector.getWidth(), selector.getHeight());
+				quality = selector.getQuality();
+			}
+			return JpegDownscaler.downscale(photo.getData(), photo.getLength(),
+					maxDimension, quality);
+		} catch (IOException e) {
+			Log.w(TAG, "Unable to downscale " + photo + ", sending it full size", e);
+			return null;
+		}
+	}
+
+	/**
+	 * @return the JPEG re-coded with optimal Huffman tables, or null to
+	 *         send it as it is
+	 */
+	private PooledOutputStream optimize(Photo photo, byte[] data, int length) {
+		try {
+			return JpegOptimizer.optimize(data, length);
+		} catch (IOException e) {
+			Log.w(TAG, "Unable to optimize " + photo + ", sending it as it is", e);
+			return null;
+		}
+	}
+
+	/**
+	 * Let go of whatever is kept for photos the outbox has given up on
+	 */
+	protected void forget(List<Photo> photos) {
+		countSkipped(photos);
+		Mail m;
+		synchronized (mRetries) {
+			m = mRetries.remove(photos);
+		}
+		if (m != null) {
+			m.release();
+		}
+	}
+
+	/**
+	 * Get an SMTP connection open and authenticated ahead of the first send
+	 */
+	public void prewarm() {
+		Relay relay = mRelays.pick(mSettings.getRelays(), new HashSet<String>());
+		if (relay != null) {
+			Mail m = mSettings.newMail();
+			relay.applyTo(m);
+			m.prewarm();
+		}
+	}
+}
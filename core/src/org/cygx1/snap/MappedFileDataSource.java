@@ -0,0 +1,80 @@
+package org.cygx1.snap;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import javax.activation.FileTypeMap;
+
+/**
+ * Attachment data source for a file, read through a memory mapping instead
+ * of buffered streams: the pages come straight from the page cache, and
+ * nothing is copied onto the Java heap until the bytes are encoded.
+ */
+public class MappedFileDataSource implements BufferDataSource {
+	private final File mFile;
+	private MappedByteBuffer mMapped;
+
+	public MappedFileDataSource(String filename) {
+		mFile = new File(filename);
+	}
+
+	public String getContentType() {
+		return FileTypeMap.getDefaultFileTypeMap().getContentType(mFile);
+	}
+
+	public synchronized ByteBuffer getBuffer() throws IOException {
+		if (mMapped == null) {
+			FileInputStream in = new FileInputStream(mFile);
+			try {
+				FileChannel channel = in.getChannel();
+				// The mapping stays valid after the channel is closed
+				mMapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			} finally {
+				in.close();
+			}
+		}
+		return mMapped.duplicate();
+	}
+
+	public InputStream getInputStream() throws IOException {
+		final ByteBuffer buffer = getBuffer();
+		return new InputStream() {
+			@Override
+			public int read() {
+				return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) {
+				if (len == 0) {
+					return 0;
+				}
+				if (!buffer.hasRemaining()) {
+					return -1;
+				}
+				int n = Math.min(len, buffer.remaining());
+				buffer.get(b, off, n);
+				return n;
+			}
+
+			@Override
+			public int available() {
+				return buffer.remaining();
+			}
+		};
+	}
+
+	public String getName() {
+		return mFile.getName();
+	}
+
+	public OutputStream getOutputStream() throws IOException {
+		throw new IOException("MappedFileDataSource is read-only");
+	}
+}
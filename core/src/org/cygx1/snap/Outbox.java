@@ -0,0 +1,621 @@
+package org.cygx1.snap;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Crash-safe queue of photos waiting to be mailed.
+ *
+ * Every photo is recorded in an append-only journal before it is handed to
+ * a small, fixed pool of send workers, and is marked done once it has been
+ * delivered. Failed sends are retried with exponential backoff, and sends
+ * to the same server are spaced out so a burst of snaps doesn't hammer it.
+ * Calling replay() on startup picks up whatever a previous process left
+ * behind.
+ *
+ * Photos queued in quick succession are coalesced: the first photo opens a
+ * window, and everything queued before the window expires (or fills up) goes
+ * out together as a single message.
+ *
+ * A group of photos, such as a burst, can also be queued to go out as one
+ * message of its own, whatever the window.
+ *
+ * If there is a Previewer, each photo or group queued also gets a small
+ * preview sent ahead of it, on a lane of its own that neither waits for
+ * the window nor queues behind full-size sends. Previews aren't journaled
+ * or retried: the real message is the one that counts.
+ *
+ * Photos can be queued straight from memory. Writing them to disk and all
+ * journal updates happen behind the caller's back on a single I/O thread,
+ * which also keeps the journal entries for a photo in order. Sending doesn't
+ * wait for the write. A photo that can't be written out only has the one
+ * attempt its in-memory bytes last for; if that fails it isn't retried.
+ *
+ * If there is a PhotoStore, it is told about each photo as it is written
+ * out and again once it has been sent, so it knows which ones it may
+ * delete.
+ *
+ * Journal format is one entry per line: "+path" when a photo is queued and
+ * "-path" when it is done with.
+ */
+public class Outbox {
+	private static final String TAG = "Snap";
+
+	private static final long INITIAL_BACKOFF_MS = 5 * 1000;
+	private static final long MAX_BACKOFF_MS = 15 * 60 * 1000;
+	// After this many attempts we stop retrying in this process; the photo
+	// stays in the journal and gets another go on the next replay()
+	private static final int MAX_ATTEMPTS = 8;
+	// Default minimum spacing between two sends through the same server
+	private static final long MIN_SEND_INTERVAL_MS = 2 * 1000;
+
+	/**
+	 * Does the actual sending
+	 */
+	public interface Delivery {
+		/** @return the server photos are sent through, used for rate limiting */
+		String getServer();
+
+		/** Send the photos as one message, throwing if it should be retried */
+		void deliver(List<Photo> photos) throws Exception;
+	}
+
+	/**
+	 * Sends a quick preview of photos ahead of the photos themselves
+	 */
+	public interface Previewer {
+		/**
+		 * Called on the queueing thread, so must be quick: decide whether
+		 * the photos get a preview, and mark them for it
+		 */
+		boolean prepare(List<Photo> photos);
+
+		/** Send the preview; failures are only logged */
+		void preview(List<Photo> photos) throws Exception;
+	}
+
+	/**
+	 * Told about the outcome of each send attempt
+	 */
+	public interface Listener {
+		void onSent(List<Photo> photos);
+
+		void onFailed(List<Photo> photos, Exception e, boolean willRetry);
+	}
+
+	private final File mJournal;
+	private final Delivery mDelivery;
+	private final Listener mListener;
+	private final ScheduledThreadPoolExecutor mWorkers;
+	private final ExecutorService mIo;
+	private final ExecutorService mPreviews;
+	private Previewer mPreviewer = null;
+	private PhotoStore mStore = null;
+
+	private final Set<String> mPending = new LinkedHashSet<String>();
+	// Pending photos that couldn't be written out, and why
+	private final Map<String, IOException> mUnsaved = new HashMap<String, IOException>();
+	private final Map<String, Long> mNextSlot = new HashMap<String, Long>();
+
+	private long mSendSpacingMs = MIN_SEND_INTERVAL_MS;
+	private long mWindowMs = 0;
+	private long mWindowMaxBytes = Long.MAX_VALUE;
+	private List<Photo> mWindow = new ArrayList<Photo>();
+	private long mWindowBytes = 0;
+	private ScheduledFuture<?> mWindowFlush = null;
+
+	public Outbox(File journal, Delivery delivery, Listener listener,
+			int workers) {
+		mJournal = journal;
+		mDelivery = delivery;
+		mListener = listener;
+		mWorkers = new ScheduledThreadPoolExecutor(workers, new ThreadFactory() {
+			private int mCount = 0;
+
+			public synchronized Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "Snap-send-" + (++mCount));
+				t.setDaemon(true);
+				t.setPriority(Thread.MIN_PRIORITY);
+				return t;
+			}
+		});
+		mIo = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "Snap-io");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		// Normal priority, unlike the send workers: previews are small and
+		// are what the recipient sees first
+		mPreviews = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "Snap-preview");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	public synchronized void setPreviewer(Previewer previewer) {
+		mPreviewer = previewer;
+	}
+
+	/**
+	 * Set the store the photos are kept in. Only photos inside it are
+	 * recorded there.
+	 */
+	public synchronized void setStore(PhotoStore store) {
+		mStore = store;
+	}
+
+	/**
+	 * Set the minimum time between the starts of two sends through the same
+	 * server; 0 lets the workers go as fast as they can
+	 */
+	public synchronized void setSendSpacing(long spacingMs) {
+		mSendSpacingMs = spacingMs;
+	}
+
+	/**
+	 * Set how long to hold on to a photo waiting for others to send along
+	 * with it, and how many bytes of photos a single message may carry. A
+	 * window of 0 sends every photo on its own, straight away.
+	 */
+	public synchronized void setCoalescing(long windowMs, long maxBytes) {
+		mWindowMs = windowMs;
+		mWindowMaxBytes = maxBytes;
+	}
+
+	/**
+	 * Queue a photo for sending. Takes over the caller's reference to the
+	 * photo's in-memory bytes, if it has any. Never blocks on the disk.
+	 */
+	public void enqueue(final Photo photo) {
+		if (!admit(photo)) {
+			return;
+		}
+		preview(Collections.singletonList(photo));
+
+		synchronized (this) {
+			long size = photo.size();
+			if (!mWindow.isEmpty() && mWindowBytes + size > mWindowMaxBytes) {
+				// Doesn't fit, send what we have and start a new window
+				flush();
+			}
+			mWindow.add(photo);
+			mWindowBytes += size;
+			if (mWindowMs <= 0 || mWindowBytes >= mWindowMaxBytes) {
+				flush();
+			} else if (mWindowFlush == null) {
+				mWindowFlush = mWorkers.schedule(new Runnable() {
+					public void run() {
+						flush();
+					}
+				}, mWindowMs, TimeUnit.MILLISECONDS);
+			}
+		}
+	}
+
+	/**
+	 * Queue a group of photos to be sent together, straight away, in as
+	 * few messages as the size limit allows. Takes over the caller's
+	 * references, as enqueue(Photo) does.
+	 */
+	public void enqueue(List<Photo> group) {
+		List<Photo> admitted = new ArrayList<Photo>();
+		for (Photo photo : group) {
+			if (admit(photo)) {
+				admitted.add(photo);
+			}
+		}
+		if (!admitted.isEmpty()) {
+			preview(admitted);
+		}
+		long maxBytes;
+		synchronized (this) {
+			// Whatever was waiting was taken first
+			flush();
+			maxBytes = mWindowMaxBytes;
+		}
+		scheduleBatches(admitted, maxBytes);
+	}
+
+	/**
+	 * Record a photo as pending and start writing it out
+	 * @return false if it was already queued, in which case the caller's
+	 *         reference has been dropped
+	 */
+	private boolean admit(final Photo photo) {
+		final String path = photo.getFile().getAbsolutePath();
+		synchronized (this) {
+			if (!mPending.add(path)) {
+				photo.release();
+				return false;
+			}
+		}
+
+		// Write-behind: get the photo onto the disk and into the journal
+		final boolean inMemory = photo.retain();
+		final PhotoStore store = getStore();
+		mIo.execute(new Runnable() {
+			public void run() {
+				try {
+					if (inMemory) {
+						try {
+							photo.persist();
+						} catch (IOException e) {
+							unsaved(path, e);
+							throw e;
+						}
+					}
+					append('+', path);
+					// After the journal, so a crash in between can't leave it
+					// pinned in the store for good
+					if (store != null) {
+						store.add(photo.getFile());
+					}
+				} catch (IOException e) {
+					Log.e(TAG, "Unable to save " + path, e);
+				} finally {
+					if (inMemory) {
+						photo.release();
+					}
+				}
+			}
+		});
+		return true;
+	}
+
+	/**
+	 * Send a preview of newly queued photos, if the previewer wants to,
+	 * holding on to their in-memory bytes until it's done
+	 */
+	private void preview(final List<Photo> photos) {
+		final Previewer previewer;
+		synchronized (this) {
+			previewer = mPreviewer;
+		}
+		if (previewer == null || !previewer.prepare(photos)) {
+			return;
+		}
+		final List<Photo> retained = new ArrayList<Photo>();
+		for (Photo photo : photos) {
+			if (photo.retain()) {
+				retained.add(photo);
+			}
+		}
+		mPreviews.execute(new Runnable() {
+			public void run() {
+				try {
+					previewer.preview(photos);
+				} catch (Exception e) {
+					Log.w(TAG, "Unable to send preview of " + photos, e);
+				} finally {
+					for (Photo photo : retained) {
+						photo.release();
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Send everything in the current window now
+	 */
+	public synchronized void flush() {
+		if (mWindowFlush != null) {
+			mWindowFlush.cancel(false);
+			mWindowFlush = null;
+		}
+		if (mWindow.isEmpty()) {
+			return;
+		}
+		schedule(new Job(mWindow), 0);
+		mWindow = new ArrayList<Photo>();
+		mWindowBytes = 0;
+	}
+
+	/**
+	 * Re-queue everything the journal says is still pending, and compact the
+	 * journal down to just those entries. Runs on the I/O thread.
+	 */
+	public void replay() {
+		mIo.execute(new Runnable() {
+			public void run() {
+				List<Photo> pending;
+				try {
+					pending = compact();
+				} catch (IOException e) {
+					Log.e(TAG, "Unable to replay outbox", e);
+					return;
+				}
+				Log.d(TAG, "Replaying " + pending.size() + " photos");
+				long maxBytes;
+				synchronized (Outbox.this) {
+					maxBytes = mWindowMaxBytes;
+				}
+				scheduleBatches(pending, maxBytes);
+			}
+		});
+	}
+
+	/**
+	 * Send photos right away, in batches that respect the size limit
+	 */
+	private void scheduleBatches(List<Photo> photos, long maxBytes) {
+		List<Photo> batch = new ArrayList<Photo>();
+		long bytes = 0;
+		for (Photo photo : photos) {
+			long size = photo.size();
+			if (!batch.isEmpty() && bytes + size > maxBytes) {
+				schedule(new Job(batch), 0);
+				batch = new ArrayList<Photo>();
+				bytes = 0;
+			}
+			batch.add(photo);
+			bytes += size;
+		}
+		if (!batch.isEmpty()) {
+			schedule(new Job(batch), 0);
+		}
+	}
+
+	/**
+	 * @return number of photos queued or in flight
+	 */
+	public synchronized int size() {
+		return mPending.size();
+	}
+
+	private List<Photo> compact() throws IOException {
+		Set<String> journaled = new LinkedHashSet<String>();
+		if (mJournal.exists()) {
+			BufferedReader in = new BufferedReader(new FileReader(mJournal));
+			try {
+				String line;
+				while ((line = in.readLine()) != null) {
+					if (line.length() < 2) {
+						// torn write at the tail of the journal
+						continue;
+					}
+					if (line.charAt(0) == '+') {
+						journaled.add(line.substring(1));
+					} else if (line.charAt(0) == '-') {
+						journaled.remove(line.substring(1));
+					}
+				}
+			} finally {
+				in.close();
+			}
+		}
+
+		// Anything queued since startup has its "+" entry in there already,
+		// since it went through this same thread
+		List<Photo> replayed = new ArrayList<Photo>();
+		List<File> files = new ArrayList<File>();
+		StringBuilder sb = new StringBuilder();
+		for (String path : journaled) {
+			if (!new File(path).exists()) {
+				continue;
+			}
+			sb.append('+').append(path).append('\n');
+			files.add(new File(path));
+			synchronized (this) {
+				if (mPending.add(path)) {
+					replayed.add(new Photo(new File(path)));
+				}
+			}
+		}
+
+		// Write the compacted journal aside and swap it in, so a crash
+		// halfway through leaves the old one intact
+		File tmp = new File(mJournal.getPath() + ".tmp");
+		mJournal.getParentFile().mkdirs();
+		FileOutputStream out = new FileOutputStream(tmp);
+		try {
+			out.write(sb.toString().getBytes("UTF-8"));
+			out.getFD().sync();
+		} finally {
+			out.close();
+		}
+		if (!tmp.renameTo(mJournal)) {
+			throw new IOException("Unable to replace " + mJournal);
+		}
+
+		// Pin them all before the store gets a chance to make room
+		PhotoStore store = getStore();
+		if (store != null) {
+			store.add(files);
+		}
+		return replayed;
+	}
+
+	/**
+	 * Only ever called on the I/O thread
+	 */
+	private void append(char op, String path) throws IOException {
+		mJournal.getParentFile().mkdirs();
+		FileOutputStream out = new FileOutputStream(mJournal, true);
+		try {
+			out.write((op + path + "\n").getBytes("UTF-8"));
+			out.getFD().sync();
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Record that a photo couldn't be written out, if it's still to be sent
+	 */
+	private synchronized void unsaved(String path, IOException e) {
+		if (mPending.contains(path)) {
+			mUnsaved.put(path, e);
+		}
+	}
+
+	/**
+	 * Take photos that couldn't be written out out of the list, and out of
+	 * the pending set
+	 * @return the photos taken out, with why they couldn't be written
+	 */
+	private synchronized Map<Photo, IOException> takeUnsaved(List<Photo> photos) {
+		Map<Photo, IOException> unsaved = new HashMap<Photo, IOException>();
+		for (Iterator<Photo> it = photos.iterator(); it.hasNext();) {
+			Photo photo = it.next();
+			String path = photo.getFile().getAbsolutePath();
+			IOException e = mUnsaved.remove(path);
+			if (e != null) {
+				it.remove();
+				mPending.remove(path);
+				unsaved.put(photo, e);
+			}
+		}
+		return unsaved;
+	}
+
+	private synchronized PhotoStore getStore() {
+		return mStore;
+	}
+
+	private void done(List<Photo> photos) {
+		final PhotoStore store = getStore();
+		for (Photo photo : photos) {
+			final File file = photo.getFile();
+			final String path = file.getAbsolutePath();
+			synchronized (this) {
+				mPending.remove(path);
+				mUnsaved.remove(path);
+			}
+			mIo.execute(new Runnable() {
+				public void run() {
+					try {
+						// Before the journal: if it doesn't get that far,
+						// replay() pins it again
+						if (store != null) {
+							store.sent(file);
+						}
+						append('-', path);
+					} catch (IOException e) {
+						// Worst case the photo gets sent again after a restart
+						Log.e(TAG, "Unable to update outbox journal", e);
+					}
+				}
+			});
+		}
+	}
+
+	private synchronized void retired(List<Photo> photos) {
+		// Leave them in the journal for the next replay()
+		for (Photo photo : photos) {
+			mPending.remove(photo.getFile().getAbsolutePath());
+		}
+	}
+
+	/**
+	 * Run a job after the given delay, pushed back as needed so that sends to
+	 * the same server are at least the send spacing apart
+	 */
+	private void schedule(Job job, long delay) {
+		String server = mDelivery.getServer();
+		long spacing;
+		synchronized (this) {
+			spacing = mSendSpacingMs;
+		}
+		long now = System.currentTimeMillis();
+		long start = now + delay;
+		synchronized (mNextSlot) {
+			Long next = mNextSlot.get(server);
+			if (next != null && next.longValue() > start) {
+				start = next.longValue();
+			}
+			mNextSlot.put(server, Long.valueOf(start + spacing));
+		}
+		mWorkers.schedule(job, start - now, TimeUnit.MILLISECONDS);
+	}
+
+	private class Job implements Runnable {
+		private final List<Photo> mPhotos;
+		private int mAttempts = 0;
+		private boolean mReleased = false;
+
+		Job(List<Photo> photos) {
+			mPhotos = photos;
+		}
+
+		public void run() {
+			if (mReleased && !dropUnsaved()) {
+				return;
+			}
+			mAttempts++;
+			try {
+				mDelivery.deliver(mPhotos);
+			} catch (Exception e) {
+				Log.w(TAG, "Send attempt " + mAttempts + " for "
+						+ mPhotos + " failed", e);
+				// Don't sit on the in-memory copies through the backoff,
+				// retries can read the files
+				releaseAll();
+				if (!dropUnsaved()) {
+					return;
+				}
+				boolean retry = mAttempts < MAX_ATTEMPTS;
+				if (retry) {
+					long backoff = Math.min(MAX_BACKOFF_MS, INITIAL_BACKOFF_MS
+							<< (mAttempts - 1));
+					schedule(this, backoff);
+				} else {
+					retired(mPhotos);
+				}
+				mListener.onFailed(mPhotos, e, retry);
+				return;
+			}
+			releaseAll();
+			done(mPhotos);
+			mListener.onSent(mPhotos);
+		}
+
+		/**
+		 * Once the in-memory bytes are gone, fail any photos that were
+		 * never written out for good: there's nothing left to send
+		 * @return whether there are photos left to send
+		 */
+		private boolean dropUnsaved() {
+			for (Map.Entry<Photo, IOException> e : takeUnsaved(mPhotos).entrySet()) {
+				mListener.onFailed(Collections.singletonList(e.getKey()), e.getValue(), false);
+			}
+			return !mPhotos.isEmpty();
+		}
+
+		/**
+		 * Drop the reference to the in-memory bytes that came in with
+		 * enqueue()
+		 */
+		private void releaseAll() {
+			if (mReleased) {
+				return;
+			}
+			mReleased = true;
+			for (Photo photo : mPhotos) {
+				photo.release();
+			}
+		}
+	}
+}
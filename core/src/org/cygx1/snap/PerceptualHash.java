@@ -0,0 +1,85 @@
+package org.cygx1.snap;
+
+import java.io.IOException;
+
+/**
+ * A 64 bit difference hash (dHash) of a JPEG, for telling whether two
+ * photos are of the same thing. Pictures that look alike have hashes that
+ * differ in only a few bits, whatever their size or quality.
+ *
+ * The downsampled luma image comes from the DC coefficients, the average of
+ * each 8x8 block, so the JPEG is entropy decoded but never turned into
+ * pixels. That is squeezed down to 9x8, and each bit says whether a cell
+ * is darker than the one to its right.
+ */
+final class PerceptualHash {
+	private static final int COLS = 9;
+	private static final int ROWS = 8;
+
+	private PerceptualHash() {
+	}
+
+	/**
+	 * @return how many bits two hashes differ in; 0 to 64
+	 */
+	static int distance(long a, long b) {
+		return Long.bitCount(a ^ b);
+	}
+
+	static long dHash(byte[] jpeg, int length) throws IOException {
+		JpegReader in = new JpegReader(jpeg, length);
+		JpegReader.Component luma = in.components[0];
+		int stride = in.mcusPerLine * luma.h;
+		int[] dc = new int[stride * in.mcuRows * luma.v];
+		int[][] blocks = new int[in.blocksPerMcu][64];
+		try {
+			for (int my = 0; my < in.mcuRows; my++) {
+				for (int mx = 0; mx < in.mcusPerLine; mx++) {
+					in.readMcu(blocks);
+					// Luma's blocks come first in the MCU
+					int b = 0;
+					for (int by = 0; by < luma.v; by++) {
+						for (int bx = 0; bx < luma.h; bx++) {
+							dc[(my * luma.v + by) * stride + mx * luma.h + bx] = blocks[b++][0];
+						}
+					}
+				}
+			}
+		} catch (RuntimeException e) {
+			// e.g. running off the end of a truncated scan
+			throw new IOException("Unable to hash: " + e);
+		}
+
+		// Only the blocks that are in the picture, not the padding
+		int width = (in.width + 7) / 8;
+		int height = (in.height + 7) / 8;
+		long[] cells = new long[COLS * ROWS];
+		for (int gy = 0; gy < ROWS; gy++) {
+			int y0 = gy * height / ROWS;
+			int y1 = Math.max(y0 + 1, (gy + 1) * height / ROWS);
+			for (int gx = 0; gx < COLS; gx++) {
+				int x0 = gx * width / COLS;
+				int x1 = Math.max(x0 + 1, (gx + 1) * width / COLS);
+				long sum = 0;
+				for (int y = y0; y < y1; y++) {
+					for (int x = x0; x < x1; x++) {
+						sum += dc[y * stride + x];
+					}
+				}
+				// Cells differ in size by a block at most; compare averages
+				cells[gy * COLS + gx] = sum * 1024 / ((y1 - y0) * (x1 - x0));
+			}
+		}
+
+		long hash = 0;
+		for (int gy = 0; gy < ROWS; gy++) {
+			for (int gx = 0; gx < COLS - 1; gx++) {
+				hash <<= 1;
+				if (cells[gy * COLS + gx] < cells[gy * COLS + gx + 1]) {
+					hash |= 1;
+				}
+			}
+		}
+		return hash;
+	}
+}
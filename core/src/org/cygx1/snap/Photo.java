@@ -0,0 +1,234 @@
+package org.cygx1.snap;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A snapshot on its way out. It starts life as the JPEG bytes straight from
+ * the camera, which the send path can use without waiting for them to hit
+ * the disk, and ends up as just a file.
+ *
+ * The in-memory copy is reference counted: everyone who needs the bytes
+ * calls retain() and release(), and the buffer goes back to the
+ * JpegBufferPool when the last one is done with it.
+ */
+public class Photo {
+	private final File mFile;
+	private byte[] mData;
+	private int mLength;
+	private int mRefs;
+	// When it was taken and written out, in System.nanoTime(); 0 if unknown
+	private long mTapped;
+	private long mTaken;
+	private long mWriteStart;
+	private long mWritten;
+	// Perceptual hash, once it has been worked out
+	private long mHash;
+	private boolean mHashed = false;
+	// Message-ID of the preview sent ahead of it, if there is one
+	private String mPreviewId;
+
+	/**
+	 * A photo that is already on disk
+	 */
+	public Photo(File file) {
+		mFile = file;
+	}
+
+	/**
+	 * A photo that is still only in memory. The caller holds the first
+	 * reference to the data.
+	 */
+	public Photo(File file, byte[] data, int length) {
+		mFile = file;
+		mData = data;
+		mLength = length;
+		mRefs = 1;
+	}
+
+	/**
+	 * Note when the shutter was tapped and when the camera delivered the
+	 * picture, for the SendRecord
+	 */
+	public synchronized void setCaptureTimes(long tapped, long taken) {
+		mTapped = tapped;
+		mTaken = taken;
+	}
+
+	/**
+	 * @return when the shutter was tapped for it, in System.nanoTime(); 0
+	 *         if unknown, e.g. for a photo replayed from an earlier process
+	 */
+	public synchronized long getTapped() {
+		return mTapped;
+	}
+
+	/**
+	 * Copy what is known about the photo's capture and write into a record
+	 */
+	public synchronized void stamp(SendRecord record) {
+		record.set(SendRecord.Stage.TAP, mTapped);
+		record.set(SendRecord.Stage.TAKEN, mTaken);
+		record.set(SendRecord.Stage.WRITE_START, mWriteStart);
+		record.set(SendRecord.Stage.WRITTEN, mWritten);
+	}
+
+	public synchronized void setPreviewId(String messageId) {
+		mPreviewId = messageId;
+	}
+
+	/**
+	 * @return Message-ID of the preview of this photo, or null if none was
+	 *         sent
+	 */
+	public synchronized String getPreviewId() {
+		return mPreviewId;
+	}
+
+	public File getFile() {
+		return mFile;
+	}
+
+	/**
+	 * @return the JPEG bytes; only valid between retain() and release()
+	 */
+	public synchronized byte[] getData() {
+		return mData;
+	}
+
+	public synchronized int getLength() {
+		return mLength;
+	}
+
+	/**
+	 * @return size of the JPEG, whether it's in memory or on disk
+	 */
+	public synchronized long size() {
+		return mData != null ? mLength : mFile.length();
+	}
+
+	/**
+	 * Take a reference on the in-memory bytes
+	 * @return false if the bytes are gone and the file has to be used instead
+	 */
+	public synchronized boolean retain() {
+		if (mData == null) {
+			return false;
+		}
+		mRefs++;
+		return true;
+	}
+
+	/**
+	 * Take a reference on the JPEG bytes, reading them back in from the file
+	 * if they are no longer in memory
+	 */
+	public synchronized void open() throws IOException {
+		if (retain()) {
+			return;
+		}
+		FileInputStream in = new FileInputStream(mFile);
+		try {
+			FileChannel channel = in.getChannel();
+			long size = channel.size();
+			if (size > Integer.MAX_VALUE) {
+				throw new IOException(mFile + " is too big");
+			}
+			byte[] data = JpegBufferPool.getInstance().acquire((int) size);
+			ByteBuffer buffer = ByteBuffer.wrap(data, 0, (int) size);
+			while (buffer.hasRemaining()) {
+				if (channel.read(buffer) < 0) {
+					JpegBufferPool.getInstance().release(data);
+					throw new IOException(mFile + " was truncated");
+				}
+			}
+			mData = data;
+			mLength = (int) size;
+			mRefs = 1;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * @return a perceptual hash of the picture, for spotting repeat shots;
+	 *         worked out the first time it's asked for
+	 */
+	public long hash() throws IOException {
+		synchronized (this) {
+			if (mHashed) {
+				return mHash;
+			}
+		}
+		open();
+		try {
+			long hash = PerceptualHash.dHash(getData(), getLength());
+			synchronized (this) {
+				mHash = hash;
+				mHashed = true;
+			}
+			return hash;
+		} finally {
+			release();
+		}
+	}
+
+	public void release() {
+		byte[] data;
+		synchronized (this) {
+			if (mData == null || --mRefs > 0) {
+				return;
+			}
+			data = mData;
+			mData = null;
+		}
+		JpegBufferPool.getInstance().release(data);
+	}
+
+	/**
+	 * Write the in-memory bytes out to the photo's file. The bytes go to a
+	 * temporary file first, so the real file is either complete or missing.
+	 * Call with a reference held.
+	 */
+	void persist() throws IOException {
+		byte[] data;
+		int length;
+		synchronized (this) {
+			data = mData;
+			length = mLength;
+		}
+		if (data == null || mFile.exists()) {
+			return;
+		}
+		long start = System.nanoTime();
+		mFile.getParentFile().mkdirs();
+		File tmp = new File(mFile.getPath() + ".tmp");
+		FileOutputStream out = new FileOutputStream(tmp);
+		try {
+			FileChannel channel = out.getChannel();
+			ByteBuffer buffer = ByteBuffer.wrap(data, 0, length);
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			channel.force(false);
+		} finally {
+			out.close();
+		}
+		if (!tmp.renameTo(mFile)) {
+			throw new IOException("Unable to rename " + tmp + " to " + mFile);
+		}
+		synchronized (this) {
+			mWriteStart = start;
+			mWritten = System.nanoTime();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return mFile.getName();
+	}
+}
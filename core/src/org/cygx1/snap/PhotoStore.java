@@ -0,0 +1,327 @@
+package org.cygx1.snap;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Where photos are kept on the SD card, and for how long. Photos go into a
+ * directory per day rather than all in one, and an index keeps track of
+ * each one's size and whether it has been sent, so nothing ever has to list
+ * a directory. Sent photos are kept until they take up more than the
+ * capacity, then deleted least recently used first; a capacity of 0
+ * deletes them as soon as they're sent. Unsent photos are never deleted.
+ * Only photos named by newFile() are kept track of, and deleted: anything
+ * else in the directory, such as the photos older versions left at the
+ * top of it, sent or not, is left alone.
+ *
+ * The index is a log, one entry per line: "+name size time" when a photo
+ * is added, "=name time" when it has been sent and "-name" when it is
+ * deleted, with names relative to the store's directory. It is compacted
+ * down to one line per photo once it has grown to several times that.
+ *
+ * The Outbox calls in on its I/O thread, so the disk is only ever touched
+ * there.
+ */
+public class PhotoStore {
+	private static final String TAG = "Snap";
+
+	// Compact once the log is this many times longer than a snapshot
+	private static final int COMPACT_RATIO = 4;
+	private static final int MIN_COMPACT_LINES = 256;
+
+	private static class Entry {
+		final long size;
+		boolean sent;
+		// When it was added or sent, in System.currentTimeMillis()
+		long used;
+
+		Entry(long size, boolean sent, long used) {
+			this.size = size;
+			this.sent = sent;
+			this.used = used;
+		}
+	}
+
+	private final File mRoot;
+	private final File mIndex;
+	// Least recently used first
+	private final Map<String, Entry> mEntries = new LinkedHashMap<String, Entry>(64, 0.75f, true);
+	private final SimpleDateFormat mDay = new SimpleDateFormat("yyyyMMdd", Locale.US);
+	private long mCapacity = Long.MAX_VALUE;
+	private long mBytes = 0;
+	private int mLines = 0;
+	private boolean mLoaded = false;
+	// Last name handed out, so two in the same millisecond don't clash
+	private long mLastName = 0;
+
+	public PhotoStore(File root) {
+		mRoot = root;
+		mIndex = new File(root, "index");
+	}
+
+	/**
+	 * Set how many bytes of sent photos to keep
+	 */
+	public synchronized void setCapacity(long bytes) {
+		mCapacity = bytes;
+	}
+
+	/**
+	 * @return where to put a new photo; nothing is written until add()
+	 */
+	public synchronized File newFile() {
+		long now = System.currentTimeMillis();
+		long name = Math.max(now, mLastName + 1);
+		mLastName = name;
+		File day = new File(mRoot, mDay.format(new Date(now)));
+		return new File(day, String.format("p%d.jpg", name));
+	}
+
+	/**
+	 * Record a photo that has been written out and is waiting to be sent,
+	 * or one that is being sent again after all
+	 */
+	public synchronized void add(File file) {
+		add(Collections.singletonList(file));
+	}
+
+	/**
+	 * Record several photos as waiting to be sent, all of them before any
+	 * room is made
+	 */
+	public synchronized void add(Collection<File> files) {
+		load();
+		for (File file : files) {
+			pin(file);
+		}
+		evict();
+	}
+
+	private void pin(File file) {
+		String name = nameOf(file);
+		if (name == null) {
+			return;
+		}
+		Entry entry = mEntries.get(name);
+		long now = System.currentTimeMillis();
+		if (entry == null) {
+			entry = new Entry(file.length(), false, now);
+			mEntries.put(name, entry);
+			mBytes += entry.size;
+		}
+		entry.sent = false;
+		entry.used = now;
+		log("+" + name + " " + entry.size + " " + now);
+	}
+
+	/**
+	 * Record that a photo has been sent, or won't be, and can go when
+	 * space is needed
+	 */
+	public synchronized void sent(File file) {
+		load();
+		String name = nameOf(file);
+		Entry entry = name != null ? mEntries.get(name) : null;
+		if (entry == null) {
+			return;
+		}
+		entry.sent = true;
+		entry.used = System.currentTimeMillis();
+		log("=" + name + " " + entry.used);
+		evict();
+	}
+
+	/**
+	 * @return bytes of photos in the store, sent or not
+	 */
+	public synchronized long getBytes() {
+		load();
+		return mBytes;
+	}
+
+	/**
+	 * @return photos in the store, sent or not
+	 */
+	public synchronized int size() {
+		load();
+		return mEntries.size();
+	}
+
+	/**
+	 * Delete sent photos, least recently used first, until the rest fit
+	 */
+	private void evict() {
+		Iterator<Map.Entry<String, Entry>> it = mEntries.entrySet().iterator();
+		while (mBytes > mCapacity && it.hasNext()) {
+			Map.Entry<String, Entry> e = it.next();
+			if (!e.getValue().sent) {
+				continue;
+			}
+			File file = new File(mRoot, e.getKey());
+			if (file.exists() && !file.delete()) {
+				Log.w(TAG, "Unable to delete " + file);
+				continue;
+			}
+			// Goes once its day is over and the last of it has been sent
+			file.getParentFile().delete();
+			it.remove();
+			mBytes -= e.getValue().size;
+			log("-" + e.getKey());
+		}
+	}
+
+	/**
+	 * @return the file's name relative to the store, or null if it isn't
+	 *         one of the store's
+	 */
+	private String nameOf(File file) {
+		String root = mRoot.getAbsolutePath() + File.separator;
+		String path = file.getAbsolutePath();
+		if (!path.startsWith(root)) {
+			return null;
+		}
+		String name = path.substring(root.length());
+		return isStored(name) ? name : null;
+	}
+
+	/**
+	 * @return whether a name is one newFile() could have given out: a photo
+	 *         in one of the day directories
+	 */
+	private static boolean isStored(String name) {
+		int slash = name.indexOf(File.separatorChar);
+		return slash > 0 && slash == name.lastIndexOf(File.separatorChar);
+	}
+
+	/**
+	 * Read the index, if there is one yet
+	 */
+	private void load() {
+		if (mLoaded) {
+			return;
+		}
+		mLoaded = true;
+		try {
+			if (mIndex.exists()) {
+				read();
+			}
+			compact();
+		} catch (IOException e) {
+			Log.e(TAG, "Unable to read the photo index", e);
+		}
+	}
+
+	private void read() throws IOException {
+		BufferedReader in = new BufferedReader(new FileReader(mIndex));
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				String[] fields = line.substring(Math.min(1, line.length())).split(" ");
+				if (!isStored(fields[0])) {
+					// Not ours to delete, whatever an earlier build thought
+					continue;
+				}
+				try {
+					if (line.startsWith("+") && fields.length == 3) {
+						Entry old = mEntries.remove(fields[0]);
+						if (old != null) {
+							mBytes -= old.size;
+						}
+						Entry entry = new Entry(Long.parseLong(fields[1]), false,
+								Long.parseLong(fields[2]));
+						mEntries.put(fields[0], entry);
+						mBytes += entry.size;
+					} else if (line.startsWith("=") && fields.length == 2) {
+						Entry entry = mEntries.get(fields[0]);
+						if (entry != null) {
+							entry.sent = true;
+							entry.used = Long.parseLong(fields[1]);
+						}
+					} else if (line.startsWith("-") && fields.length == 1) {
+						Entry entry = mEntries.remove(fields[0]);
+						if (entry != null) {
+							mBytes -= entry.size;
+						}
+					}
+					// Anything else is a torn write at the tail of the log
+				} catch (NumberFormatException e) {
+					Log.w(TAG, "Skipping bad photo index entry " + line);
+				}
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Write the index out again with a line per photo, aside, and swap it
+	 * in, so a crash halfway through leaves the old one intact. Entries
+	 * whose files have gone are dropped.
+	 */
+	private void compact() throws IOException {
+		StringBuilder sb = new StringBuilder();
+		int lines = 0;
+		for (Iterator<Map.Entry<String, Entry>> it = mEntries.entrySet().iterator(); it.hasNext();) {
+			Map.Entry<String, Entry> e = it.next();
+			Entry entry = e.getValue();
+			if (!new File(mRoot, e.getKey()).exists()) {
+				it.remove();
+				mBytes -= entry.size;
+				continue;
+			}
+			sb.append('+').append(e.getKey()).append(' ').append(entry.size).append(' ')
+					.append(entry.used).append('\n');
+			lines++;
+			if (entry.sent) {
+				sb.append('=').append(e.getKey()).append(' ').append(entry.used).append('\n');
+				lines++;
+			}
+		}
+		File tmp = new File(mIndex.getPath() + ".tmp");
+		mRoot.mkdirs();
+		FileOutputStream out = new FileOutputStream(tmp);
+		try {
+			out.write(sb.toString().getBytes("UTF-8"));
+			out.getFD().sync();
+		} finally {
+			out.close();
+		}
+		if (!tmp.renameTo(mIndex)) {
+			throw new IOException("Unable to replace " + mIndex);
+		}
+		mLines = lines;
+	}
+
+	private void log(String line) {
+		try {
+			if (mLines >= MIN_COMPACT_LINES && mLines > COMPACT_RATIO * 2 * mEntries.size()) {
+				// The entry being logged is already in mEntries
+				compact();
+				return;
+			}
+			mRoot.mkdirs();
+			FileOutputStream out = new FileOutputStream(mIndex, true);
+			try {
+				out.write((line + "\n").getBytes("UTF-8"));
+				out.getFD().sync();
+			} finally {
+				out.close();
+			}
+			mLines++;
+		} catch (IOException e) {
+			// Worst case a photo is kept longer than it needs to be
+			Log.e(TAG, "Unable to update the photo index", e);
+		}
+	}
+}
@@ -0,0 +1,158 @@
+package org.cygx1.snap;
+
+/**
+ * Picks the capture resolution and JPEG quality up front, so the camera
+ * produces a picture of about the size we are going to send instead of its
+ * biggest one, which we would only shrink again later.
+ *
+ * Sizes keep the aspect ratio of the sensor, which is taken to be that of
+ * the largest supported size.
+ */
+public class PictureSizeSelector {
+	private static final double ASPECT_TOLERANCE = 0.05;
+	private static final int MIN_QUALITY = 50;
+	private static final int QUALITY_STEP = 5;
+
+	// Rough JPEG size, in bytes per pixel, of a camera photo at a given
+	// quality; in between, interpolate
+	private static final int[] QUALITIES = { 50, 60, 75, 85, 95, 100 };
+	private static final double[] BYTES_PER_PIXEL = { 0.11, 0.13, 0.18, 0.25, 0.45, 0.9 };
+
+	private final int[] mWidths;
+	private final int[] mHeights;
+
+	private int mIndex = -1;
+	private int mQuality;
+
+	/**
+	 * @param widths - supported picture widths
+	 * @param heights - the matching heights
+	 */
+	public PictureSizeSelector(int[] widths, int[] heights) {
+		mWidths = widths;
+		mHeights = heights;
+	}
+
+	/**
+	 * Estimated size of a JPEG of the given dimensions and quality
+	 */
+	public static long estimateBytes(int width, int height, int quality) {
+		quality = Math.max(QUALITIES[0], Math.min(100, quality));
+		int i = 1;
+		while (QUALITIES[i] < quality) {
+			i++;
+		}
+		double t = (double) (quality - QUALITIES[i - 1]) / (QUALITIES[i] - QUALITIES[i - 1]);
+		double bpp = BYTES_PER_PIXEL[i - 1] + t * (BYTES_PER_PIXEL[i] - BYTES_PER_PIXEL[i - 1]);
+		return (long) (bpp * width * height);
+	}
+
+	/**
+	 * Choose the size and quality
+	 * @param maxDimension - the longest side we need; 0 for the biggest
+	 *            picture the camera takes
+	 * @param quality - the JPEG quality we'd like
+	 * @param byteBudget - largest JPEG we'd like, in bytes; 0 for no limit
+	 * @return false if there are no sizes to choose from
+	 */
+	public boolean select(int maxDimension, int quality, long byteBudget) {
+		int n = mWidths.length;
+		if (n == 0) {
+			return false;
+		}
+
+		int largest = 0;
+		for (int i = 1; i < n; i++) {
+			if (pixels(i) > pixels(largest)) {
+				largest = i;
+			}
+		}
+		double targetRatio = (double) mWidths[largest] / mHeights[largest];
+
+		// Candidates, biggest first: the right shape if there are any,
+		// otherwise everything
+		int[] order = sortBySize();
+		boolean shapeMatters = false;
+		for (int i : order) {
+			if (matches(i, targetRatio)) {
+				shapeMatters = true;
+			}
+		}
+
+		// The smallest candidate that is still big enough, or smaller if
+		// that's what it takes to fit the byte budget at the lowest quality
+		int chosen = -1;
+		for (int i : order) {
+			if (shapeMatters && !matches(i, targetRatio)) {
+				continue;
+			}
+			if (chosen >= 0 && (maxDimension <= 0 || longSide(i) < maxDimension)
+					&& fits(chosen, Math.min(quality, MIN_QUALITY), byteBudget)) {
+				break;
+			}
+			chosen = i;
+		}
+
+		mIndex = chosen;
+		mQuality = Math.max(MIN_QUALITY, Math.min(100, quality));
+		while (mQuality > MIN_QUALITY && !fits(chosen, mQuality, byteBudget)) {
+			mQuality = Math.max(MIN_QUALITY, mQuality - QUALITY_STEP);
+		}
+		return true;
+	}
+
+	public int getWidth() {
+		return mWidths[mIndex];
+	}
+
+	public int getHeight() {
+		return mHeights[mIndex];
+	}
+
+	public int getQuality() {
+		return mQuality;
+	}
+
+	/**
+	 * Whether a size fits the budget at the given quality
+	 */
+	private boolean fits(int i, int quality, long byteBudget) {
+		return byteBudget <= 0
+				|| estimateBytes(mWidths[i], mHeights[i], quality) <= byteBudget;
+	}
+
+	private boolean matches(int i, double targetRatio) {
+		double ratio = (double) mWidths[i] / mHeights[i];
+		return Math.abs(ratio - targetRatio) <= ASPECT_TOLERANCE;
+	}
+
+	private long pixels(int i) {
+		return (long) mWidths[i] * mHeights[i];
+	}
+
+	private int longSide(int i) {
+		return Math.max(mWidths[i], mHeights[i]);
+	}
+
+	/**
+	 * @return indexes of the sizes, biggest first
+	 */
+	private int[] sortBySize() {
+		int n = mWidths.length;
+		int[] order = new int[n];
+		for (int i = 0; i < n; i++) {
+			order[i] = i;
+		}
+		// Insertion sort; cameras only have a handful of sizes
+		for (int i = 1; i < n; i++) {
+			int v = order[i];
+			int j = i - 1;
+			while (j >= 0 && pixels(order[j]) < pixels(v)) {
+				order[j + 1] = order[j];
+				j--;
+			}
+			order[j + 1] = v;
+		}
+		return order;
+	}
+}
@@ -0,0 +1,58 @@
+package org.cygx1.snap;
+
+import java.io.OutputStream;
+
+/**
+ * A ByteArrayOutputStream whose buffers come from, and go back to, the
+ * JpegBufferPool. Call release() once the bytes have been used.
+ */
+public class PooledOutputStream extends OutputStream {
+	private byte[] mBuffer;
+	private int mCount;
+
+	public PooledOutputStream(int initialSize) {
+		mBuffer = JpegBufferPool.getInstance().acquire(initialSize);
+	}
+
+	private void ensure(int size) {
+		if (size > mBuffer.length) {
+			byte[] bigger = JpegBufferPool.getInstance().acquire(
+					Math.max(size, mBuffer.length * 3 / 2));
+			System.arraycopy(mBuffer, 0, bigger, 0, mCount);
+			JpegBufferPool.getInstance().release(mBuffer);
+			mBuffer = bigger;
+		}
+	}
+
+	@Override
+	public void write(int b) {
+		if (mCount == mBuffer.length) {
+			ensure(mCount + 1);
+		}
+		mBuffer[mCount++] = (byte) b;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) {
+		ensure(mCount + len);
+		System.arraycopy(b, off, mBuffer, mCount, len);
+		mCount += len;
+	}
+
+	/**
+	 * @return the buffer holding the bytes written so far; only the first
+	 *         size() bytes are meaningful
+	 */
+	public byte[] getBuffer() {
+		return mBuffer;
+	}
+
+	public int size() {
+		return mCount;
+	}
+
+	public void release() {
+		JpegBufferPool.getInstance().release(mBuffer);
+		mBuffer = null;
+	}
+}
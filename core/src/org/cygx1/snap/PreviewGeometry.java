@@ -0,0 +1,71 @@
+package org.cygx1.snap;
+
+/**
+ * The arithmetic behind Preview, kept apart from the camera and view
+ * classes so it can be run, and benchmarked, anywhere
+ */
+public class PreviewGeometry {
+	private static final double ASPECT_TOLERANCE = 0.05;
+
+	/**
+	 * From http://www.netmite.com/android/mydroid/cupcake/packages/apps/Camera/src/com/android/camera/ImageManager.java
+	 * @param orientationInput
+	 * @return 0, 90, 180, or 270
+	 */
+	public static int roundOrientation(int orientationInput) {
+		int orientation = orientationInput;
+		if (orientation == -1)
+			orientation = 0;
+
+		orientation = orientation % 360;
+		int retVal;
+		if (orientation < (0*90) + 45) {
+			retVal = 0;
+		} else if (orientation < (1*90) + 45) {
+			retVal = 90;
+		} else if (orientation < (2*90) + 45) {
+			retVal = 180;
+		} else if (orientation < (3*90) + 45) {
+			retVal = 270;
+		} else {
+			retVal = 0;
+		}
+
+		return retVal;
+	}
+
+	/**
+	 * Pick the preview size closest in height to the view among those with
+	 * its aspect ratio, or among all of them if none has it
+	 * @return index into widths and heights, or -1 if there are no sizes
+	 */
+	public static int optimalPreviewSize(int[] widths, int[] heights, int w, int h) {
+		double targetRatio = (double) w / h;
+		int optimal = -1;
+		double minDiff = Double.MAX_VALUE;
+
+		int targetHeight = h;
+
+		// Try to find an size match aspect ratio and size
+		for (int i = 0; i < widths.length; i++) {
+			double ratio = (double) widths[i] / heights[i];
+			if (Math.abs(ratio - targetRatio) > ASPECT_TOLERANCE) continue;
+			if (Math.abs(heights[i] - targetHeight) < minDiff) {
+				optimal = i;
+				minDiff = Math.abs(heights[i] - targetHeight);
+			}
+		}
+
+		// Cannot find the one match the aspect ratio, ignore the requirement
+		if (optimal < 0) {
+			minDiff = Double.MAX_VALUE;
+			for (int i = 0; i < widths.length; i++) {
+				if (Math.abs(heights[i] - targetHeight) < minDiff) {
+					optimal = i;
+					minDiff = Math.abs(heights[i] - targetHeight);
+				}
+			}
+		}
+		return optimal;
+	}
+}
@@ -0,0 +1,112 @@
+package org.cygx1.snap;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An SMTP server to send through, with the account to use on it and its
+ * share of the sending relative to the other relays
+ */
+public class Relay {
+	public static final int SSL_PORT = 465;
+
+	private final String mHost;
+	private final int mPort;
+	private final String mUser;
+	private final String mPassword;
+	private final int mWeight;
+
+	/**
+	 * @param port - 465 for SSL from the start; any other port is plain
+	 *            SMTP, upgraded with STARTTLS if the server offers it
+	 * @param weight - share of the sending; 0 only as a last resort
+	 */
+	public Relay(String host, int port, String user, String password, int weight) {
+		mHost = host;
+		mPort = port;
+		mUser = user;
+		mPassword = password;
+		mWeight = weight;
+	}
+
+	/**
+	 * Read a list of relays, separated by commas, each written
+	 * [user[:password]@]host[:port][*weight]
+	 * @param user, password - the account for relays that don't name one
+	 * @throws IllegalArgumentException if a port or weight isn't a number
+	 */
+	public static List<Relay> parse(String list, String user, String password) {
+		List<Relay> relays = new ArrayList<Relay>();
+		if (list == null) {
+			return relays;
+		}
+		for (String spec : list.split(",")) {
+			spec = spec.trim();
+			if (spec.length() == 0) {
+				continue;
+			}
+			String relayUser = user;
+			String relayPassword = password;
+			int at = spec.lastIndexOf('@');
+			if (at >= 0) {
+				String account = spec.substring(0, at);
+				spec = spec.substring(at + 1);
+				int colon = account.indexOf(':');
+				if (colon >= 0) {
+					relayUser = account.substring(0, colon);
+					relayPassword = account.substring(colon + 1);
+				} else {
+					relayUser = account;
+				}
+			}
+			int weight = 1;
+			int star = spec.indexOf('*');
+			if (star >= 0) {
+				weight = Integer.parseInt(spec.substring(star + 1).trim());
+				spec = spec.substring(0, star);
+			}
+			int port = SSL_PORT;
+			int colon = spec.indexOf(':');
+			if (colon >= 0) {
+				port = Integer.parseInt(spec.substring(colon + 1).trim());
+				spec = spec.substring(0, colon);
+			}
+			relays.add(new Relay(spec.trim(), port, relayUser, relayPassword, weight));
+		}
+		return relays;
+	}
+
+	public String getHost() {
+		return mHost;
+	}
+
+	public int getPort() {
+		return mPort;
+	}
+
+	public int getWeight() {
+		return mWeight;
+	}
+
+	/**
+	 * @return what tells this relay apart from the others, across settings
+	 *         changes: the same server with another account is another
+	 *         relay
+	 */
+	public String getKey() {
+		return mUser + "@" + mHost + ":" + mPort;
+	}
+
+	/**
+	 * Have the message go through this relay
+	 */
+	public void applyTo(Mail m) {
+		m.setServer(mHost, mPort, mPort == SSL_PORT);
+		m.setAccount(mUser, mPassword);
+	}
+
+	@Override
+	public String toString() {
+		return mHost + ":" + mPort;
+	}
+}
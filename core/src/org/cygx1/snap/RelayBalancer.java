@@ -0,0 +1,169 @@
+package org.cygx1.snap;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import javax.mail.AuthenticationFailedException;
+import javax.mail.MessagingException;
+
+import com.sun.mail.smtp.SMTPAddressFailedException;
+import com.sun.mail.smtp.SMTPSendFailedException;
+
+/**
+ * Spreads sends across relays and keeps track of how each is doing. A
+ * relay's share is its weight over its recent time per send, so a slow or
+ * throttled relay gets less of the traffic without anyone having to notice.
+ * A relay that can't be reached, or that says to try later, sits out for a
+ * while, longer each time it does it again, and the send moves on to
+ * another one.
+ */
+public class RelayBalancer {
+	private static final String TAG = "Snap";
+
+	// Weight of the latest send in the average time per send
+	private static final double ALPHA = 0.3;
+	private static final long INITIAL_HOLDOFF_MS = 30 * 1000;
+	private static final long MAX_HOLDOFF_MS = 10 * 60 * 1000;
+
+	private static class Health {
+		// Average time per send; 0 until there has been one
+		double sendMs = 0;
+		int failures = 0;
+		// Not picked before this, in System.currentTimeMillis()
+		long downUntil = 0;
+	}
+
+	private final Map<String, Health> mHealth = new HashMap<String, Health>();
+	private final Random mRandom = new Random();
+
+	/**
+	 * Pick the relay for the next attempt. Healthy relays are picked at
+	 * random by weight over time per send; if every one is sitting out,
+	 * the one due back soonest is tried anyway.
+	 * @param tried - keys of relays already tried for this message
+	 * @return null if every relay has been tried
+	 */
+	public synchronized Relay pick(List<Relay> relays, Set<String> tried) {
+		long now = System.currentTimeMillis();
+		// Relays that haven't sent anything yet are taken to be average
+		double totalMs = 0;
+		int known = 0;
+		for (Relay relay : relays) {
+			Health health = mHealth.get(relay.getKey());
+			if (health != null && health.sendMs > 0) {
+				totalMs += health.sendMs;
+				known++;
+			}
+		}
+		double typicalMs = known > 0 ? totalMs / known : 1;
+
+		List<Relay> up = new ArrayList<Relay>();
+		List<Double> shares = new ArrayList<Double>();
+		double total = 0;
+		Relay soonest = null;
+		long soonestBack = Long.MAX_VALUE;
+		for (Relay relay : relays) {
+			if (tried.contains(relay.getKey())) {
+				continue;
+			}
+			Health health = health(relay);
+			if (health.downUntil > now || relay.getWeight() <= 0) {
+				long back = relay.getWeight() <= 0 ? Long.MAX_VALUE - 1 : health.downUntil;
+				if (back < soonestBack) {
+					soonest = relay;
+					soonestBack = back;
+				}
+				continue;
+			}
+			double share = relay.getWeight() / (health.sendMs > 0 ? health.sendMs : typicalMs);
+			up.add(relay);
+			shares.add(share);
+			total += share;
+		}
+		if (up.isEmpty()) {
+			return soonest;
+		}
+		double r = mRandom.nextDouble() * total;
+		for (int i = 0; i < up.size(); i++) {
+			r -= shares.get(i);
+			if (r < 0) {
+				return up.get(i);
+			}
+		}
+		return up.get(up.size() - 1);
+	}
+
+	public synchronized void succeeded(Relay relay, long sendNanos) {
+		Health health = health(relay);
+		double ms = sendNanos / 1e6;
+		health.sendMs = health.sendMs > 0 ? ALPHA * ms + (1 - ALPHA) * health.sendMs : ms;
+		health.failures = 0;
+		health.downUntil = 0;
+	}
+
+	/**
+	 * Have a relay sit out for a while
+	 */
+	public synchronized void failed(Relay relay) {
+		Health health = health(relay);
+		health.failures++;
+		long holdoff = INITIAL_HOLDOFF_MS << Math.min(health.failures - 1, 10);
+		health.downUntil = System.currentTimeMillis() + Math.min(holdoff, MAX_HOLDOFF_MS);
+		Log.d(TAG, "Relay " + relay + " failed " + health.failures + " times running, out for "
+				+ Math.min(holdoff, MAX_HOLDOFF_MS) / 1000 + " s");
+	}
+
+	private Health health(Relay relay) {
+		Health health = mHealth.get(relay.getKey());
+		if (health == null) {
+			health = new Health();
+			mHealth.put(relay.getKey(), health);
+		}
+		return health;
+	}
+
+	/**
+	 * @return whether a send failed because of the relay, rather than the
+	 *         message: it couldn't be reached or logged in to, or it gave a
+	 *         4xx reply. Those are worth trying another relay for.
+	 */
+	public static boolean isRelayFailure(Exception e) {
+		Throwable t = e;
+		// Nested only a few deep, but don't go round in circles
+		for (int depth = 0; t != null && depth < 8; depth++) {
+			if (t instanceof IOException || t instanceof AuthenticationFailedException) {
+				return true;
+			}
+			if (t instanceof SMTPSendFailedException) {
+				return isTransient(((SMTPSendFailedException) t).getReturnCode());
+			}
+			if (t instanceof SMTPAddressFailedException) {
+				return isTransient(((SMTPAddressFailedException) t).getReturnCode());
+			}
+			if (t instanceof MessagingException) {
+				// The reply, as ChunkingTransport and SMTPTransport put it;
+				// "[EOF]" is SMTPTransport's for a server that hung up
+				String message = t.getMessage();
+				if (message != null && (message.startsWith("[EOF]") || message.length() >= 3
+						&& message.charAt(0) == '4' && Character.isDigit(message.charAt(1))
+						&& Character.isDigit(message.charAt(2)))) {
+					return true;
+				}
+				Exception next = ((MessagingException) t).getNextException();
+				t = next != null ? next : t.getCause();
+			} else {
+				t = t.getCause();
+			}
+		}
+		return false;
+	}
+
+	private static boolean isTransient(int replyCode) {
+		return replyCode >= 400 && replyCode < 500;
+	}
+}
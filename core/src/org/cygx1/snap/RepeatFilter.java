@@ -0,0 +1,57 @@
+package org.cygx1.snap;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers the perceptual hashes of the last few photos sent, so that
+ * another shot of the same scene a moment later can be recognised and left
+ * out. Only recent photos count: the same view an hour later is news.
+ */
+public class RepeatFilter {
+	private static final int CAPACITY = 16;
+	private static final long WINDOW_MS = 5 * 60 * 1000;
+
+	// Hash to when it was last sent, least recently matched first
+	private final LinkedHashMap<Long, Long> mRecent = new LinkedHashMap<Long, Long>(
+			CAPACITY, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Long, Long> eldest) {
+			return size() > CAPACITY;
+		}
+	};
+
+	/**
+	 * @param maxDistance - most bits a hash may differ by and still count
+	 *            as the same picture
+	 * @return whether a photo with this hash was sent recently
+	 */
+	public synchronized boolean isRepeat(long hash, int maxDistance) {
+		long now = System.currentTimeMillis();
+		Long match = null;
+		for (Iterator<Map.Entry<Long, Long>> i = mRecent.entrySet().iterator(); i.hasNext();) {
+			Map.Entry<Long, Long> entry = i.next();
+			if (now - entry.getValue().longValue() > WINDOW_MS) {
+				i.remove();
+			} else if (match == null
+					&& PerceptualHash.distance(entry.getKey().longValue(), hash) <= maxDistance) {
+				match = entry.getKey();
+			}
+		}
+		if (match != null) {
+			// Keep it around for as long as people keep matching it
+			mRecent.get(match);
+		}
+		return match != null;
+	}
+
+	/**
+	 * Note that a photo has been sent
+	 */
+	public synchronized void remember(long hash) {
+		mRecent.put(Long.valueOf(hash), Long.valueOf(System.currentTimeMillis()));
+	}
+}
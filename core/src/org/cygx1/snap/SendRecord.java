@@ -0,0 +1,179 @@
+package org.cygx1.snap;
+
+/**
+ * When each stage of getting one message out happened, from the tap on the
+ * preview to the server's final 250, along with how big it was.
+ *
+ * Stages are marked as they happen with System.nanoTime(). Whoever is
+ * sending makes the record current on their thread with begin(), so code
+ * further down, in Mail and ChunkingTransport, can mark stages without it
+ * being passed around; with no current record, mark() does nothing.
+ * Stages that didn't happen, like connecting when a pooled connection was
+ * used, stay at 0. A record is for one upload over one connection, so the
+ * bytes and the DATA to SENT span it gives ThroughputEstimator go together.
+ */
+public class SendRecord {
+	public enum Stage {
+		/** the preview was tapped */
+		TAP,
+		/** the camera handed over the JPEG */
+		TAKEN,
+		/** writing the photo to the SD card started and finished */
+		WRITE_START, WRITTEN,
+		/** a send worker picked the message up */
+		SEND_START,
+		/** Mail asked the pool for a connection */
+		ACQUIRE,
+		/** a new connection: connect started, TLS handshake started, the
+		 *  server's greeting was in, and AUTH was done */
+		CONNECT, TLS, GREETING, AUTH,
+		/** Mail had a connection */
+		ACQUIRED,
+		/** the MIME message was ready to go */
+		MIME,
+		/** the envelope was accepted and the message started going out */
+		DATA,
+		/** the server said 250 to the whole message */
+		SENT
+	}
+
+	/**
+	 * A stretch of time between two stages
+	 */
+	public enum Span {
+		CAPTURE("capture", Stage.TAP, Stage.TAKEN),
+		WRITE("file write", Stage.WRITE_START, Stage.WRITTEN),
+		QUEUE("queued", Stage.TAKEN, Stage.SEND_START),
+		PREPARE("prepare", Stage.SEND_START, Stage.ACQUIRE),
+		CONNECTION("connection", Stage.ACQUIRE, Stage.ACQUIRED),
+		CONNECT("  connect", Stage.CONNECT, Stage.TLS),
+		TLS("  TLS", Stage.TLS, Stage.GREETING),
+		AUTH("  EHLO/AUTH", Stage.GREETING, Stage.AUTH),
+		MIME("MIME", Stage.ACQUIRED, Stage.MIME),
+		ENVELOPE("envelope", Stage.MIME, Stage.DATA),
+		DATA("DATA to 250", Stage.DATA, Stage.SENT),
+		SEND("send", Stage.SEND_START, Stage.SENT),
+		TOTAL("tap to 250", Stage.TAP, Stage.SENT);
+
+		public final String label;
+		public final Stage from;
+		public final Stage to;
+
+		Span(String label, Stage from, Stage to) {
+			this.label = label;
+			this.from = from;
+			this.to = to;
+		}
+	}
+
+	private static final ThreadLocal<SendRecord> sCurrent = new ThreadLocal<SendRecord>();
+
+	private final long[] mStamps = new long[Stage.values().length];
+	private final long mWhen = System.currentTimeMillis();
+	private int mPhotos;
+	private long mPhotoBytes;
+	private long mWireBytes;
+	private boolean mSent;
+
+	/**
+	 * @return the record of the send going on on this thread, or null
+	 */
+	public static SendRecord current() {
+		return sCurrent.get();
+	}
+
+	/**
+	 * Mark a stage of the send going on on this thread, if there is one
+	 */
+	public static void markCurrent(Stage stage) {
+		SendRecord record = sCurrent.get();
+		if (record != null) {
+			record.mark(stage);
+		}
+	}
+
+	/**
+	 * Make this the current record on this thread, until end() is called
+	 */
+	public void begin() {
+		sCurrent.set(this);
+	}
+
+	public void end() {
+		if (sCurrent.get() == this) {
+			sCurrent.set(null);
+		}
+	}
+
+	public synchronized void mark(Stage stage) {
+		mStamps[stage.ordinal()] = System.nanoTime();
+	}
+
+	/**
+	 * Record when a stage happened, e.g. one that happened before the
+	 * record existed; 0 for never
+	 */
+	public synchronized void set(Stage stage, long nanos) {
+		mStamps[stage.ordinal()] = nanos;
+	}
+
+	public synchronized long get(Stage stage) {
+		return mStamps[stage.ordinal()];
+	}
+
+	/**
+	 * @return how long a span took in ns, or -1 if one of its stages
+	 *         didn't happen
+	 */
+	public synchronized long span(Span span) {
+		long from = mStamps[span.from.ordinal()];
+		long to = mStamps[span.to.ordinal()];
+		if (from == 0 || to == 0 || to < from) {
+			return -1;
+		}
+		return to - from;
+	}
+
+	/**
+	 * @param photos - how many photos went in the message
+	 * @param photoBytes - how big they were
+	 */
+	public void setPhotos(int photos, long photoBytes) {
+		mPhotos = photos;
+		mPhotoBytes = photoBytes;
+	}
+
+	public synchronized void addWireBytes(long bytes) {
+		mWireBytes += bytes;
+	}
+
+	public void setSent(boolean sent) {
+		mSent = sent;
+	}
+
+	/**
+	 * @return wall clock time the record was started
+	 */
+	public long getWhen() {
+		return mWhen;
+	}
+
+	public int getPhotos() {
+		return mPhotos;
+	}
+
+	public long getPhotoBytes() {
+		return mPhotoBytes;
+	}
+
+	/**
+	 * @return bytes of message sent to the server, after encoding
+	 */
+	public synchronized long getWireBytes() {
+		return mWireBytes;
+	}
+
+	public boolean isSent() {
+		return mSent;
+	}
+}
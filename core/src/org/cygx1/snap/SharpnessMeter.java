@@ -0,0 +1,90 @@
+package org.cygx1.snap;
+
+/**
+ * Tells whether a preview frame is sharp and still enough to be worth
+ * taking a picture of, from a sparse grid of samples of its luma plane,
+ * without allocating anything per frame.
+ *
+ * Sharpness is the variance of the Laplacian at each sample, taken from
+ * the sample's immediate neighbours so fine detail still counts. Motion is
+ * how far the samples' brightness moved since the last frame. What counts
+ * as sharp depends on the scene, so a frame has to come close to the
+ * sharpest recent frame as well as clear a floor.
+ */
+public class SharpnessMeter {
+	// Samples along the longer side
+	private static final int GRID = 64;
+	// Mean change in luma per sample, out of 255, still taken as steady
+	private static final double MAX_MOTION = 6;
+	// Laplacian variance below which a frame is just blur or noise
+	private static final double MIN_SHARPNESS = 50;
+	// How close to the recent peak a frame has to be, and how fast the
+	// peak is forgotten, per frame
+	private static final double PEAK_FRACTION = 0.7;
+	private static final double PEAK_DECAY = 0.98;
+
+	private final int mWidth;
+	private final int mStep;
+	private final int mCols;
+	private final int mRows;
+	// The samples from the last frame
+	private final int[] mLast;
+	private boolean mHaveLast = false;
+
+	private double mSharpness;
+	private double mMotion;
+	private double mPeak;
+
+	/**
+	 * @param width, height - preview frame size
+	 */
+	public SharpnessMeter(int width, int height) {
+		mWidth = width;
+		mStep = Math.max(2, Math.max(width, height) / GRID);
+		// Stay a pixel clear of the edges, for the neighbours
+		mCols = (width - 3) / mStep + 1;
+		mRows = (height - 3) / mStep + 1;
+		mLast = new int[mCols * mRows];
+	}
+
+	/**
+	 * Measure a frame
+	 * @param frame - NV21 or any other format that starts with a full
+	 *            resolution luma plane
+	 * @return whether it is sharp and still
+	 */
+	public boolean measure(byte[] frame) {
+		long sum = 0;
+		long sumOfSquares = 0;
+		long moved = 0;
+		int n = 0;
+		for (int r = 0; r < mRows; r++) {
+			int row = (1 + r * mStep) * mWidth;
+			for (int c = 0; c < mCols; c++) {
+				int i = row + 1 + c * mStep;
+				int p = frame[i] & 0xff;
+				int laplacian = 4 * p - (frame[i - 1] & 0xff) - (frame[i + 1] & 0xff)
+						- (frame[i - mWidth] & 0xff) - (frame[i + mWidth] & 0xff);
+				sum += laplacian;
+				sumOfSquares += laplacian * laplacian;
+				moved += Math.abs(p - mLast[n]);
+				mLast[n++] = p;
+			}
+		}
+		double mean = (double) sum / n;
+		mSharpness = (double) sumOfSquares / n - mean * mean;
+		mMotion = mHaveLast ? (double) moved / n : Double.MAX_VALUE;
+		mHaveLast = true;
+		mPeak = Math.max(mSharpness, mPeak * PEAK_DECAY);
+		return mMotion <= MAX_MOTION && mSharpness >= MIN_SHARPNESS
+				&& mSharpness >= mPeak * PEAK_FRACTION;
+	}
+
+	public double getSharpness() {
+		return mSharpness;
+	}
+
+	public double getMotion() {
+		return mMotion;
+	}
+}
@@ -0,0 +1,174 @@
+package org.cygx1.snap;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+
+import javax.net.SocketFactory;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * The SSL socket factory JavaMail is told to use for SMTP connections. It
+ * hands out ordinary SSL sockets, but remembers the last one created on
+ * each thread, which is how ChunkingTransport gets hold of the socket
+ * JavaMail opened for it.
+ *
+ * JavaMail finds it by name and calls getDefault() to get an instance.
+ * The sockets come from the platform's default SSL socket factory unless
+ * another is installed with setDelegate(), e.g. one that keeps TLS
+ * sessions across launches (see TlsSessions). Plain hands out plain
+ * sockets the same way, for servers that don't want SSL until STARTTLS.
+ * It's an SSL socket factory too, since that's what JavaMail looks for
+ * to layer TLS over the plain socket, and that socket is remembered as well.
+ */
+public class SmtpSocketFactory extends SSLSocketFactory {
+	private static final ThreadLocal<Socket> sLastSocket = new ThreadLocal<Socket>();
+	private static SmtpSocketFactory sInstance = null;
+
+	public static synchronized SocketFactory getDefault() {
+		if (sInstance == null) {
+			sInstance = new SmtpSocketFactory();
+		}
+		return sInstance;
+	}
+
+	/**
+	 * @return the last socket created on this thread, if it hasn't already
+	 *         been taken
+	 */
+	static Socket takeLastSocket() {
+		Socket socket = sLastSocket.get();
+		sLastSocket.set(null);
+		return socket;
+	}
+
+	/**
+	 * @return the last socket created on this thread, leaving it there
+	 */
+	static Socket peekLastSocket() {
+		return sLastSocket.get();
+	}
+
+	/**
+	 * Have all SMTP connections from now on made by the given factory
+	 */
+	static void setDelegate(SSLSocketFactory delegate) {
+		((SmtpSocketFactory) getDefault()).mDelegate = delegate;
+	}
+
+	private volatile SSLSocketFactory mDelegate;
+
+	private SmtpSocketFactory() {
+		mDelegate = (SSLSocketFactory) SSLSocketFactory.getDefault();
+	}
+
+	private static Socket remember(Socket socket) {
+		sLastSocket.set(socket);
+		return socket;
+	}
+
+	@Override
+	public Socket createSocket() throws IOException {
+		return remember(mDelegate.createSocket());
+	}
+
+	@Override
+	public Socket createSocket(String host, int port) throws IOException {
+		return remember(mDelegate.createSocket(host, port));
+	}
+
+	@Override
+	public Socket createSocket(String host, int port, InetAddress localHost,
+			int localPort) throws IOException {
+		return remember(mDelegate.createSocket(host, port, localHost, localPort));
+	}
+
+	@Override
+	public Socket createSocket(InetAddress host, int port) throws IOException {
+		return remember(mDelegate.createSocket(host, port));
+	}
+
+	@Override
+	public Socket createSocket(InetAddress address, int port,
+			InetAddress localAddress, int localPort) throws IOException {
+		return remember(mDelegate.createSocket(address, port, localAddress, localPort));
+	}
+
+	@Override
+	public Socket createSocket(Socket s, String host, int port, boolean autoClose)
+			throws IOException {
+		return remember(mDelegate.createSocket(s, host, port, autoClose));
+	}
+
+	/**
+	 * Plain sockets, remembered the same way, for a server without SSL,
+	 * and the SSL ones STARTTLS puts over them
+	 */
+	public static class Plain extends SSLSocketFactory {
+		private static Plain sPlain = null;
+
+		public static synchronized SocketFactory getDefault() {
+			if (sPlain == null) {
+				sPlain = new Plain();
+			}
+			return sPlain;
+		}
+
+		@Override
+		public Socket createSocket() throws IOException {
+			return remember(new Socket());
+		}
+
+		@Override
+		public Socket createSocket(String host, int port) throws IOException {
+			return remember(new Socket(host, port));
+		}
+
+		@Override
+		public Socket createSocket(String host, int port, InetAddress localHost,
+				int localPort) throws IOException {
+			return remember(new Socket(host, port, localHost, localPort));
+		}
+
+		@Override
+		public Socket createSocket(InetAddress host, int port) throws IOException {
+			return remember(new Socket(host, port));
+		}
+
+		@Override
+		public Socket createSocket(InetAddress address, int port,
+				InetAddress localAddress, int localPort) throws IOException {
+			return remember(new Socket(address, port, localAddress, localPort));
+		}
+
+		@Override
+		public Socket createSocket(Socket s, String host, int port, boolean autoClose)
+				throws IOException {
+			return ssl().createSocket(s, host, port, autoClose);
+		}
+
+		@Override
+		public String[] getDefaultCipherSuites() {
+			return ssl().getDefaultCipherSuites();
+		}
+
+		@Override
+		public String[] getSupportedCipherSuites() {
+			return ssl().getSupportedCipherSuites();
+		}
+
+		private static SSLSocketFactory ssl() {
+			return (SSLSocketFactory) SmtpSocketFactory.getDefault();
+		}
+	}
+
+	@Override
+	public String[] getDefaultCipherSuites() {
+		return mDelegate.getDefaultCipherSuites();
+	}
+
+	@Override
+	public String[] getSupportedCipherSuites() {
+		return mDelegate.getSupportedCipherSuites();
+	}
+}
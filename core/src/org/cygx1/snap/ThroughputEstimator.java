@@ -0,0 +1,154 @@
+package org.cygx1.snap;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+
+/**
+ * How fast recent sends went, smoothed: an exponentially weighted average
+ * of the upload rate while the message was going out, and of the time
+ * spent on everything else (connecting, the envelope, waiting for the
+ * final reply). Together they say how many bytes can be sent in a given
+ * time. It also keeps track of how much bigger than the photos themselves
+ * messages come out on the wire, base64 and all.
+ *
+ * Given a file, it keeps the averages there and picks them up again in the
+ * next process, which is usually the one taking the next picture.
+ */
+public class ThroughputEstimator {
+	private static final String TAG = "Snap";
+
+	// Weight of the newest sample
+	private static final double ALPHA = 0.3;
+	// Smaller transfers are all round trips, and say little about the rate
+	private static final long MIN_SAMPLE_BYTES = 16 * 1024;
+
+	private static ThroughputEstimator sInstance = null;
+
+	public static synchronized ThroughputEstimator getInstance() {
+		if (sInstance == null) {
+			sInstance = new ThroughputEstimator();
+		}
+		return sInstance;
+	}
+
+	// Bytes per second, and seconds; negative until there's a sample
+	private double mRate = -1;
+	private double mOverhead = -1;
+	// Wire bytes per byte of photo
+	private double mExpansion = -1;
+	private File mFile = null;
+
+	ThroughputEstimator() {
+	}
+
+	/**
+	 * Keep the averages in a file from now on, starting from what's in it
+	 * unless there are samples already
+	 */
+	public synchronized void setFile(File file) {
+		if (file.equals(mFile)) {
+			return;
+		}
+		mFile = file;
+		if (mRate >= 0 || mOverhead >= 0 || mExpansion >= 0 || !file.exists()) {
+			return;
+		}
+		try {
+			BufferedReader in = new BufferedReader(new FileReader(file));
+			try {
+				String[] fields = in.readLine().trim().split(" ");
+				mRate = Double.parseDouble(fields[0]);
+				mOverhead = Double.parseDouble(fields[1]);
+				mExpansion = Double.parseDouble(fields[2]);
+			} finally {
+				in.close();
+			}
+		} catch (Exception e) {
+			// Torn or from some other version; start over
+			Log.w(TAG, "Unable to read throughput from " + file, e);
+			mRate = mOverhead = mExpansion = -1;
+		}
+	}
+
+	/**
+	 * Write the averages out aside and swap them in, so a crash halfway
+	 * leaves the last ones
+	 */
+	private void save() {
+		if (mFile == null) {
+			return;
+		}
+		File tmp = new File(mFile.getPath() + ".tmp");
+		try {
+			FileOutputStream out = new FileOutputStream(tmp);
+			try {
+				out.write((mRate + " " + mOverhead + " " + mExpansion + "\n").getBytes("UTF-8"));
+			} finally {
+				out.close();
+			}
+			if (!tmp.renameTo(mFile)) {
+				throw new IOException("Unable to replace " + mFile);
+			}
+		} catch (IOException e) {
+			Log.w(TAG, "Unable to save throughput", e);
+		}
+	}
+
+	/**
+	 * Add what a successful send took
+	 */
+	public void add(SendRecord record) {
+		long data = record.span(SendRecord.Span.DATA);
+		long send = record.span(SendRecord.Span.SEND);
+		if (data > 0 && send >= data) {
+			add(record.getWireBytes(), data, send - data);
+		}
+		if (record.getPhotoBytes() > 0 && record.getWireBytes() > 0) {
+			synchronized (this) {
+				mExpansion = smooth(mExpansion,
+						(double) record.getWireBytes() / record.getPhotoBytes());
+				save();
+			}
+		}
+	}
+
+	/**
+	 * @param bytes - bytes uploaded
+	 * @param transferNanos - how long uploading them took
+	 * @param overheadNanos - how long the rest of the send took
+	 */
+	public synchronized void add(long bytes, long transferNanos, long overheadNanos) {
+		mOverhead = smooth(mOverhead, overheadNanos / 1e9);
+		if (bytes >= MIN_SAMPLE_BYTES && transferNanos > 0) {
+			mRate = smooth(mRate, bytes / (transferNanos / 1e9));
+		}
+		save();
+	}
+
+	private static double smooth(double average, double sample) {
+		return average < 0 ? sample : average + ALPHA * (sample - average);
+	}
+
+	/**
+	 * @return bytes per second, or -1 if there's no telling yet
+	 */
+	public synchronized double getRate() {
+		return mRate;
+	}
+
+	/**
+	 * @return how many bytes of photos can go out within the given time,
+	 *         or -1 if there's no telling yet; at least 1 if there is
+	 */
+	public synchronized long budget(double seconds) {
+		if (mRate < 0) {
+			return -1;
+		}
+		double transfer = seconds - Math.max(0, mOverhead);
+		double expansion = mExpansion > 0 ? mExpansion : 4.0 / 3;
+		return Math.max(1, (long) (transfer * mRate / expansion));
+	}
+}
@@ -0,0 +1,215 @@
+package org.cygx1.snap;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.Transport;
+
+/**
+ * Keeps authenticated SMTP connections open between messages, so a photo
+ * doesn't pay for a TCP connect, TLS handshake and AUTH exchange every time.
+ *
+ * Idle connections are kept alive with NOOPs and closed once they have been
+ * idle for a while. Connections can also be opened ahead of time with
+ * prewarm(), e.g. while the camera preview is up.
+ */
+public class TransportPool {
+	private static final String TAG = "Snap";
+
+	private static final long KEEPALIVE_MS = 45 * 1000;
+	private static final long IDLE_TIMEOUT_MS = 5 * 60 * 1000;
+	// Connections used more recently than this are trusted without a NOOP
+	private static final long TRUST_MS = 10 * 1000;
+	private static final int MAX_IDLE_PER_SERVER = 2;
+
+	private static TransportPool sInstance = null;
+
+	public static synchronized TransportPool getInstance() {
+		if (sInstance == null) {
+			sInstance = new TransportPool();
+		}
+		return sInstance;
+	}
+
+	private static class Entry {
+		final String key;
+		final Transport transport;
+		long lastUsed;
+
+		Entry(String key, Transport transport) {
+			this.key = key;
+			this.transport = transport;
+		}
+	}
+
+	private final Map<String, LinkedList<Entry>> mIdle = new HashMap<String, LinkedList<Entry>>();
+	private final Map<Transport, Entry> mBusy = new HashMap<Transport, Entry>();
+	private final ScheduledExecutorService mKeepalive;
+
+	private TransportPool() {
+		mKeepalive = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "Snap-smtp-keepalive");
+				t.setDaemon(true);
+				t.setPriority(Thread.MIN_PRIORITY);
+				return t;
+			}
+		});
+		mKeepalive.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				keepalive();
+			}
+		}, KEEPALIVE_MS, KEEPALIVE_MS, TimeUnit.MILLISECONDS);
+	}
+
+	private static String key(String host, int port, String user) {
+		return user + "@" + host + ":" + port;
+	}
+
+	/**
+	 * Get a connected, authenticated transport, reusing an idle one if there
+	 * is one. Hand it back with release() or discard() when done.
+	 */
+	public Transport acquire(Session session, String host, int port,
+			String user, String pass) throws MessagingException {
+		String key = key(host, port, user);
+		long now = System.currentTimeMillis();
+		Entry entry;
+		while ((entry = takeIdle(key)) != null) {
+			if (now - entry.lastUsed < TRUST_MS || entry.transport.isConnected()) {
+				break;
+			}
+			// Server dropped it while it sat in the pool
+			closeQuietly(entry.transport);
+		}
+		if (entry == null) {
+			Transport transport = session.getTransport("smtp");
+			transport.connect(host, port, user, pass);
+			entry = new Entry(key, transport);
+		}
+		synchronized (this) {
+			mBusy.put(entry.transport, entry);
+		}
+		return entry.transport;
+	}
+
+	/**
+	 * Return a transport that is still in a good state to the pool
+	 */
+	public void release(Transport transport) {
+		Entry entry;
+		synchronized (this) {
+			entry = mBusy.remove(transport);
+			if (entry != null) {
+				LinkedList<Entry> idle = idleList(entry.key);
+				if (idle.size() < MAX_IDLE_PER_SERVER) {
+					entry.lastUsed = System.currentTimeMillis();
+					idle.addFirst(entry);
+					return;
+				}
+			}
+		}
+		closeQuietly(transport);
+	}
+
+	/**
+	 * Close a transport that failed mid-conversation rather than pooling it
+	 */
+	public void discard(Transport transport) {
+		synchronized (this) {
+			mBusy.remove(transport);
+		}
+		closeQuietly(transport);
+	}
+
+	/**
+	 * Open and authenticate a connection in the background so it is ready by
+	 * the time there is something to send
+	 */
+	public void prewarm(final Session session, final String host,
+			final int port, final String user, final String pass) {
+		synchronized (this) {
+			LinkedList<Entry> idle = mIdle.get(key(host, port, user));
+			if (idle != null && !idle.isEmpty()) {
+				return;
+			}
+		}
+		mKeepalive.execute(new Runnable() {
+			public void run() {
+				try {
+					release(acquire(session, host, port, user, pass));
+					Log.d(TAG, "Prewarmed SMTP connection to " + host);
+				} catch (MessagingException e) {
+					Log.w(TAG, "Unable to prewarm SMTP connection", e);
+				}
+			}
+		});
+	}
+
+	private synchronized Entry takeIdle(String key) {
+		LinkedList<Entry> idle = mIdle.get(key);
+		if (idle == null || idle.isEmpty()) {
+			return null;
+		}
+		return idle.removeFirst();
+	}
+
+	private LinkedList<Entry> idleList(String key) {
+		LinkedList<Entry> idle = mIdle.get(key);
+		if (idle == null) {
+			idle = new LinkedList<Entry>();
+			mIdle.put(key, idle);
+		}
+		return idle;
+	}
+
+	/**
+	 * NOOP idle connections so the server doesn't drop them, and close the
+	 * ones that have been idle too long. The NOOPs go out with the
+	 * connections checked out of the pool, so nobody else can be using them.
+	 */
+	private void keepalive() {
+		long now = System.currentTimeMillis();
+		List<Entry> check = new ArrayList<Entry>();
+		synchronized (this) {
+			for (LinkedList<Entry> idle : mIdle.values()) {
+				for (Iterator<Entry> i = idle.iterator(); i.hasNext();) {
+					check.add(i.next());
+					i.remove();
+				}
+			}
+		}
+		for (Entry entry : check) {
+			if (now - entry.lastUsed > IDLE_TIMEOUT_MS || !entry.transport.isConnected()) {
+				closeQuietly(entry.transport);
+				continue;
+			}
+			synchronized (this) {
+				LinkedList<Entry> idle = idleList(entry.key);
+				if (idle.size() < MAX_IDLE_PER_SERVER) {
+					idle.addLast(entry);
+					continue;
+				}
+			}
+			closeQuietly(entry.transport);
+		}
+	}
+
+	private static void closeQuietly(Transport transport) {
+		try {
+			transport.close();
+		} catch (MessagingException e) {
+			// nothing useful to do, the connection is going away anyway
+		}
+	}
+}
@@ -0,0 +1,114 @@
+package org.cygx1.snap;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A small test harness, since the project has no test framework to hand:
+ * each case is run in turn and fails by throwing. Failures are printed
+ * with their stack traces and counted, and the run goes on to the next
+ * case.
+ */
+public class Check {
+	// How long await() waits for the background threads to catch up
+	private static final long AWAIT_MS = 10 * 1000;
+
+	public interface Case {
+		void run() throws Exception;
+	}
+
+	public interface Condition {
+		boolean holds() throws Exception;
+	}
+
+	private final String mFilter;
+	private final List<File> mTempDirs = new ArrayList<File>();
+	private int mRun = 0;
+	private int mFailed = 0;
+
+	/**
+	 * @param filter - only run cases whose names contain this, or null for
+	 *            all of them
+	 */
+	public Check(String filter) {
+		mFilter = filter;
+	}
+
+	public void run(String name, Case c) {
+		if (mFilter != null && !name.contains(mFilter)) {
+			return;
+		}
+		mRun++;
+		try {
+			c.run();
+			System.out.println("ok    " + name);
+		} catch (Throwable e) {
+			mFailed++;
+			System.out.println("FAIL  " + name);
+			e.printStackTrace(System.out);
+		} finally {
+			for (File dir : mTempDirs) {
+				delete(dir);
+			}
+			mTempDirs.clear();
+		}
+	}
+
+	public int getRun() {
+		return mRun;
+	}
+
+	public int getFailed() {
+		return mFailed;
+	}
+
+	/**
+	 * @return an empty directory, deleted again once the case is over
+	 */
+	public File tempDir() throws IOException {
+		File dir = File.createTempFile("snap-test", "");
+		if (!dir.delete() || !dir.mkdir()) {
+			throw new IOException("Unable to make " + dir);
+		}
+		mTempDirs.add(dir);
+		return dir;
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+
+	public static void that(boolean condition, String what) {
+		if (!condition) {
+			throw new AssertionError(what);
+		}
+	}
+
+	public static void equal(Object expected, Object actual, String what) {
+		if (expected == null ? actual != null : !expected.equals(actual)) {
+			throw new AssertionError(what + ": expected <" + expected + "> but was <"
+					+ actual + ">");
+		}
+	}
+
+	/**
+	 * Wait for something the Outbox's threads do behind the caller's back
+	 */
+	public static void await(Condition condition, String what) throws Exception {
+		long deadline = System.currentTimeMillis() + AWAIT_MS;
+		while (!condition.holds()) {
+			if (System.currentTimeMillis() > deadline) {
+				throw new AssertionError("Timed out waiting until " + what);
+			}
+			Thread.sleep(10);
+		}
+	}
+}
@@ -0,0 +1,311 @@
+package org.cygx1.snap;
+
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import javax.mail.internet.MimeUtility;
+
+/**
+ * The codecs, checked against what the JDK and JavaMail make of their
+ * output: the JPEG transforms must give pictures ImageIO can decode, with
+ * the pixels they should have, and base64 must decode back to its input.
+ */
+class CodecTest {
+	private static final int WIDTH = 640;
+	private static final int HEIGHT = 480;
+
+	static void run(final Check check) {
+		check.run("codec: base64 lines and round trip", new Check.Case() {
+			public void run() throws Exception {
+				base64();
+			}
+		});
+		check.run("codec: optimized JPEG has the same pixels", new Check.Case() {
+			public void run() throws Exception {
+				optimize();
+			}
+		});
+		check.run("codec: cropped JPEG is the part asked for", new Check.Case() {
+			public void run() throws Exception {
+				crop();
+			}
+		});
+		check.run("codec: downscaled JPEG looks like the original", new Check.Case() {
+			public void run() throws Exception {
+				downscale();
+			}
+		});
+		check.run("codec: EXIF orientation is set, patched and kept when stripping", new Check.Case() {
+			public void run() throws Exception {
+				exif();
+			}
+		});
+		check.run("codec: perceptual hash tells alike from different", new Check.Case() {
+			public void run() throws Exception {
+				hash();
+			}
+		});
+	}
+
+	private static void base64() throws Exception {
+		Base64LineEncoder encoder = new Base64LineEncoder();
+		int[] lengths = { 0, 1, 2, 3, 56, 57, 58, 114, 57 * 128, 57 * 128 + 1, 20000 };
+		for (int length : lengths) {
+			byte[] data = new byte[length];
+			new Random(length).nextBytes(data);
+			for (boolean direct : new boolean[] { false, true }) {
+				ByteBuffer src = direct ? ByteBuffer.allocateDirect(length) : ByteBuffer.allocate(length);
+				src.put(data).flip();
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				encoder.encode(src, out);
+				String what = length + " bytes" + (direct ? ", direct" : "");
+				Check.that(!src.hasRemaining(), "all read, " + what);
+
+				String encoded = new String(out.toByteArray(), "US-ASCII");
+				String[] lines = encoded.split("\r\n", -1);
+				Check.equal("", lines[lines.length - 1], "ends with CRLF, " + what);
+				for (int i = 0; i < lines.length - 1; i++) {
+					boolean last = i == lines.length - 2;
+					Check.that(last ? lines[i].length() <= 76 : lines[i].length() == 76,
+							"line " + i + " is " + lines[i].length() + " long, " + what);
+				}
+				InputStream in = MimeUtility.decode(
+						new ByteArrayInputStream(out.toByteArray()), "base64");
+				Check.that(Arrays.equals(data, readAll(in)), "round trip, " + what);
+			}
+		}
+	}
+
+	private static void optimize() throws Exception {
+		byte[] jpeg = syntheticJpeg(42, 200, 0.85f);
+		byte[] optimized = copy(JpegOptimizer.optimize(jpeg, jpeg.length));
+		Check.that(optimized.length <= jpeg.length, "optimized is " + optimized.length
+				+ " bytes, was " + jpeg.length);
+		Check.equal(Double.valueOf(0), Double.valueOf(difference(decode(jpeg), 0, 0,
+				decode(optimized), WIDTH, HEIGHT)), "pixel difference");
+	}
+
+	private static void crop() throws Exception {
+		byte[] jpeg = syntheticJpeg(42, 200, 0.85f);
+		Check.that(JpegCropper.crop(jpeg, jpeg.length, 0, 0, 1, 1) == null,
+				"nothing to crop from the whole picture");
+
+		JpegReader reader = new JpegReader(jpeg, jpeg.length);
+		int mcuWidth = 8 * reader.hmax;
+		int mcuHeight = 8 * reader.vmax;
+		// The corner goes back to an MCU boundary; the far edge stays put
+		int x0 = WIDTH / 4 / mcuWidth * mcuWidth;
+		int y0 = HEIGHT / 4 / mcuHeight * mcuHeight;
+		int x1 = WIDTH * 3 / 4;
+		int y1 = HEIGHT * 3 / 4;
+		byte[] cropped = copy(JpegCropper.crop(jpeg, jpeg.length, 0.25f, 0.25f, 0.75f, 0.75f));
+		BufferedImage image = decode(cropped);
+		Check.equal(x1 - x0, image.getWidth(), "width");
+		Check.equal(y1 - y0, image.getHeight(), "height");
+		// Only the chroma upsampling at the new edges can differ
+		double diff = difference(decode(jpeg), x0, y0, image, image.getWidth(), image.getHeight());
+		Check.that(diff < 1, "pixel difference " + diff);
+	}
+
+	private static void downscale() throws Exception {
+		// Fewer edges: the reduced IDCT only keeps the low frequencies, so
+		// it strays further from a box filter the sharper the picture is
+		byte[] jpeg = syntheticJpeg(42, 20, 0.85f);
+		Check.that(JpegDownscaler.downscale(jpeg, jpeg.length, WIDTH, 85) == null,
+				"nothing to do when already small enough");
+		Check.equal(2, JpegDownscaler.chooseBlockSize(WIDTH, HEIGHT, WIDTH / 4), "IDCT size");
+
+		byte[] small = copy(JpegDownscaler.downscale(jpeg, jpeg.length, WIDTH / 4, 85));
+		BufferedImage image = decode(small);
+		Check.equal(WIDTH / 4, image.getWidth(), "width");
+		Check.equal(HEIGHT / 4, image.getHeight(), "height");
+		// Against the original averaged over the same 4x4 blocks
+		BufferedImage original = decode(jpeg);
+		BufferedImage boxed = new BufferedImage(WIDTH / 4, HEIGHT / 4, BufferedImage.TYPE_INT_RGB);
+		for (int y = 0; y < HEIGHT / 4; y++) {
+			for (int x = 0; x < WIDTH / 4; x++) {
+				int r = 0, g = 0, b = 0;
+				for (int dy = 0; dy < 4; dy++) {
+					for (int dx = 0; dx < 4; dx++) {
+						int rgb = original.getRGB(x * 4 + dx, y * 4 + dy);
+						r += (rgb >> 16) & 0xff;
+						g += (rgb >> 8) & 0xff;
+						b += rgb & 0xff;
+					}
+				}
+				boxed.setRGB(x, y, ((r / 16) << 16) | ((g / 16) << 8) | (b / 16));
+			}
+		}
+		double diff = difference(boxed, 0, 0, image, WIDTH / 4, HEIGHT / 4);
+		Check.that(diff < 5, "pixel difference " + diff);
+	}
+
+	private static void exif() throws Exception {
+		byte[] jpeg = syntheticJpeg(42, 200, 0.85f);
+		BufferedImage original = decode(jpeg);
+
+		// No EXIF to begin with, so it's built
+		byte[] rotated = copy(ExifRewriter.rewrite(jpeg, jpeg.length, ExifRewriter.orientationFor(90), false));
+		Check.equal(6, orientation(rotated), "orientation added");
+		Check.equal(Double.valueOf(0), Double.valueOf(difference(original, 0, 0,
+				decode(rotated), WIDTH, HEIGHT)), "pixel difference");
+
+		// Now there's a tag to patch where it is
+		Check.that(ExifRewriter.rewrite(rotated, rotated.length, 3, false) == null,
+				"orientation patched in place");
+		Check.equal(3, orientation(rotated), "orientation patched");
+
+		byte[] stripped = copy(ExifRewriter.rewrite(rotated, rotated.length, 8, true));
+		Check.equal(8, orientation(stripped), "orientation kept when stripping");
+		Check.equal(Double.valueOf(0), Double.valueOf(difference(original, 0, 0,
+				decode(stripped), WIDTH, HEIGHT)), "pixel difference");
+	}
+
+	private static void hash() throws Exception {
+		byte[] jpeg = syntheticJpeg(42, 200, 0.85f);
+		long h = PerceptualHash.dHash(jpeg, jpeg.length);
+
+		byte[] optimized = copy(JpegOptimizer.optimize(jpeg, jpeg.length));
+		Check.equal(Long.valueOf(h), Long.valueOf(PerceptualHash.dHash(optimized,
+				optimized.length)), "hash of the same coefficients");
+
+		byte[] worse = syntheticJpeg(42, 200, 0.5f);
+		int d = PerceptualHash.distance(h, PerceptualHash.dHash(worse, worse.length));
+		Check.that(d <= 6, "lower quality is " + d + " bits away");
+
+		byte[] small = copy(JpegDownscaler.downscale(jpeg, jpeg.length, WIDTH / 2, 85));
+		d = PerceptualHash.distance(h, PerceptualHash.dHash(small, small.length));
+		Check.that(d <= 6, "half size is " + d + " bits away");
+
+		byte[] other = syntheticJpeg(7, 200, 0.85f);
+		d = PerceptualHash.distance(h, PerceptualHash.dHash(other, other.length));
+		Check.that(d > 12, "a different picture is only " + d + " bits away");
+	}
+
+	/**
+	 * @return the IFD0 Orientation tag of a JPEG, or 0 if it has none
+	 */
+	private static int orientation(byte[] jpeg) {
+		int offset = 2;
+		while (offset + 4 <= jpeg.length && (jpeg[offset] & 0xff) == 0xff) {
+			int marker = jpeg[offset + 1] & 0xff;
+			int length = u16(jpeg, offset + 2, false);
+			if (marker == JpegReader.SOS) {
+				break;
+			}
+			if (marker == JpegReader.APP1 && new String(jpeg, offset + 4, 4).equals("Exif")) {
+				int tiff = offset + 10;
+				boolean little = jpeg[tiff] == 'I';
+				int ifd = tiff + u32(jpeg, tiff + 4, little);
+				int entries = u16(jpeg, ifd, little);
+				for (int i = 0; i < entries; i++) {
+					int entry = ifd + 2 + i * 12;
+					if (u16(jpeg, entry, little) == 0x0112) {
+						return u16(jpeg, entry + 8, little);
+					}
+				}
+			}
+			offset += 2 + length;
+		}
+		return 0;
+	}
+
+	private static int u16(byte[] b, int offset, boolean little) {
+		int hi = b[offset + (little ? 1 : 0)] & 0xff;
+		int lo = b[offset + (little ? 0 : 1)] & 0xff;
+		return (hi << 8) | lo;
+	}
+
+	private static int u32(byte[] b, int offset, boolean little) {
+		return little ? u16(b, offset, true) | (u16(b, offset + 2, true) << 16)
+				: (u16(b, offset, false) << 16) | u16(b, offset + 2, false);
+	}
+
+	/**
+	 * @return the mean absolute difference per channel between a w x h
+	 *         image and the same size region of another at (x0, y0)
+	 */
+	private static double difference(BufferedImage a, int x0, int y0, BufferedImage b,
+			int w, int h) {
+		long sum = 0;
+		for (int y = 0; y < h; y++) {
+			for (int x = 0; x < w; x++) {
+				int p = a.getRGB(x0 + x, y0 + y);
+				int q = b.getRGB(x, y);
+				for (int shift = 0; shift < 24; shift += 8) {
+					sum += Math.abs(((p >> shift) & 0xff) - ((q >> shift) & 0xff));
+				}
+			}
+		}
+		return sum / (3.0 * w * h);
+	}
+
+	private static BufferedImage decode(byte[] jpeg) throws IOException {
+		BufferedImage image = ImageIO.read(new ByteArrayInputStream(jpeg));
+		Check.that(image != null, "ImageIO can decode it");
+		return image;
+	}
+
+	/**
+	 * A baseline JPEG with some detail in it, as PipelineBenchmarks makes
+	 * @param shapes - how many ovals to draw over the gradient
+	 */
+	private static byte[] syntheticJpeg(long seed, int shapes, float quality)
+			throws IOException {
+		BufferedImage image = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+		Graphics2D g = image.createGraphics();
+		g.setPaint(new GradientPaint(0, 0, Color.ORANGE, WIDTH, HEIGHT, Color.BLUE));
+		g.fillRect(0, 0, WIDTH, HEIGHT);
+		Random random = new Random(seed);
+		for (int i = 0; i < shapes; i++) {
+			g.setColor(new Color(random.nextInt(0x1000000)));
+			g.fillOval(random.nextInt(WIDTH), random.nextInt(HEIGHT),
+					10 + random.nextInt(100), 10 + random.nextInt(100));
+		}
+		g.dispose();
+
+		ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+		ImageWriteParam param = writer.getDefaultWriteParam();
+		param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+		param.setCompressionQuality(quality);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		MemoryCacheImageOutputStream stream = new MemoryCacheImageOutputStream(out);
+		writer.setOutput(stream);
+		writer.write(null, new IIOImage(image, null, null), param);
+		stream.close();
+		writer.dispose();
+		return out.toByteArray();
+	}
+
+	private static byte[] copy(PooledOutputStream out) {
+		Check.that(out != null, "a new JPEG");
+		byte[] data = new byte[out.size()];
+		System.arraycopy(out.getBuffer(), 0, data, 0, data.length);
+		out.release();
+		return data;
+	}
+
+	private static byte[] readAll(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		int n;
+		while ((n = in.read(buffer)) > 0) {
+			out.write(buffer, 0, n);
+		}
+		return out.toByteArray();
+	}
+}
@@ -0,0 +1,41 @@
+package org.cygx1.snap;
+
+/**
+ * Runs the tests for core on a desktop JVM: the Outbox's journal and
+ * write-behind, the PhotoStore's index, and the JPEG and MIME codecs.
+ *
+ * --filter TEXT runs only the cases whose names contain TEXT, and
+ * --verbose shows what core logs along the way. Exits with 1 if anything
+ * failed.
+ */
+public class CoreTests {
+	public static void main(String[] args) throws Exception {
+		String filter = null;
+		boolean verbose = false;
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("--filter") && i + 1 < args.length) {
+				filter = args[++i];
+			} else if (args[i].equals("--verbose")) {
+				verbose = true;
+			} else {
+				System.err.println("Usage: CoreTests [--filter TEXT] [--verbose]");
+				System.exit(2);
+			}
+		}
+		if (!verbose) {
+			// Plenty of the cases make things fail on purpose
+			Log.setPrinter(new Log.Printer() {
+				public void println(int priority, String tag, String msg, Throwable tr) {
+				}
+			});
+		}
+
+		Check check = new Check(filter);
+		OutboxTest.run(check);
+		PhotoStoreTest.run(check);
+		CodecTest.run(check);
+
+		System.out.println(check.getRun() + " run, " + check.getFailed() + " failed");
+		System.exit(check.getFailed() > 0 ? 1 : 0);
+	}
+}
@@ -0,0 +1,279 @@
+package org.cygx1.snap;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * The Outbox's journal and write-behind: what replay() picks up and how it
+ * compacts the journal, and that a photo queued from memory is written,
+ * journaled and pinned in the store before it is marked sent.
+ */
+class OutboxTest {
+	static void run(final Check check) {
+		check.run("outbox: replay sends what the journal has pending", new Check.Case() {
+			public void run() throws Exception {
+				replay(check.tempDir());
+			}
+		});
+		check.run("outbox: replay pins pending photos in the store", new Check.Case() {
+			public void run() throws Exception {
+				replayPins(check.tempDir());
+			}
+		});
+		check.run("outbox: replay leaves photos already queued alone", new Check.Case() {
+			public void run() throws Exception {
+				replayQueued(check.tempDir());
+			}
+		});
+		check.run("outbox: write-behind saves, journals and stores before sent", new Check.Case() {
+			public void run() throws Exception {
+				writeBehind(check.tempDir());
+			}
+		});
+		check.run("outbox: a photo that can't be saved isn't retried", new Check.Case() {
+			public void run() throws Exception {
+				unsaved(check.tempDir());
+			}
+		});
+	}
+
+	/**
+	 * A Delivery that records what it's given, and holds on to each send
+	 * until let go, or fails it
+	 */
+	static class Recorder implements Outbox.Delivery, Outbox.Listener {
+		final List<List<String>> delivered = Collections.synchronizedList(new ArrayList<List<String>>());
+		final List<String> sent = Collections.synchronizedList(new ArrayList<String>());
+		final List<String> failed = Collections.synchronizedList(new ArrayList<String>());
+		final CountDownLatch go;
+		final boolean fail;
+
+		Recorder(boolean hold, boolean fail) {
+			go = new CountDownLatch(hold ? 1 : 0);
+			this.fail = fail;
+		}
+
+		public String getServer() {
+			return "test";
+		}
+
+		public void deliver(List<Photo> photos) throws Exception {
+			delivered.add(paths(photos));
+			go.await();
+			if (fail) {
+				throw new IOException("Turned away");
+			}
+		}
+
+		public void onSent(List<Photo> photos) {
+			sent.addAll(paths(photos));
+		}
+
+		public void onFailed(List<Photo> photos, Exception e, boolean willRetry) {
+			for (String path : paths(photos)) {
+				failed.add(path + (willRetry ? " will retry" : " given up"));
+			}
+		}
+
+		private static List<String> paths(List<Photo> photos) {
+			List<String> paths = new ArrayList<String>();
+			for (Photo photo : photos) {
+				paths.add(photo.getFile().getAbsolutePath());
+			}
+			return paths;
+		}
+	}
+
+	private static Outbox newOutbox(File journal, Recorder recorder) {
+		Outbox outbox = new Outbox(journal, recorder, recorder, 1);
+		outbox.setSendSpacing(0);
+		return outbox;
+	}
+
+	private static void replay(File dir) throws Exception {
+		File a = write(new File(dir, "a.jpg"), 10);
+		File b = write(new File(dir, "b.jpg"), 20);
+		File missing = new File(dir, "c.jpg");
+		final File journal = new File(dir, "outbox");
+		// A torn write at the end, as a crash would leave
+		writeString(journal, "+" + a + "\n+" + b + "\n-" + a + "\n+" + missing + "\n+");
+
+		final Recorder recorder = new Recorder(true, false);
+		final Outbox outbox = newOutbox(journal, recorder);
+		outbox.replay();
+		Check.await(new Check.Condition() {
+			public boolean holds() {
+				return recorder.delivered.size() == 1;
+			}
+		}, "the replayed photo is sent");
+		Check.equal(Arrays.asList(b.getAbsolutePath()), recorder.delivered.get(0),
+				"photos replayed");
+		Check.equal("+" + b + "\n", readString(journal), "compacted journal");
+		Check.equal(1, outbox.size(), "photos pending");
+
+		recorder.go.countDown();
+		awaitJournal(journal, "+" + b + "\n-" + b + "\n");
+		Check.equal(0, outbox.size(), "photos pending");
+	}
+
+	private static void replayPins(File dir) throws Exception {
+		final PhotoStore store = new PhotoStore(new File(dir, "photos"));
+		store.setCapacity(0);
+		final File file = write(store.newFile(), 100);
+		File journal = new File(dir, "outbox");
+		writeString(journal, "+" + file + "\n");
+
+		final Recorder recorder = new Recorder(true, false);
+		Outbox outbox = newOutbox(journal, recorder);
+		outbox.setStore(store);
+		outbox.replay();
+		Check.await(new Check.Condition() {
+			public boolean holds() {
+				return recorder.delivered.size() == 1;
+			}
+		}, "the replayed photo is sent");
+		// Even with no room for anything, it's kept until it's sent
+		Check.equal(1, store.size(), "photos in the store while sending");
+		Check.that(file.exists(), "photo kept while sending");
+
+		recorder.go.countDown();
+		Check.await(new Check.Condition() {
+			public boolean holds() {
+				return !file.exists();
+			}
+		}, "the photo is deleted once sent");
+		Check.equal(0, store.size(), "photos in the store once sent");
+	}
+
+	private static void replayQueued(File dir) throws Exception {
+		File journal = new File(dir, "outbox");
+		final Recorder recorder = new Recorder(true, false);
+		Outbox outbox = newOutbox(journal, recorder);
+		File file = new File(dir, "a.jpg");
+		outbox.enqueue(new Photo(file, new byte[10], 10));
+		outbox.replay();
+		// Replay goes through the I/O thread after the write, so once the
+		// journal is compacted it has seen the photo
+		awaitJournal(journal, "+" + file + "\n");
+		Check.await(new Check.Condition() {
+			public boolean holds() {
+				return recorder.delivered.size() == 1;
+			}
+		}, "the queued photo is sent");
+		Thread.sleep(200);
+		Check.equal(1, recorder.delivered.size(), "sends");
+		Check.equal(1, outbox.size(), "photos pending");
+		recorder.go.countDown();
+	}
+
+	private static void writeBehind(File dir) throws Exception {
+		PhotoStore store = new PhotoStore(new File(dir, "photos"));
+		store.setCapacity(0);
+		final File file = store.newFile();
+		byte[] data = new byte[1000];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte) i;
+		}
+		File journal = new File(dir, "outbox");
+		final Recorder recorder = new Recorder(true, false);
+		Outbox outbox = newOutbox(journal, recorder);
+		outbox.setStore(store);
+		outbox.enqueue(new Photo(file, data, data.length));
+
+		// The write doesn't hold up the send, and the send doesn't hold up
+		// the write
+		awaitJournal(journal, "+" + file + "\n");
+		Check.that(Arrays.equals(data, read(file)), "photo written out whole");
+		Check.equal(1, store.size(), "photos in the store");
+		Check.equal(Long.valueOf(data.length), Long.valueOf(store.getBytes()),
+				"bytes in the store");
+
+		recorder.go.countDown();
+		awaitJournal(journal, "+" + file + "\n-" + file + "\n");
+		// Had the store heard it was sent before it was added, it would
+		// still be pinned
+		Check.that(!file.exists(), "photo deleted once sent");
+		Check.equal(0, store.size(), "photos in the store");
+		Check.equal(Arrays.asList(file.getAbsolutePath()), recorder.sent, "photos sent");
+	}
+
+	private static void unsaved(File dir) throws Exception {
+		// A file where the directory should be, so the write fails
+		File blocked = write(new File(dir, "blocked"), 1);
+		File lost = new File(blocked, "a.jpg");
+		File kept = new File(dir, "b.jpg");
+		File journal = new File(dir, "outbox");
+		final Recorder recorder = new Recorder(false, true);
+		final Outbox outbox = newOutbox(journal, recorder);
+		outbox.enqueue(Arrays.asList(new Photo(lost, new byte[10], 10),
+				new Photo(kept, new byte[10], 10)));
+
+		Check.await(new Check.Condition() {
+			public boolean holds() {
+				return outbox.size() == 1;
+			}
+		}, "the unsaved photo is given up on");
+		Check.equal(1, recorder.delivered.size(), "sends");
+		Check.that(recorder.failed.contains(lost + " given up"), "unsaved photo given up");
+		Check.that(recorder.failed.contains(kept + " will retry"), "saved photo retried");
+		Check.equal("+" + kept + "\n", readString(journal), "journal");
+	}
+
+	private static void awaitJournal(final File journal, final String contents)
+			throws Exception {
+		Check.await(new Check.Condition() {
+			public boolean holds() throws IOException {
+				return journal.exists() && readString(journal).equals(contents);
+			}
+		}, "the journal reads " + contents);
+	}
+
+	static File write(File file, int length) throws IOException {
+		file.getParentFile().mkdirs();
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(new byte[length]);
+		} finally {
+			out.close();
+		}
+		return file;
+	}
+
+	static void writeString(File file, String s) throws IOException {
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(s.getBytes("UTF-8"));
+		} finally {
+			out.close();
+		}
+	}
+
+	static byte[] read(File file) throws IOException {
+		byte[] data = new byte[(int) file.length()];
+		FileInputStream in = new FileInputStream(file);
+		try {
+			int n = 0;
+			while (n < data.length) {
+				int r = in.read(data, n, data.length - n);
+				if (r < 0) {
+					throw new IOException("Short read of " + file);
+				}
+				n += r;
+			}
+		} finally {
+			in.close();
+		}
+		return data;
+	}
+
+	static String readString(File file) throws IOException {
+		return new String(read(file), "UTF-8");
+	}
+}
@@ -0,0 +1,120 @@
+package org.cygx1.snap;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+
+/**
+ * The PhotoStore's index: that it comes back the same after a restart, is
+ * compacted, and shrugs off torn and foreign entries, and that only sent
+ * photos are ever deleted.
+ */
+class PhotoStoreTest {
+	static void run(final Check check) {
+		check.run("store: index survives a restart", new Check.Case() {
+			public void run() throws Exception {
+				restart(check.tempDir());
+			}
+		});
+		check.run("store: unsent photos are never deleted", new Check.Case() {
+			public void run() throws Exception {
+				unsent(check.tempDir());
+			}
+		});
+		check.run("store: index is compacted", new Check.Case() {
+			public void run() throws Exception {
+				compact(check.tempDir());
+			}
+		});
+		check.run("store: torn and foreign index entries are ignored", new Check.Case() {
+			public void run() throws Exception {
+				foreign(check.tempDir());
+			}
+		});
+	}
+
+	private static void restart(File dir) throws Exception {
+		PhotoStore store = new PhotoStore(dir);
+		File a = add(store, 100);
+		File b = add(store, 200);
+		File c = add(store, 300);
+		store.sent(a);
+
+		store = new PhotoStore(dir);
+		Check.equal(3, store.size(), "photos after a restart");
+		Check.equal(Long.valueOf(600), Long.valueOf(store.getBytes()), "bytes after a restart");
+		// a is still marked sent, and goes first
+		store.setCapacity(450);
+		store.sent(b);
+		Check.that(!a.exists() && !b.exists() && c.exists(), "least recently used sent photos deleted");
+		Check.equal(1, store.size(), "photos left");
+		Check.equal(Long.valueOf(300), Long.valueOf(store.getBytes()), "bytes left");
+	}
+
+	private static void unsent(File dir) throws Exception {
+		PhotoStore store = new PhotoStore(dir);
+		store.setCapacity(0);
+		File a = add(store, 100);
+		File b = add(store, 100);
+		Check.that(a.exists() && b.exists(), "unsent photos kept");
+		store.sent(a);
+		Check.that(!a.exists() && b.exists(), "only the sent photo deleted");
+		Check.that(b.getParentFile().exists(), "day directory kept while it has photos");
+		store.sent(b);
+		Check.that(!b.getParentFile().exists(), "empty day directory deleted");
+		Check.equal(0, store.size(), "photos left");
+	}
+
+	private static void compact(File dir) throws Exception {
+		PhotoStore store = new PhotoStore(dir);
+		File a = add(store, 100);
+		for (int i = 0; i < 600; i++) {
+			store.add(a);
+			store.sent(a);
+		}
+		int lines = lines(new File(dir, "index"));
+		Check.that(lines < 300, "index compacted, but has " + lines + " lines");
+
+		// And reads back the same: a single sent photo, the first to go
+		store = new PhotoStore(dir);
+		Check.equal(1, store.size(), "photos after a restart");
+		store.setCapacity(100);
+		File b = add(store, 100);
+		Check.that(!a.exists() && b.exists(), "sent photo deleted to make room");
+	}
+
+	private static void foreign(File dir) throws Exception {
+		File ours = OutboxTest.write(new File(dir, "20260101" + File.separator + "p1.jpg"), 100);
+		// Left at the top of the directory by an older version
+		File theirs = OutboxTest.write(new File(dir, "p0.jpg"), 50);
+		OutboxTest.writeString(new File(dir, "index"), "+20260101/p1.jpg 100 5\n"
+				+ "+p0.jpg 50 5\n=p0.jpg 6\n" + "+20260101/p9.jpg 70 5\n" + "=20260101/p1");
+		PhotoStore store = new PhotoStore(dir);
+		Check.equal(1, store.size(), "photos in the store");
+		Check.equal(Long.valueOf(100), Long.valueOf(store.getBytes()), "bytes in the store");
+		store.setCapacity(0);
+		add(store, 10);
+		Check.that(ours.exists(), "unsent photo kept");
+		Check.that(theirs.exists(), "photo outside the store left alone");
+	}
+
+	private static File add(PhotoStore store, int length) throws IOException {
+		File file = OutboxTest.write(store.newFile(), length);
+		store.add(file);
+		return file;
+	}
+
+	private static int lines(File file) throws IOException {
+		BufferedReader in = new BufferedReader(new FileReader(file));
+		try {
+			int lines = 0;
+			while (in.readLine() != null) {
+				lines++;
+			}
+			return lines;
+		} finally {
+			in.close();
+		}
+	}
+}
@@ -8,6 +8,14 @@
 package org.cygx1.snap;
 
 public final class R {
+    public static final class array {
+        public static final int cropNames=0x7f060004;
+        public static final int cropValues=0x7f060005;
+        public static final int jpegQualityNames=0x7f060002;
+        public static final int jpegQualityValues=0x7f060003;
+        public static final int photoSizeNames=0x7f060000;
+        public static final int photoSizeValues=0x7f060001;
+    }
     public static final class attr {
     }
     public static final class drawable {
@@ -21,12 +29,27 @@ public final class R {
     public static final class string {
         public static final int app_name=0x7f050001;
         public static final int app_prefs=0x7f050004;
+        public static final int app_stats=0x7f05000f;
+        public static final int burstCountPref=0x7f05000e;
+        public static final int coalescePref=0x7f050008;
+        public static final int coalesceSizePref=0x7f050009;
+        public static final int cropPref=0x7f050015;
         public static final int defaultSubject=0x7f050007;
         public static final int emailPref=0x7f050002;
         public static final int hello=0x7f050000;
+        public static final int jpegQualityPref=0x7f05000b;
         public static final int passwordPref=0x7f050003;
+        public static final int photoBudgetPref=0x7f05000d;
+        public static final int photoSizePref=0x7f05000a;
+        public static final int previewFirstPref=0x7f050012;
         public static final int recipientPref=0x7f050005;
+        public static final int relaysPref=0x7f050014;
+        public static final int repeatDistancePref=0x7f050011;
+        public static final int steadyWaitPref=0x7f050010;
+        public static final int storeSizePref=0x7f050016;
+        public static final int stripMetadataPref=0x7f05000c;
         public static final int subjectPref=0x7f050006;
+        public static final int targetSecondsPref=0x7f050013;
     }
     public static final class xml {
         public static final int snapprefs=0x7f040000;
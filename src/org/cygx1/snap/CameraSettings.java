@@ -0,0 +1,177 @@
+package org.cygx1.snap;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.hardware.Camera;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.util.Log;
+
+/**
+ * The camera's parameters, changed without round trips on the UI thread.
+ *
+ * getParameters() and setParameters() flatten and parse the whole parameter
+ * string every time, so this reads them once and keeps a copy of what the
+ * camera has. Changes that differ from that copy are collected, and applied
+ * together on a camera thread a moment after the last one comes in, so a
+ * burst of changes costs one setParameters() call.
+ *
+ * Camera isn't thread-safe, so once it's open everything else done with it
+ * goes through execute() or post() too, and happens on the same thread, in
+ * turn with the changes.
+ */
+public class CameraSettings {
+	private static final String TAG = "Snap";
+	private static final long DEBOUNCE_MS = 100;
+
+	private final Camera mCamera;
+	private final HandlerThread mThread;
+	private final Handler mHandler;
+	// The parameters as of the last setParameters()
+	private final Camera.Parameters mApplied;
+	// Changes not applied yet
+	private final Map<String, String> mPending = new HashMap<String, String>();
+
+	private final Runnable mApply = new Runnable() {
+		public void run() {
+			apply();
+		}
+	};
+
+	public CameraSettings(Camera camera) {
+		mCamera = camera;
+		mApplied = camera.getParameters();
+		mThread = new HandlerThread("Snap-camera");
+		mThread.start();
+		mHandler = new Handler(mThread.getLooper());
+	}
+
+	public Camera getCamera() {
+		return mCamera;
+	}
+
+	// The getters read the copy under the lock the camera thread changes it
+	// under, and what they return is parsed afresh from it, so it's the
+	// caller's to keep; the copy itself never leaves here
+
+	public synchronized List<Camera.Size> getSupportedPreviewSizes() {
+		return mApplied.getSupportedPreviewSizes();
+	}
+
+	public synchronized List<Camera.Size> getSupportedPictureSizes() {
+		return mApplied.getSupportedPictureSizes();
+	}
+
+	/**
+	 * @return the preview size the camera has, not counting changes that
+	 *         haven't been applied yet
+	 */
+	public synchronized Camera.Size getPreviewSize() {
+		return mApplied.getPreviewSize();
+	}
+
+	/**
+	 * Change a parameter, some time in the next DEBOUNCE_MS
+	 */
+	public synchronized void set(String key, String value) {
+		if (value.equals(mApplied.get(key))) {
+			mPending.remove(key);
+		} else {
+			mPending.put(key, value);
+		}
+		mHandler.removeCallbacks(mApply);
+		if (!mPending.isEmpty()) {
+			mHandler.postDelayed(mApply, DEBOUNCE_MS);
+		}
+	}
+
+	public void set(String key, int value) {
+		set(key, String.valueOf(value));
+	}
+
+	public void setPreviewSize(int width, int height) {
+		set("preview-size", width + "x" + height);
+	}
+
+	public void setPictureSize(int width, int height) {
+		set("picture-size", width + "x" + height);
+	}
+
+	public void setJpegQuality(int quality) {
+		set("jpeg-quality", quality);
+	}
+
+	/**
+	 * Apply any pending changes straight away, without waiting for more
+	 */
+	public synchronized void flush() {
+		mHandler.removeCallbacks(mApply);
+		mHandler.post(mApply);
+	}
+
+	/**
+	 * Run something on the camera thread, leaving pending changes to wait
+	 * out the debounce
+	 */
+	public void execute(Runnable r) {
+		mHandler.post(r);
+	}
+
+	/**
+	 * Apply any pending changes straight away, then run something else on
+	 * the camera thread, e.g. starting the preview once its size is set
+	 */
+	public synchronized void post(Runnable after) {
+		mHandler.removeCallbacks(mApply);
+		mHandler.post(mApply);
+		mHandler.post(after);
+	}
+
+	private void apply() {
+		synchronized (this) {
+			if (mPending.isEmpty()) {
+				return;
+			}
+			for (Map.Entry<String, String> change : mPending.entrySet()) {
+				mApplied.set(change.getKey(), change.getValue());
+			}
+			mPending.clear();
+		}
+		try {
+			// Only this thread changes the copy, so it can be read unlocked
+			mCamera.setParameters(mApplied);
+		} catch (RuntimeException e) {
+			// Some value wasn't acceptable; find out what the camera really has
+			Log.w(TAG, "Unable to set camera parameters", e);
+			String actual = mCamera.getParameters().flatten();
+			synchronized (this) {
+				mApplied.unflatten(actual);
+			}
+		}
+	}
+
+	/**
+	 * Drop any pending changes and stop the camera thread once it has run
+	 * everything already given to it, e.g. releasing the camera. Returns
+	 * when it has.
+	 */
+	public void close() {
+		synchronized (this) {
+			mPending.clear();
+			mHandler.removeCallbacks(mApply);
+		}
+		mHandler.post(new Runnable() {
+			public void run() {
+				Looper.myLooper().quit();
+			}
+		});
+		try {
+			mThread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
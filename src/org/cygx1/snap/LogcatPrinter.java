@@ -0,0 +1,22 @@
+package org.cygx1.snap;
+
+/**
+ * Sends what the core code logs to logcat, with android.util.Log
+ */
+public class LogcatPrinter implements Log.Printer {
+	private static boolean sInstalled = false;
+
+	public static synchronized void install() {
+		if (!sInstalled) {
+			sInstalled = true;
+			Log.setPrinter(new LogcatPrinter());
+		}
+	}
+
+	public void println(int priority, String tag, String msg, Throwable tr) {
+		if (tr != null) {
+			msg += '\n' + android.util.Log.getStackTraceString(tr);
+		}
+		android.util.Log.println(priority, tag, msg);
+	}
+}
@@ -0,0 +1,213 @@
+package org.cygx1.snap;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.app.Notification;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+import android.text.format.Time;
+import android.util.Log;
+
+/**
+ * Mails photos for the Outbox, with settings from the preferences, and
+ * reports how it went in the notification bar. Holds on to the application
+ * context only, since it outlives the Snap activity that queued the photo.
+ */
+public class PhotoSender extends MailDelivery implements Outbox.Listener {
+	private static final String TAG = "Snap";
+	private static final int NOTIFICATION_ERROR_ID = 178361238;
+	private static final int NOTIFICATION_SUCCESS_ID = 178361239;
+	// Minimum time between two sends through any one relay
+	private static final long SEND_SPACING_MS = 2 * 1000;
+
+	private final Context mContext;
+	private final PreferenceSettings mSettings;
+	private final NotificationManager mNotificationManager;
+	private final Notification notifyError, notifySuccess;
+	private final PendingIntent mContentIntent;
+
+	public PhotoSender(Context context) {
+		this(context.getApplicationContext(), new PreferenceSettings(context.getApplicationContext()));
+	}
+
+	private PhotoSender(Context context, PreferenceSettings settings) {
+		super(settings, context.getCacheDir());
+		mContext = context;
+		mSettings = settings;
+		LogcatPrinter.install();
+		TlsSessions.install(mContext);
+		// Sends pick up from, and add to, what earlier launches measured
+		getEstimator(mContext);
+
+		// Set up the notifications manager
+		String ns = Context.NOTIFICATION_SERVICE;
+		mNotificationManager = (NotificationManager) mContext.getSystemService(ns);
+		// Create our notification objects
+		Intent notificationIntent = new Intent(mContext, Snap.class);
+		mContentIntent = PendingIntent.getActivity(mContext, 0, notificationIntent, 0);
+		notifyError = new Notification(R.drawable.stat_sys_warning, "", System.currentTimeMillis());
+		// TODO: better success icon
+		notifySuccess = new Notification(R.drawable.notify_success, "", System.currentTimeMillis());
+	}
+
+	/**
+	 * Apply the coalescing preferences to the outbox
+	 */
+	public void configure(Outbox outbox) {
+		SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(mContext);
+		int seconds = getInt(mContext, prefs, R.string.coalescePref, 5);
+		int kilobytes = getInt(mContext, prefs, R.string.coalesceSizePref, 10 * 1024);
+		outbox.setCoalescing(seconds * 1000L, kilobytes * 1024L);
+		// The outbox spaces sends to all the relays together
+		outbox.setSendSpacing(SEND_SPACING_MS / mSettings.getRelays().size());
+	}
+
+	/**
+	 * Read a numeric preference; EditTextPreference and ListPreference
+	 * store everything as a string
+	 */
+	static int getInt(Context context, SharedPreferences prefs, int key, int defaultValue) {
+		try {
+			return Integer.parseInt(prefs.getString(context.getString(key),
+					String.valueOf(defaultValue)).trim());
+		} catch (NumberFormatException e) {
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * @return the largest a photo should be taken at, in bytes, for the
+	 *         size limit and target delivery time preferences; 0 for no
+	 *         limit
+	 */
+	static long getCaptureBudget(Context context, SharedPreferences prefs) {
+		long budget = getInt(context, prefs, R.string.photoBudgetPref, 0) * 1024L;
+		int targetSeconds = getInt(context, prefs, R.string.targetSecondsPref, 0);
+		if (targetSeconds > 0) {
+			long timely = getEstimator(context).budget(targetSeconds);
+			if (timely > 0 && (budget <= 0 || timely < budget)) {
+				budget = timely;
+			}
+		}
+		return budget;
+	}
+
+	/**
+	 * @return the throughput estimator, going on from where the last
+	 *         process left it
+	 */
+	static ThroughputEstimator getEstimator(Context context) {
+		ThroughputEstimator estimator = ThroughputEstimator.getInstance();
+		estimator.setFile(new File(context.getCacheDir(), "throughput"));
+		return estimator;
+	}
+
+	public void onSent(List<Photo> photos) {
+		int skipped = countSkipped(photos);
+		int sent = photos.size() - skipped;
+		String text = sent == 1 ? "Photo sent successfully"
+				: sent + " photos sent successfully";
+		if (sent == 0) {
+			text = "Same as the last photo, not sent again";
+		} else if (skipped > 0) {
+			text += ", " + skipped + " repeat" + (skipped > 1 ? "s" : "") + " left out";
+		}
+		notifySuccess.setLatestEventInfo(mContext, "Snap", text, mContentIntent);
+		mNotificationManager.notify(NOTIFICATION_SUCCESS_ID, notifySuccess);
+	}
+
+	public void onFailed(List<Photo> photos, Exception e, boolean willRetry) {
+		if (!willRetry) {
+			forget(photos);
+		}
+		// If there is an error, put a notification in the notification bar
+		String text = willRetry ? "Error sending photo, will retry" : "Error sending photo";
+		notifyError.setLatestEventInfo(mContext, "Snap", text, mContentIntent);
+		mNotificationManager.notify(NOTIFICATION_ERROR_ID, notifyError);
+	}
+
+	/**
+	 * MailDelivery's settings, straight from the preferences
+	 */
+	private static class PreferenceSettings implements MailDelivery.Settings {
+		private final Context mContext;
+
+		PreferenceSettings(Context context) {
+			mContext = context;
+		}
+
+		private SharedPreferences prefs() {
+			return PreferenceManager.getDefaultSharedPreferences(mContext);
+		}
+
+		public Mail newMail() {
+			// Get my email address out of preferences
+			SharedPreferences prefs = prefs();
+			String email = prefs.getString(mContext.getString(R.string.emailPref), null);
+			String recipient = prefs.getString(mContext.getString(R.string.recipientPref), null);
+			String subject = prefs.getString(mContext.getString(R.string.subjectPref), null);
+
+			// Format the subject using strftime escapes
+			Time now = new Time();
+			now.setToNow();
+			subject = now.format(subject);
+
+			Mail m = new Mail();
+			String[] toArr = { recipient };
+			m.setTo(toArr);
+			m.setFrom(email);
+			m.setSubject(subject);
+			m.setBody("");
+			return m;
+		}
+
+		public String getFrom() {
+			return prefs().getString(mContext.getString(R.string.emailPref), null);
+		}
+
+		/**
+		 * Gmail, with the account from the preferences, and any others
+		 * the preferences list
+		 */
+		public List<Relay> getRelays() {
+			SharedPreferences prefs = prefs();
+			String email = prefs.getString(mContext.getString(R.string.emailPref), null);
+			String password = prefs.getString(mContext.getString(R.string.passwordPref), null);
+			List<Relay> relays = new ArrayList<Relay>();
+			relays.add(new Relay(Mail.DEFAULT_HOST, Relay.SSL_PORT, email, password, 1));
+			try {
+				relays.addAll(Relay.parse(prefs.getString(mContext.getString(R.string.relaysPref),
+						null), email, password));
+			} catch (IllegalArgumentException e) {
+				Log.w(TAG, "Unable to read the other servers, sending through Gmail only", e);
+			}
+			return relays;
+		}
+
+		public int getMaxDimension() {
+			return getInt(mContext, prefs(), R.string.photoSizePref, 1600);
+		}
+
+		public int getJpegQuality() {
+			return getInt(mContext, prefs(), R.string.jpegQualityPref, 85);
+		}
+
+		public int getRepeatDistance() {
+			return getInt(mContext, prefs(), R.string.repeatDistancePref, 6);
+		}
+
+		public int getTargetSeconds() {
+			return getInt(mContext, prefs(), R.string.targetSecondsPref, 0);
+		}
+
+		public boolean isPreviewFirst() {
+			return prefs().getBoolean(mContext.getString(R.string.previewFirstPref), false);
+		}
+	}
+}
@@ -2,20 +2,57 @@ package org.cygx1.snap;
 
 import java.io.IOException;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 import android.content.Context;
 import android.hardware.Camera;
 import android.hardware.Camera.Size;
 import android.util.Log;
+import android.view.MotionEvent;
 import android.view.OrientationEventListener;
 import android.view.SurfaceHolder;
 import android.view.SurfaceView;
+import android.view.View;
+import android.widget.Toast;
+
+public class Preview extends SurfaceView implements SurfaceHolder.Callback,
+        Camera.PreviewCallback, CaptureSource {
+    // Preview frames in flight between us and the camera
+    private static final int FRAME_BUFFERS = 3;
+    // A drag shorter than this, as a fraction of the view, is a tap
+    private static final float MIN_CROP = 0.1f;
 
-public class Preview extends SurfaceView implements SurfaceHolder.Callback {
 	SurfaceHolder mHolder;
     Camera mCamera;
+    CameraSettings mSettings;
 	private OrientationEventListener mOrientationListener;
     private int mLastLatchedOrientation = -1;
+    // What the pictures are for: see setCaptureLimits()
+    private int mMaxDimension;
+    private int mJpegQuality = 85;
+    private long mByteBudget;
+    private int mExpectedPictureBytes;
+    // Watches the preview frames for a steady shot; see takeWhenSteady()
+    private SharpnessMeter mMeter;
+    private byte[][] mFrameBuffers;
+    private Runnable mSteadyShot;
+    private long mSteadyWaitMs = 1000;
+    // The camera being opened, until surfaceCreated() takes it
+    private FutureTask<CameraSettings> mOpening;
+    // When opening started, in System.nanoTime(), until the first frame
+    private long mOpenStart;
+    // The part of the picture marked by dragging across the preview, as
+    // fractions; null if nothing is marked
+    private float[] mCrop;
+    private float mDownX, mDownY;
+    private final Runnable mSteadyTimeout = new Runnable() {
+        public void run() {
+            Log.d("Snap", "No steady frame in time, shooting anyway");
+            fireSteadyShot();
+        }
+    };
 
     Preview(Context context) {
         super(context);
@@ -28,16 +65,14 @@ public class Preview extends SurfaceView implements SurfaceHolder.Callback {
         
         mOrientationListener = new OrientationEventListener(context) {
 			public void onOrientationChanged(int orientation) {
-                // Keep the last known orientation
+                // Keep the last known orientation. It goes into the EXIF
+                // data when a picture is taken, rather than asking the
+                // camera driver to rotate (or not) the picture itself.
                 if (orientation != ORIENTATION_UNKNOWN) {
                     
                     int latchedOrientation = roundOrientation(orientation);
-                    if ((null != mCamera) && (mLastLatchedOrientation != latchedOrientation)) {
-                        Camera.Parameters parameters = mCamera.getParameters();
+                    if (mLastLatchedOrientation != latchedOrientation) {
                         Log.d("Snap", "Detecting rotation as " + latchedOrientation);
-                        parameters.setRotation((latchedOrientation+90)%360);
-                        mCamera.setParameters(parameters);
-                        
                         mLastLatchedOrientation = latchedOrientation;
                     }
                 }
@@ -46,16 +81,271 @@ public class Preview extends SurfaceView implements SurfaceHolder.Callback {
         mOrientationListener.enable();
         setFocusable(true);
         requestFocus();
+
+        setOnTouchListener(new OnTouchListener() {
+            public boolean onTouch(View v, MotionEvent event) {
+                if (event.getAction() == MotionEvent.ACTION_DOWN) {
+                    mDownX = event.getX();
+                    mDownY = event.getY();
+                } else if (event.getAction() == MotionEvent.ACTION_UP) {
+                    // Taking it means it's not a click
+                    return markCrop(event.getX(), event.getY());
+                }
+                return false;
+            }
+        });
+    }
+
+    /**
+     * Mark the part of the picture between where a drag started and
+     * ended, unless it was too short to be a drag
+     */
+    private boolean markCrop(float x, float y) {
+        float width = getWidth();
+        float height = getHeight();
+        if (width <= 0 || height <= 0 || Math.abs(x - mDownX) < MIN_CROP * width
+                || Math.abs(y - mDownY) < MIN_CROP * height) {
+            return false;
+        }
+        mCrop = new float[] { Math.max(0, Math.min(x, mDownX)) / width,
+                Math.max(0, Math.min(y, mDownY)) / height,
+                Math.min(width, Math.max(x, mDownX)) / width,
+                Math.min(height, Math.max(y, mDownY)) / height };
+        Toast.makeText(getContext(), "Only the marked part will be sent",
+                Toast.LENGTH_SHORT).show();
+        return true;
+    }
+
+    /**
+     * @return the part of the picture marked on the preview, as fractions
+     *         of the width and height: left, top, right, bottom; null if
+     *         none is
+     */
+    public float[] getCrop() {
+        return mCrop;
+    }
+
+    /**
+     * Take pictures no bigger than needed
+     * @param maxDimension - longest side the photos will be sent at; 0 for
+     *            full size
+     * @param quality - JPEG quality to take them at
+     * @param byteBudget - largest a photo should be, in bytes; 0 for no limit
+     */
+    public void setCaptureLimits(int maxDimension, int quality, long byteBudget) {
+        mMaxDimension = maxDimension;
+        mJpegQuality = quality;
+        mByteBudget = byteBudget;
+    }
+
+    /**
+     * Open the camera and set it up on a thread of its own, so that it is
+     * getting on with it while the activity and its surface are still being
+     * made; surfaceCreated() joins up with it. The preview size is picked
+     * for the given size of view, which is only a guess until the surface
+     * says how big it really is. Call after setCaptureLimits().
+     *
+     * The thread has no looper, so the camera's callbacks still come to the
+     * UI thread. Once it's open, everything done with the camera goes on the
+     * CameraSettings thread, since Camera isn't thread-safe.
+     */
+    public void openCamera(final int width, final int height) {
+        mOpenStart = System.nanoTime();
+        mOpening = new FutureTask<CameraSettings>(new Callable<CameraSettings>() {
+            public CameraSettings call() {
+                Camera camera = Camera.open();
+                try {
+                    CameraSettings settings = new CameraSettings(camera);
+                    selectPreviewSize(settings, width, height);
+                    selectPictureSize(settings);
+                    settings.flush();
+                    Log.d("Snap", "Camera opened in "
+                            + (System.nanoTime() - mOpenStart) / 1000000 + " ms");
+                    return settings;
+                } catch (RuntimeException e) {
+                    camera.release();
+                    throw e;
+                }
+            }
+        });
+        new Thread(mOpening, "Snap-camera-open").start();
+    }
+
+    private void selectPictureSize(CameraSettings settings) {
+        List<Size> sizes = settings.getSupportedPictureSizes();
+        if (sizes == null) {
+            return;
+        }
+        int[] widths = new int[sizes.size()];
+        int[] heights = new int[sizes.size()];
+        for (int i = 0; i < widths.length; i++) {
+            widths[i] = sizes.get(i).width;
+            heights[i] = sizes.get(i).height;
+        }
+        PictureSizeSelector selector = new PictureSizeSelector(widths, heights);
+        if (selector.select(mMaxDimension, mJpegQuality, mByteBudget)) {
+            settings.setPictureSize(selector.getWidth(), selector.getHeight());
+            settings.setJpegQuality(selector.getQuality());
+            // Leave some room, the estimate is only rough
+            mExpectedPictureBytes = (int) (PictureSizeSelector.estimateBytes(
+                    selector.getWidth(), selector.getHeight(), selector.getQuality()) * 3 / 2);
+            Log.d("Snap", "Setting picture size to " + selector.getWidth() + "x"
+                    + selector.getHeight() + " at quality " + selector.getQuality());
+        }
+    }
+
+    /**
+     * @return roughly how big the pictures will be, or 0 if there's no
+     *         telling
+     */
+    public int getExpectedPictureBytes() {
+        return mExpectedPictureBytes;
+    }
+
+    /**
+     * @return how far a picture taken now needs turning clockwise to be
+     *         upright: 0, 90, 180 or 270
+     */
+    public int getPictureRotation() {
+        int orientation = mLastLatchedOrientation < 0 ? 0 : mLastLatchedOrientation;
+        return (orientation + 90) % 360;
+    }
+
+    /**
+     * Run shoot on the first preview frame that is sharp and still, so the
+     * picture isn't blurred by the tap, or after timeoutMs whatever the
+     * frames look like
+     */
+    public void takeWhenSteady(Runnable shoot, long timeoutMs) {
+        if (mMeter == null || timeoutMs <= 0) {
+            shoot.run();
+            return;
+        }
+        mSteadyShot = shoot;
+        postDelayed(mSteadyTimeout, timeoutMs);
+    }
+
+    /**
+     * How long takePicture() waits for a steady frame; 0 not to wait
+     */
+    public void setSteadyWait(long timeoutMs) {
+        mSteadyWaitMs = timeoutMs;
+    }
+
+    public void takePicture(final CaptureSource.Callback callback) {
+        final CameraSettings settings = mSettings;
+        if (settings == null) {
+            return;
+        }
+        final Camera camera = mCamera;
+        takeWhenSteady(new Runnable() {
+            public void run() {
+                settings.execute(new Runnable() {
+                    public void run() {
+                        camera.takePicture(null, null, toPictureCallback(callback));
+                    }
+                });
+            }
+        }, mSteadyWaitMs);
+    }
+
+    public void takeAnother(final CaptureSource.Callback callback) {
+        CameraSettings settings = mSettings;
+        if (settings == null) {
+            return;
+        }
+        final Camera camera = mCamera;
+        settings.execute(new Runnable() {
+            public void run() {
+                // Taking a picture stops the preview, and the next one needs it
+                camera.startPreview();
+                camera.takePicture(null, null, toPictureCallback(callback));
+            }
+        });
+    }
+
+    private static Camera.PictureCallback toPictureCallback(final CaptureSource.Callback callback) {
+        return new Camera.PictureCallback() {
+            public void onPictureTaken(byte[] data, Camera camera) {
+                callback.onPictureTaken(data, data.length);
+            }
+        };
+    }
+
+    private void fireSteadyShot() {
+        removeCallbacks(mSteadyTimeout);
+        Runnable shoot = mSteadyShot;
+        mSteadyShot = null;
+        if (shoot != null) {
+            shoot.run();
+        }
+    }
+
+    /**
+     * Every preview frame comes through here, on the UI thread, in one of
+     * the buffers we gave the camera; it goes back once it is measured
+     */
+    public void onPreviewFrame(final byte[] data, final Camera camera) {
+        if (mOpenStart != 0) {
+            Log.d("Snap", "Time to first frame "
+                    + (System.nanoTime() - mOpenStart) / 1000000 + " ms");
+            mOpenStart = 0;
+        }
+        SharpnessMeter meter = mMeter;
+        if (meter != null && data != null && meter.measure(data) && mSteadyShot != null) {
+            Log.d("Snap", "Steady frame: sharpness " + (int) meter.getSharpness()
+                    + ", motion " + meter.getMotion());
+            fireSteadyShot();
+        }
+        CameraSettings settings = mSettings;
+        if (settings != null && data != null) {
+            settings.execute(new Runnable() {
+                public void run() {
+                    camera.addCallbackBuffer(data);
+                }
+            });
+        }
     }
 
     public void surfaceCreated(SurfaceHolder holder) {
-        // The Surface has been created, acquire the camera and tell it where
-        // to draw.
-        mCamera = Camera.open();
+        // The Surface has been created, wait for the camera and tell it
+        // where to draw.
+        if (mOpening == null) {
+            // Back after a pause; nothing opened it ahead of time
+            openCamera(getWidth(), getHeight());
+        }
         try {
-           mCamera.setPreviewDisplay(holder);
-        } catch (IOException exception) {
-            mCamera.release();
+            mSettings = mOpening.get();
+        } catch (ExecutionException e) {
+            Log.e("Snap", "Unable to open the camera", e.getCause());
+            return;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        } finally {
+            mOpening = null;
+        }
+        mCamera = mSettings.getCamera();
+        final Camera camera = mCamera;
+        final SurfaceHolder surface = holder;
+        FutureTask<Void> display = new FutureTask<Void>(new Callable<Void>() {
+            public Void call() throws IOException {
+                camera.setPreviewDisplay(surface);
+                return null;
+            }
+        });
+        mSettings.execute(display);
+        try {
+            display.get();
+        } catch (Exception exception) {
+            Log.e("Snap", "Unable to show the preview", exception);
+            mSettings.execute(new Runnable() {
+                public void run() {
+                    camera.release();
+                }
+            });
+            mSettings.close();
+            mSettings = null;
             mCamera = null;
             // TODO: add more exception handling logic here
         }
@@ -65,84 +355,108 @@ public class Preview extends SurfaceView implements SurfaceHolder.Callback {
         // Surface will be destroyed when we return, so stop the preview.
         // Because the CameraDevice object is not a shared resource, it's very
         // important to release it when the activity is paused.
-        mCamera.stopPreview();
-        mCamera.release();
-        mCamera = null;
         mOrientationListener.disable();
+        if (mCamera == null) {
+            return;
+        }
+        removeCallbacks(mSteadyTimeout);
+        mSteadyShot = null;
+        mMeter = null;
+        final Camera camera = mCamera;
+        mSettings.execute(new Runnable() {
+            public void run() {
+                camera.setPreviewCallbackWithBuffer(null);
+                camera.stopPreview();
+                camera.release();
+            }
+        });
+        // Returns once the camera is released
+        mSettings.close();
+        mSettings = null;
+        mCamera = null;
     }
 
 
-    private Size getOptimalPreviewSize(List<Size> sizes, int w, int h) {
-        final double ASPECT_TOLERANCE = 0.05;
-        double targetRatio = (double) w / h;
-        if (sizes == null) return null;
-
-        Size optimalSize = null;
-        double minDiff = Double.MAX_VALUE;
-
-        int targetHeight = h;
-
-        // Try to find an size match aspect ratio and size
-        for (Size size : sizes) {
-            double ratio = (double) size.width / size.height;
-            if (Math.abs(ratio - targetRatio) > ASPECT_TOLERANCE) continue;
-            if (Math.abs(size.height - targetHeight) < minDiff) {
-                optimalSize = size;
-                minDiff = Math.abs(size.height - targetHeight);
-            }
+    /**
+     * Set the preview size that best fits a view of the given size
+     * @return the size, or null if the camera doesn't say what it has
+     */
+    private Size selectPreviewSize(CameraSettings settings, int w, int h) {
+        List<Size> sizes = settings.getSupportedPreviewSizes();
+        Size optimalSize = getOptimalPreviewSize(sizes, w, h);
+        if (optimalSize != null) {
+            settings.setPreviewSize(optimalSize.width, optimalSize.height);
         }
+        return optimalSize;
+    }
 
-        // Cannot find the one match the aspect ratio, ignore the requirement
-        if (optimalSize == null) {
-            minDiff = Double.MAX_VALUE;
-            for (Size size : sizes) {
-                if (Math.abs(size.height - targetHeight) < minDiff) {
-                    optimalSize = size;
-                    minDiff = Math.abs(size.height - targetHeight);
-                }
-            }
+    private Size getOptimalPreviewSize(List<Size> sizes, int w, int h) {
+        if (sizes == null) return null;
+        int[] widths = new int[sizes.size()];
+        int[] heights = new int[sizes.size()];
+        for (int i = 0; i < widths.length; i++) {
+            widths[i] = sizes.get(i).width;
+            heights[i] = sizes.get(i).height;
         }
-        return optimalSize;
+        int optimal = PreviewGeometry.optimalPreviewSize(widths, heights, w, h);
+        return optimal < 0 ? null : sizes.get(optimal);
     }
     
     /**
-     * From http://www.netmite.com/android/mydroid/cupcake/packages/apps/Camera/src/com/android/camera/ImageManager.java
-     * @param orientationInput
-     * @return 0, 90, 180, or 270
+     * @see PreviewGeometry#roundOrientation(int)
      */
     public static int roundOrientation(int orientationInput) {
-        int orientation = orientationInput;
-        if (orientation == -1)
-            orientation = 0;
-
-        orientation = orientation % 360;
-        int retVal;
-        if (orientation < (0*90) + 45) {
-            retVal = 0;
-        } else if (orientation < (1*90) + 45) {
-            retVal = 90;
-        } else if (orientation < (2*90) + 45) {
-            retVal = 180;
-        } else if (orientation < (3*90) + 45) {
-            retVal = 270;
-        } else {
-            retVal = 0;
-        }
-
-        return retVal;
+        return PreviewGeometry.roundOrientation(orientationInput);
     }
 
     public void surfaceChanged(SurfaceHolder holder, int format, int w, int h) {
         // Now that the size is known, set up the camera parameters and begin
-        // the preview.
-        Camera.Parameters parameters = mCamera.getParameters();
+        // the preview. Both happen on the camera thread; usually the sizes
+        // are what openCamera() guessed, and there's nothing to change.
+        if (mCamera == null) {
+            return;
+        }
+        Size optimalSize = selectPreviewSize(mSettings, w, h);
+        selectPictureSize(mSettings);
 
-        List<Size> sizes = parameters.getSupportedPreviewSizes();
-        Size optimalSize = getOptimalPreviewSize(sizes, w, h);
-        parameters.setPreviewSize(optimalSize.width, optimalSize.height);
-        Log.d("Snap", "Setting preview size to width " + optimalSize.width + " and height " + optimalSize.height);
-        
-        mCamera.setParameters(parameters);
-        mCamera.startPreview();
+        // Frames for the sharpness meter, NV21 at 12 bits a pixel, all
+        // allocated now so none are while the preview runs. With no size to
+        // go on the preview keeps the one it has and runs without the meter.
+        final byte[][] buffers;
+        if (optimalSize != null) {
+            Log.d("Snap", "Setting preview size to width " + optimalSize.width + " and height " + optimalSize.height);
+            mMeter = new SharpnessMeter(optimalSize.width, optimalSize.height);
+            int frameBytes = optimalSize.width * optimalSize.height * 3 / 2;
+            if (mFrameBuffers == null || mFrameBuffers[0].length != frameBytes) {
+                mFrameBuffers = new byte[FRAME_BUFFERS][frameBytes];
+            }
+            buffers = mFrameBuffers;
+        } else {
+            Log.w("Snap", "No preview size fits " + w + "x" + h);
+            mMeter = null;
+            buffers = null;
+        }
+
+        final Camera camera = mCamera;
+        // The size can't change while the preview runs, which it does if the
+        // surface has changed before. Queued ahead of the new parameters.
+        mSettings.execute(new Runnable() {
+            public void run() {
+                camera.stopPreview();
+            }
+        });
+        mSettings.post(new Runnable() {
+            public void run() {
+                // Clears out any buffers from before
+                camera.setPreviewCallbackWithBuffer(null);
+                if (buffers != null) {
+                    for (byte[] buffer : buffers) {
+                        camera.addCallbackBuffer(buffer);
+                    }
+                    camera.setPreviewCallbackWithBuffer(Preview.this);
+                }
+                camera.startPreview();
+            }
+        });
     }
 }
@@ -1,26 +1,19 @@
 package org.cygx1.snap;
 
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
-import java.io.IOException;
+import java.util.List;
 
 import android.app.Activity;
-import android.app.Notification;
-import android.app.NotificationManager;
-import android.app.PendingIntent;
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.pm.ActivityInfo;
 import android.graphics.PixelFormat;
-import android.hardware.Camera;
-import android.hardware.Camera.PictureCallback;
 import android.net.Uri;
 import android.os.Bundle;
 import android.preference.PreferenceManager;
-import android.text.format.Time;
 import android.util.Log;
+import android.view.Display;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
@@ -44,36 +37,72 @@ import android.widget.Toast;
  * - http://nilvec.com/sending-email-without-user-interaction-in-android/
  * 
  * TODO:
- * detect camera orientation and tag the JPEG with the right orientation (done?)
  * make sure camera preview works on all devices (done?)
- * delete the image after sending
  * silence the shutter
  * on error, have the notification take you to the unsent file so you can try again
  * handle onPause and onResume because I think lack of this causes the camera to get wedged
  *   (or maybe not)
  * fire from the shutter
- * maybe downres the pictures? Or take in lower resolution?
- * perhaps delay before shoot, to avoid "moved" pictures
  * 
  * DONE:
+ * delete the image after sending, once the sent ones take up too much room
+ * wait for a sharp, still preview frame before shooting, to avoid "moved" pictures
  * send mail from a separate thread so it doesn't block the UI
+ * keep unsent photos in a persistent outbox and retry them
+ * downres the pictures before sending them
+ * detect camera orientation and tag the JPEG with the right orientation
  * prompt for preferences on startup if they're not set
  * put a unique identifier in the mail subject so it doesn't continue the same gmail thread
  * design an icon for the app and for the notification
  */
 
-public class Snap extends Activity {
+public class Snap extends Activity implements Capture.Listener {
 	private static final String TAG = "Snap";
 	private static final int PREFS_ID = 0;
+	private static final int STATS_ID = 1;
 	private Preview mPreview;
 	int mRequestCode = 1;
-	private NotificationManager mNotificationManager;
-	private Notification notifyError, notifySuccess;
 	static File outputFile = null;
-	private static final int NOTIFICATION_ERROR_ID = 178361238;
-	private static final int NOTIFICATION_SUCCESS_ID = 178361239;
+	static final File SNAP_DIRECTORY = new File("/sdcard/cygx1/snap/");
+	private static final int SEND_WORKERS = 2;
+	private static PhotoSender sSender = null;
+	private static Outbox sOutbox = null;
+	private static PhotoStore sStore = null;
+	// The pictures being taken, if any
+	private Capture mCapture = null;
 
 
+	/**
+	 * The outbox outlives any one activity, so there is one per process. The
+	 * first call replays whatever an earlier process left unsent.
+	 */
+	static synchronized Outbox getOutbox(Context context) {
+		if (sOutbox == null) {
+			PhotoSender sender = getSender(context);
+			sOutbox = new Outbox(new File(SNAP_DIRECTORY, "outbox.journal"),
+					sender, sender, SEND_WORKERS);
+			sender.configure(sOutbox);
+			sOutbox.setPreviewer(sender);
+			sOutbox.setStore(getStore());
+			sOutbox.replay();
+		}
+		return sOutbox;
+	}
+
+	static synchronized PhotoStore getStore() {
+		if (sStore == null) {
+			sStore = new PhotoStore(SNAP_DIRECTORY);
+		}
+		return sStore;
+	}
+
+	static synchronized PhotoSender getSender(Context context) {
+		if (sSender == null) {
+			sSender = new PhotoSender(context);
+		}
+		return sSender;
+	}
+
 	/** Called when the activity is first created. */
 	@Override
 	public void onCreate(Bundle savedInstanceState) {
@@ -87,18 +116,24 @@ public class Snap extends Activity {
         	return;
         }
         
-        // Set up the notifications manager
-        String ns = Context.NOTIFICATION_SERVICE;
-		mNotificationManager = (NotificationManager) getSystemService(ns);
-		// Create our notification object
-		Context context = getApplicationContext();
-		Intent notificationIntent = new Intent( context, Snap.class);
-		PendingIntent contentIntent = PendingIntent.getActivity( context, 0, notificationIntent, 0);
-		notifyError = new Notification(R.drawable.stat_sys_warning, "", System.currentTimeMillis());
-		notifyError.setLatestEventInfo( context, "Snap", "Unable to send photo", contentIntent);
-		// TODO: better success icon
-		notifySuccess = new Notification(R.drawable.notify_success, "", System.currentTimeMillis());
-		notifySuccess.setLatestEventInfo( context, "Snap", "Photo sent successfully", contentIntent);
+        // Create our Preview view and get the camera opening, which takes
+        // longest of anything here, while the rest is set up
+        mPreview = new Preview(this);
+        mPreview.setCaptureLimits(
+                PhotoSender.getInt(this, prefs, R.string.photoSizePref, 1600),
+                PhotoSender.getInt(this, prefs, R.string.jpegQualityPref, 85),
+                PhotoSender.getCaptureBudget(this, prefs));
+        // We're landscape, whichever way the display says it is right now
+        Display display = getWindowManager().getDefaultDisplay();
+        mPreview.openCamera(Math.max(display.getWidth(), display.getHeight()),
+                Math.min(display.getWidth(), display.getHeight()));
+
+        // Pick up anything left unsent last time, with the current settings
+        getStore().setCapacity(
+                (long) PhotoSender.getInt(this, prefs, R.string.storeSizePref, 20) << 20);
+        getSender(this).configure(getOutbox(this));
+        // ...and have a mail connection ready by the time the shutter is tapped
+        getSender(this).prewarm();
 
 		// TL: the code below tries to invoke the built-in camera app
 		// It doesn't exactly work
@@ -140,16 +175,34 @@ public class Snap extends Activity {
 		// expects to be in landscape mode
 		this.setRequestedOrientation(ActivityInfo.SCREEN_ORIENTATION_LANDSCAPE);
 
-		// Create our Preview view and set it as the content of our activity.
-		mPreview = new Preview(this);
+		// Show our Preview view as the content of our activity.
 		setContentView(mPreview);
 		
 		// Set up a tap handler
 		mPreview.setOnClickListener(new OnClickListener() {
 			public void onClick(View v) {
+				if (mCapture != null) {
+					// Still busy with the last one
+					return;
+				}
+				SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(Snap.this);
+				int shots = PhotoSender.getInt(Snap.this, prefs, R.string.burstCountPref, 1);
+				boolean strip = prefs.getBoolean(getString(R.string.stripMetadataPref), true);
+				// Give the tap a moment to stop shaking the camera
+				mPreview.setSteadyWait(PhotoSender.getInt(Snap.this, prefs, R.string.steadyWaitPref, 1000));
+				mCapture = new Capture(mPreview, getOutbox(Snap.this), getStore(), shots,
+						strip, Snap.this);
+				// What's marked on the preview, or else the preferred crop
+				float[] crop = mPreview.getCrop();
+				if (crop == null) {
+					crop = parseCrop(prefs.getString(getString(R.string.cropPref), ""));
+				}
+				if (crop != null) {
+					mCapture.setCrop(crop[0], crop[1], crop[2], crop[3]);
+				}
 				Toast.makeText(getApplicationContext(), "Taking snapshot...",
 						Toast.LENGTH_SHORT).show();
-				mPreview.mCamera.takePicture(null, null, jpegCallback);
+				mCapture.start();
 			}
 		});
 
@@ -163,99 +216,41 @@ public class Snap extends Activity {
 			Log.d(TAG, "Activity result, sending file!");
 			// Retrieve the image from the static filename we defined earlier ... there
 			// should be a better way to pass this information
-			sendIt(outputFile);
-			Log.d(TAG, "Finished sending!");
+			getOutbox(this).enqueue(new Photo(outputFile));
 			this.finish();
 		}
 	}
 
 	/**
-	 * Callback with jpeg data taken from camera
+	 * @param crop - "left,top,right,bottom" as fractions, or empty
+	 * @return the crop, or null for the whole picture
 	 */
-	PictureCallback jpegCallback = new PictureCallback() {
-		public void onPictureTaken(byte[] data, Camera camera) {
-			try {
-				// create a File object for the parent directory
-				File snapDirectory = new File("/sdcard/cygx1/snap/");
-				// have the object build the directory structure, if needed.
-				snapDirectory.mkdirs();
-				// create a File object for the output file
-				final File outputFile = new File(snapDirectory, String.format(
-						"p%d.jpg", System.currentTimeMillis()));
-				// now attach the OutputStream to the file object, instead of a
-				// String representation
-				FileOutputStream fos = new FileOutputStream(outputFile);
-				fos.write(data);
-				fos.close();
-
-				Toast.makeText(getApplicationContext(), "Snapshot saved",
-						Toast.LENGTH_SHORT).show();
-
-				//	Send the picture - asynchronously
-				new Thread() {
-					public void run() {
-						sendIt(outputFile);
-					}
-				}.start();
-
-			} catch (FileNotFoundException e) {
-				e.printStackTrace();
-			} catch (IOException e) {
-				e.printStackTrace();
-			} finally {
+	private static float[] parseCrop(String crop) {
+		String[] sides = crop.split(",");
+		if (sides.length != 4) {
+			return null;
+		}
+		try {
+			float[] fractions = new float[4];
+			for (int i = 0; i < 4; i++) {
+				fractions[i] = Float.parseFloat(sides[i].trim());
 			}
-			Log.d(TAG, "onPictureTaken - jpeg");
-
-			Snap.this.finish();
+			return fractions;
+		} catch (NumberFormatException e) {
+			Log.w(TAG, "Ignoring crop " + crop);
+			return null;
 		}
-	};
+	}
 
 	/**
-	 *  Send a file attachment via email
-	 * @param outputFile - the File containing the attachment to send
+	 * Called once the pictures are in the outbox
 	 */
-	public void sendIt(File outputFile) {
-		// Now send it via email
-		
-		// Get my email address out of preferences
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
-        String email = prefs.getString(getString(R.string.emailPref), null);
-        String password = prefs.getString(getString(R.string.passwordPref), null);
-        String recipient = prefs.getString(getString(R.string.recipientPref), null);
-        String subject = prefs.getString(getString(R.string.subjectPref), null);
-        
-        // Format the subject using strftime escapes
-        Time now = new Time();
-        now.setToNow();
-        subject = now.format(subject);
+	public void onCaptured(List<Photo> photos) {
+		Toast.makeText(getApplicationContext(), "Snapshot taken",
+				Toast.LENGTH_SHORT).show();
+		Log.d(TAG, "onPictureTaken - jpeg");
 
-		Mail m = new Mail(email, password);
-		String[] toArr = { recipient };
-		m.setTo(toArr);
-		m.setFrom(email);
-		m.setSubject(subject);
-		m.setBody("");
-		
-		Context context = getApplicationContext();
-		CharSequence contentTitle = "Snap";
-		Intent notificationIntent = new Intent( context, Snap.class);
-		PendingIntent contentIntent = PendingIntent.getActivity( context, 0, notificationIntent, 0);
-		
-		try {
-			m.addAttachment(outputFile.getAbsolutePath());		
-	        if (m.send()) {
-	    		notifySuccess.setLatestEventInfo( context, contentTitle, "Photo sent successfully", contentIntent);
-				mNotificationManager.notify(NOTIFICATION_SUCCESS_ID,
-						notifySuccess);
-			} else {
-	    		notifyError.setLatestEventInfo( context, contentTitle, "Error sending photo", contentIntent);				
-				mNotificationManager.notify(NOTIFICATION_ERROR_ID, notifyError);
-			} 
-		} catch (Exception e) {
-			// If there is an error, put a notification in the notification bar
-			notifyError.setLatestEventInfo( context, contentTitle, "Error sending photo", contentIntent);
-			mNotificationManager.notify( NOTIFICATION_ERROR_ID, notifyError);
-		}
+		finish();
 	}
 
 	/**
@@ -266,6 +261,9 @@ public class Snap extends Activity {
 		menu.add(Menu.NONE, PREFS_ID, Menu.NONE, "Prefs")
 				.setIcon(android.R.drawable.ic_menu_preferences)
 				.setAlphabeticShortcut('p');
+		menu.add(Menu.NONE, STATS_ID, Menu.NONE, "Stats")
+				.setIcon(android.R.drawable.ic_menu_info_details)
+				.setAlphabeticShortcut('s');
 		return (super.onCreateOptionsMenu(menu));
 	}
 
@@ -274,6 +272,9 @@ public class Snap extends Activity {
 		case PREFS_ID:
 			startActivity(new Intent(this, SnapPreferences.class));
 			return (true);
+		case STATS_ID:
+			startActivity(new Intent(this, StatsActivity.class));
+			return (true);
 		}
 		return (super.onOptionsItemSelected(item));
 	}
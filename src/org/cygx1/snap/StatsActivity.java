@@ -0,0 +1,124 @@
+package org.cygx1.snap;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import android.app.Activity;
+import android.graphics.Typeface;
+import android.os.Bundle;
+import android.util.Log;
+import android.view.Menu;
+import android.view.MenuItem;
+import android.widget.ScrollView;
+import android.widget.TextView;
+import android.widget.Toast;
+
+/**
+ * Where the time goes in recent sends: percentiles of each stage, from the
+ * tap to the server's 250, out of the LatencyLog. The menu exports the
+ * lot to a CSV file on the SD card.
+ */
+public class StatsActivity extends Activity {
+	private static final String TAG = "Snap";
+	private static final int EXPORT_ID = 0;
+	private static final int CLEAR_ID = 1;
+	private static final int[] PERCENTILES = { 50, 90, 99 };
+
+	private TextView mText;
+
+	@Override
+	public void onCreate(Bundle savedInstanceState) {
+		super.onCreate(savedInstanceState);
+
+		mText = new TextView(this);
+		mText.setTypeface(Typeface.MONOSPACE);
+		mText.setTextSize(12);
+		mText.setPadding(8, 8, 8, 8);
+		ScrollView scroll = new ScrollView(this);
+		scroll.addView(mText);
+		setContentView(scroll);
+	}
+
+	@Override
+	protected void onResume() {
+		super.onResume();
+		mText.setText(report(LatencyLog.getInstance().snapshot()));
+	}
+
+	private static String report(List<SendRecord> records) {
+		if (records.isEmpty()) {
+			return "Nothing sent yet";
+		}
+		int sent = 0;
+		long photos = 0;
+		long photoBytes = 0;
+		long wireBytes = 0;
+		for (SendRecord record : records) {
+			if (record.isSent()) {
+				sent++;
+				photos += record.getPhotos();
+				photoBytes += record.getPhotoBytes();
+				wireBytes += record.getWireBytes();
+			}
+		}
+
+		StringBuilder sb = new StringBuilder();
+		sb.append(records.size()).append(" sends, ")
+				.append(records.size() - sent).append(" failed\n");
+		if (sent > 0) {
+			sb.append(String.format("%.1f photos, %d KB of photos, %d KB sent per message\n",
+					(double) photos / sent, photoBytes / sent / 1024, wireBytes / sent / 1024));
+		}
+		sb.append("\nms            n    p50    p90    p99\n");
+		for (SendRecord.Span span : SendRecord.Span.values()) {
+			int n = 0;
+			for (SendRecord record : records) {
+				if (record.span(span) >= 0) {
+					n++;
+				}
+			}
+			long[] values = LatencyLog.percentiles(records, span, PERCENTILES);
+			sb.append(String.format("%-11s %4d", span.label, n));
+			if (values != null) {
+				for (long ns : values) {
+					sb.append(String.format(" %6d", ns / 1000000));
+				}
+			}
+			sb.append('\n');
+		}
+		return sb.toString();
+	}
+
+	@Override
+	public boolean onCreateOptionsMenu(Menu menu) {
+		menu.add(Menu.NONE, EXPORT_ID, Menu.NONE, "Export")
+				.setIcon(android.R.drawable.ic_menu_save)
+				.setAlphabeticShortcut('e');
+		menu.add(Menu.NONE, CLEAR_ID, Menu.NONE, "Clear")
+				.setIcon(android.R.drawable.ic_menu_delete)
+				.setAlphabeticShortcut('c');
+		return (super.onCreateOptionsMenu(menu));
+	}
+
+	public boolean onOptionsItemSelected(MenuItem item) {
+		switch (item.getItemId()) {
+		case EXPORT_ID:
+			File file = new File(Snap.SNAP_DIRECTORY, String.format("latency-%d.csv",
+					System.currentTimeMillis()));
+			try {
+				LatencyLog.getInstance().export(file);
+				Toast.makeText(this, "Saved to " + file, Toast.LENGTH_LONG).show();
+			} catch (IOException e) {
+				Log.e(TAG, "Unable to export latency log", e);
+				Toast.makeText(this, "Unable to save " + file, Toast.LENGTH_LONG).show();
+			}
+			return (true);
+		case CLEAR_ID:
+			LatencyLog.getInstance().clear();
+			mText.setText(report(LatencyLog.getInstance().snapshot()));
+			return (true);
+		}
+		return (super.onOptionsItemSelected(item));
+	}
+}
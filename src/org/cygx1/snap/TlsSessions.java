@@ -0,0 +1,67 @@
+package org.cygx1.snap;
+
+import java.io.File;
+import java.io.IOException;
+
+import javax.net.ssl.SSLSocketFactory;
+
+import android.content.Context;
+import android.net.SSLCertificateSocketFactory;
+import android.net.SSLSessionCache;
+import android.util.Log;
+
+/**
+ * Keeps TLS sessions (IDs and tickets, whichever the server hands out) on
+ * disk, one file per host and port, so that the first connection after a
+ * launch can resume the last launch's session. An abbreviated handshake
+ * saves a round trip and the public key crypto, which on a phone is often
+ * most of the time it takes to connect.
+ *
+ * Servers only honour a session for so long; sessions older than that are
+ * thrown away rather than offered, and the first handshake with a server
+ * is always a full one.
+ */
+public class TlsSessions {
+	private static final String TAG = "Snap";
+
+	private static final int HANDSHAKE_TIMEOUT_MS = 30 * 1000;
+	// Longer than any server we talk to keeps a session
+	private static final long SESSION_LIFETIME_MS = 24 * 60 * 60 * 1000L;
+
+	private static boolean sInstalled = false;
+
+	/**
+	 * Have SmtpSocketFactory make its connections through the session cache
+	 */
+	public static synchronized void install(Context context) {
+		if (sInstalled) {
+			return;
+		}
+		sInstalled = true;
+		File dir = new File(context.getCacheDir(), "tls-sessions");
+		prune(dir);
+		try {
+			SSLSessionCache cache = new SSLSessionCache(dir);
+			SmtpSocketFactory.setDelegate((SSLSocketFactory) SSLCertificateSocketFactory
+					.getDefault(HANDSHAKE_TIMEOUT_MS, cache));
+		} catch (IOException e) {
+			Log.w(TAG, "Unable to keep TLS sessions in " + dir, e);
+		}
+	}
+
+	/**
+	 * Delete the sessions that have expired
+	 */
+	private static void prune(File dir) {
+		File[] files = dir.listFiles();
+		if (files == null) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		for (File file : files) {
+			if (now - file.lastModified() > SESSION_LIFETIME_MS && !file.delete()) {
+				Log.w(TAG, "Unable to delete expired TLS session " + file);
+			}
+		}
+	}
+}